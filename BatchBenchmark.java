@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+/**
+ * Small files benchmark - STOREs, LOADs && REMOVEs the same number of files(1 KB by default) one request per file && then with
+ * STORE_BATCH/LOAD_BATCH/REMOVE_BATCH, && prints the files per second of each.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java BatchBenchmark cport timeout [files] [batch_size] [file_size] [protocol(TEXT|BINARY)]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        int fileSize = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+        String protocol = args.length > 5 ? args[5] : Protocol.TEXT_TOKEN;
+
+        byte[][] data = new byte[files][];
+        for (int i = 0; i < files; i++) {
+            data[i] = new byte[fileSize];
+            Arrays.fill(data[i], (byte) i);
+        }
+        BenchmarkClient client = new BenchmarkClient(cport, timeout, protocol);
+        client.connect();
+
+        System.out.println("mode\tSTOREs/s\tLOADs/s\tREMOVEs/s");
+        for (boolean batched : new boolean[]{false, true}) {
+            String prefix = "b" + Long.toString(System.nanoTime(), 36) + "_";
+            String[] filenames = new String[files];
+            for (int i = 0; i < files; i++)
+                filenames[i] = prefix + i;
+
+            long start = System.nanoTime();
+            for (int from = 0; from < files; from += batched ? batchSize : 1) {
+                if (batched) {
+                    int to = Math.min(files, from + batchSize);
+                    client.storeBatch(Arrays.copyOfRange(filenames, from, to), Arrays.copyOfRange(data, from, to));
+                } else {
+                    client.store(filenames[from], data[from]);
+                }
+            }
+            double storeSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int from = 0; from < files; from += batched ? batchSize : 1) {
+                if (batched) {
+                    int to = Math.min(files, from + batchSize);
+                    byte[][] loaded = client.loadBatch(Arrays.copyOfRange(filenames, from, to));
+                    for (int i = from; i < to; i++) {
+                        if (!Arrays.equals(loaded[i - from], data[i]))
+                            throw new Exception("Wrong content for " + filenames[i]);
+                    }
+                } else if (!Arrays.equals(client.load(filenames[from]), data[from])) {
+                    throw new Exception("Wrong content for " + filenames[from]);
+                }
+            }
+            double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int from = 0; from < files; from += batched ? batchSize : 1) {
+                if (batched)
+                    client.removeBatch(Arrays.copyOfRange(filenames, from, Math.min(files, from + batchSize)));
+                else
+                    client.remove(filenames[from]);
+            }
+            double removeSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%s\t%.0f\t%.0f\t%.0f%n", batched ? "batch of " + batchSize : "single", files / storeSeconds, files / loadSeconds, files / removeSeconds);
+        }
+        client.disconnect();
+    }
+}
@@ -0,0 +1,743 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Minimal client for the benchmarks - speaks the protocol directly over sockets so the benchmarks do not depend on the client jar.
+ * A binary(or pipelined) client opts into the binary protocol(see BinaryProtocol) on connect && falls back to the text protocol if the
+ * Controller declines. A pipelined client can send many LOADs at once(locateAll), && any client can STORE/LOAD/REMOVE many files in one
+ * request(storeBatch, loadBatch, removeBatch). A large file can be uploaded once for all of its replicas(storeChain) && downloaded in ranges
+ * from all of them at once(loadParallel), && a file can be uploaded without the chunks the Dstores already have(storeDedup).
+ * One instance holds one connection to the Controller && must only be used by one thread at a time.
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class BenchmarkClient {
+    private static final byte[] HANDSHAKE_LINE = (BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII);
+    private final int cport;
+    private final int timeout;
+    private final String protocol;
+    private boolean binary;
+    private Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+    private InputStream binaryIn;
+    private OutputStream binaryOut;
+    private final BinaryProtocol.FRAME frame = new BinaryProtocol.FRAME();
+    private long nextRequestId = 0;
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+
+    public BenchmarkClient(int cport, int timeout) {
+        this(cport, timeout, Protocol.TEXT_TOKEN);
+    }
+
+    /**
+     * @param protocol String | Protocol.TEXT_TOKEN, BINARY_TOKEN || PIPELINED_TOKEN
+     */
+    public BenchmarkClient(int cport, int timeout, String protocol) {
+        this.cport = cport;
+        this.timeout = timeout;
+        this.protocol = protocol;
+    }
+
+    public void connect() throws IOException {
+        this.socket = new Socket("localhost", this.cport);
+        this.socket.setSoTimeout(this.timeout);
+        //counted, for the bytes on the wire of each protocol
+        InputStream socketIn = new FilterInputStream(this.socket.getInputStream()) {
+            public int read() throws IOException {
+                int data = super.read();
+                if (data != -1)
+                    BenchmarkClient.this.bytesReceived++;
+                return data;
+            }
+
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int bufLen = super.read(buffer, offset, length);
+                if (bufLen > 0)
+                    BenchmarkClient.this.bytesReceived += bufLen;
+                return bufLen;
+            }
+        };
+        OutputStream socketOut = new FilterOutputStream(this.socket.getOutputStream()) {
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                BenchmarkClient.this.bytesSent += length;
+                this.out.write(buffer, offset, length);
+            }
+        };
+        this.binaryIn = new BufferedInputStream(socketIn);
+        this.binaryOut = new BufferedOutputStream(socketOut);
+        if (!this.protocol.equals(Protocol.TEXT_TOKEN)) {
+            String handshake = Protocol.PROTOCOL_TOKEN + " " + this.protocol;
+            this.binaryOut.write((handshake + "\n").getBytes(StandardCharsets.US_ASCII));
+            this.binaryOut.flush();
+            String answer = BinaryProtocol.readLine(this.binaryIn);
+            if (answer == null)
+                throw new IOException("Connection closed by the Controller");
+            this.binary = answer.equals(handshake);
+        }
+        this.in = new BufferedReader(new InputStreamReader(this.binaryIn));
+        this.out = new PrintWriter(new OutputStreamWriter(this.binaryOut));
+    }
+
+    public void disconnect() throws IOException {
+        if (this.socket != null)
+            this.socket.close();
+    }
+
+    /**
+     * @return boolean | true if the connection speaks the binary protocol
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * @return boolean | true if the Controller processes the requests of the connection concurrently
+     */
+    public boolean isPipelined() {
+        return this.binary && this.protocol.equals(Protocol.PIPELINED_TOKEN);
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return this.bytesReceived;
+    }
+
+    /**
+     * Send a request to the Controller && wait for the response line(text protocol only).
+     */
+    public String request(String request) throws IOException {
+        this.out.println(request);
+        this.out.flush();
+        String response = this.in.readLine();
+        if (response == null)
+            throw new IOException("Connection closed by the Controller");
+        return response;
+    }
+
+    /**
+     * Wait for the next line from the Controller(e.g. STORE_COMPLETE after the upload).
+     */
+    public String readResponse() throws IOException {
+        String response = this.in.readLine();
+        if (response == null)
+            throw new IOException("Connection closed by the Controller");
+        return response;
+    }
+
+    /**
+     * Send a frame to the Controller && wait for the response frame(binary protocol only).
+     */
+    private BinaryProtocol.FRAME request(BinaryProtocol.FRAME_WRITER request) throws IOException {
+        request.writeTo(this.binaryOut);
+        this.binaryOut.flush();
+        return this.readFrame();
+    }
+
+    private BinaryProtocol.FRAME readFrame() throws IOException {
+        if (!this.frame.read(this.binaryIn, Integer.MAX_VALUE))
+            throw new IOException("Connection closed by the Controller");
+        return this.frame;
+    }
+
+    private void expect(BinaryProtocol.FRAME response, byte opcode, String request) throws IOException {
+        if (response.opcode != opcode)
+            throw new IOException("Unexpected response to " + request + " : " + BinaryProtocol.getToken(response.opcode));
+    }
+
+    public void store(String filename, byte[] data) throws IOException {
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE, ++this.nextRequestId).writeString(filename).writeVarint(data.length));
+            this.expect(response, BinaryProtocol.STORE_TO, Protocol.STORE_TOKEN);
+            List<Integer> dPorts = new ArrayList<Integer>();
+            while (response.hasRemaining())
+                dPorts.add((int) response.readVarint());
+            for (int eachDPort : dPorts)
+                BenchmarkClient.upload(eachDPort, filename, data, this.timeout, true);
+            this.expect(this.readFrame(), BinaryProtocol.STORE_COMPLETE, Protocol.STORE_TOKEN);
+            return;
+        }
+        String response = this.request(Protocol.STORE_TOKEN + " " + filename + " " + data.length);
+        if (!response.startsWith(Protocol.STORE_TO_TOKEN))
+            throw new IOException("Unexpected response to STORE : " + response);
+
+        String[] segments = response.trim().split(" ");
+        for (int i = 1; i < segments.length; i++)
+            BenchmarkClient.upload(Integer.parseInt(segments[i]), filename, data, this.timeout);
+
+        response = this.readResponse();
+        if (!response.equals(Protocol.STORE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response after upload : " + response);
+    }
+
+    /**
+     * STORE, but the file is uploaded once : to the first Dstore of STORE_TO, which forwards it along the others(STORE_CHAIN).
+     */
+    public void storeChain(String filename, byte[] data) throws IOException {
+        List<Integer> dPorts = new ArrayList<Integer>();
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE, ++this.nextRequestId).writeString(filename).writeVarint(data.length));
+            this.expect(response, BinaryProtocol.STORE_TO, Protocol.STORE_TOKEN);
+            while (response.hasRemaining())
+                dPorts.add((int) response.readVarint());
+        } else {
+            String response = this.request(Protocol.STORE_TOKEN + " " + filename + " " + data.length);
+            if (!response.startsWith(Protocol.STORE_TO_TOKEN))
+                throw new IOException("Unexpected response to STORE : " + response);
+            String[] segments = response.trim().split(" ");
+            for (int i = 1; i < segments.length; i++)
+                dPorts.add(Integer.parseInt(segments[i]));
+        }
+        BenchmarkClient.uploadChain(dPorts, filename, data, this.timeout, this.binary);
+
+        if (this.binary) {
+            this.expect(this.readFrame(), BinaryProtocol.STORE_COMPLETE, Protocol.STORE_TOKEN);
+            return;
+        }
+        String response = this.readResponse();
+        if (!response.equals(Protocol.STORE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response after upload : " + response);
+    }
+
+    /**
+     * STORE, but each Dstore only gets the chunks of the file it does not have yet(STORE_DEDUP).
+     *
+     * @return long | the bytes of the file uploaded to all the Dstores together
+     */
+    public long storeDedup(String filename, byte[] data) throws IOException {
+        List<Integer> dPorts = new ArrayList<Integer>();
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE, ++this.nextRequestId).writeString(filename).writeVarint(data.length));
+            this.expect(response, BinaryProtocol.STORE_TO, Protocol.STORE_TOKEN);
+            while (response.hasRemaining())
+                dPorts.add((int) response.readVarint());
+        } else {
+            String response = this.request(Protocol.STORE_TOKEN + " " + filename + " " + data.length);
+            if (!response.startsWith(Protocol.STORE_TO_TOKEN))
+                throw new IOException("Unexpected response to STORE : " + response);
+            String[] segments = response.trim().split(" ");
+            for (int i = 1; i < segments.length; i++)
+                dPorts.add(Integer.parseInt(segments[i]));
+        }
+        List<ContentChunker.CHUNK> chunks = ContentChunker.chunk(data);
+        long uploaded = 0;
+        for (int eachDPort : dPorts)
+            uploaded += BenchmarkClient.uploadDedup(eachDPort, filename, data, chunks, this.timeout, this.binary);
+
+        if (this.binary) {
+            this.expect(this.readFrame(), BinaryProtocol.STORE_COMPLETE, Protocol.STORE_TOKEN);
+            return uploaded;
+        }
+        String response = this.readResponse();
+        if (!response.equals(Protocol.STORE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response after upload : " + response);
+        return uploaded;
+    }
+
+    public byte[] load(String filename) throws IOException {
+        long[] location = this.locate(filename);
+        return BenchmarkClient.download((int) location[0], filename, (int) location[1], this.timeout, this.binary);
+    }
+
+    /**
+     * LOAD without the download.
+     *
+     * @return long[] | the port of the Dstore to download the file from && the file size
+     */
+    public long[] locate(String filename) throws IOException {
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD, ++this.nextRequestId).writeString(filename));
+            this.expect(response, BinaryProtocol.LOAD_FROM, Protocol.LOAD_TOKEN);
+            return new long[]{response.readVarint(), response.readVarint()};
+        }
+        String response = this.request(Protocol.LOAD_TOKEN + " " + filename);
+        if (!response.startsWith(Protocol.LOAD_FROM_TOKEN))
+            throw new IOException("Unexpected response to LOAD : " + response);
+
+        String[] segments = response.split(" ");
+        return new long[]{Integer.parseInt(segments[1]), Long.parseLong(segments[2])};
+    }
+
+    /**
+     * LOAD(without the download) every file, with up to window requests in flight at a time on a pipelined connection, one by one otherwise.
+     *
+     * @return long[][] | the port && file size for each file, null for a file the Controller answered with an error
+     */
+    public long[][] locateAll(String[] filenames, int window) throws IOException {
+        long[][] locations = new long[filenames.length][];
+        if (!this.isPipelined()) {
+            for (int i = 0; i < filenames.length; i++) {
+                try {
+                    locations[i] = this.locate(filenames[i]);
+                } catch (IOException e) {
+                    locations[i] = null;
+                }
+            }
+            return locations;
+        }
+        //the request id of filenames[i] is firstId + i, the responses can come back in any order
+        long firstId = this.nextRequestId + 1;
+        this.nextRequestId += filenames.length;
+        int sent = 0;
+        int received = 0;
+        while (received < filenames.length) {
+            while (sent < filenames.length && sent - received < window) {
+                new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD, firstId + sent).writeString(filenames[sent]).writeTo(this.binaryOut);
+                sent++;
+            }
+            this.binaryOut.flush();
+            BinaryProtocol.FRAME response = this.readFrame();
+            int index = (int) (response.requestId - firstId);
+            if (index < 0 || index >= filenames.length)
+                throw new IOException("Response to an unknown request : " + response.requestId);
+            locations[index] = (response.opcode == BinaryProtocol.LOAD_FROM) ? new long[]{response.readVarint(), response.readVarint()} : null;
+            received++;
+        }
+        return locations;
+    }
+
+    /**
+     * LOAD_ALL without the download.
+     *
+     * @return long[] | the file size, then the port of every replica(the ones to prefer first)
+     */
+    public long[] locateReplicas(String filename) throws IOException {
+        List<Long> location = new ArrayList<Long>();
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_ALL, ++this.nextRequestId).writeString(filename));
+            this.expect(response, BinaryProtocol.LOAD_ALL_FROM, Protocol.LOAD_ALL_TOKEN);
+            while (response.hasRemaining())
+                location.add(response.readVarint());
+        } else {
+            String response = this.request(Protocol.LOAD_ALL_TOKEN + " " + filename);
+            if (!response.startsWith(Protocol.LOAD_ALL_FROM_TOKEN + " "))
+                throw new IOException("Unexpected response to LOAD_ALL : " + response);
+            String[] segments = response.split(" ");
+            for (int i = 1; i < segments.length; i++)
+                location.add(Long.parseLong(segments[i]));
+        }
+        return location.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Download a file in ranges of chunkSize bytes from every replica at once(LOAD_ALL, then LOAD_DATA filename offset length). Each replica
+     * has one connection && takes the next range as soon as it has sent the previous one, so a faster replica sends more of the file. The
+     * ranges of a replica that fails go to the others.
+     */
+    public byte[] loadParallel(String filename, int chunkSize) throws IOException {
+        long[] location = this.locateReplicas(filename);
+        byte[] data = new byte[(int) location[0]];
+        ConcurrentLinkedQueue<Integer> chunks = new ConcurrentLinkedQueue<Integer>();
+        for (int offset = 0; offset < data.length; offset += chunkSize)
+            chunks.add(offset);
+
+        List<Thread> replicas = new ArrayList<Thread>();
+        for (int i = 1; i < location.length; i++) {
+            final int dPort = (int) location[i];
+            Thread replica = new Thread(() -> {
+                Integer offset = null;
+                try (Socket dstore = new Socket("localhost", dPort)) {
+                    dstore.setSoTimeout(this.timeout);
+                    OutputStream dOut = new BufferedOutputStream(dstore.getOutputStream());
+                    InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+                    if (this.binary) {
+                        dOut.write(HANDSHAKE_LINE);
+                        dOut.flush();
+                        if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)))
+                            throw new IOException("Dstore " + dPort + " does not speak the binary protocol");
+                    }
+                    while ((offset = chunks.poll()) != null) {
+                        int length = Math.min(chunkSize, data.length - offset);
+                        if (this.binary)
+                            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_DATA, 0).writeString(filename).writeVarint(offset).writeVarint(length).writeTo(dOut);
+                        else
+                            dOut.write((Protocol.LOAD_DATA_TOKEN + " " + filename + " " + offset + " " + length + "\n").getBytes(StandardCharsets.UTF_8));
+                        dOut.flush();
+                        if (dIn.readNBytes(data, offset, length) != length)
+                            throw new IOException("Dstore " + dPort + " sent less than " + length + " bytes of " + filename);
+                    }
+                } catch (IOException e) {
+                    //the range that failed goes back to the replicas that are left
+                    if (offset != null)
+                        chunks.add(offset);
+                }
+            });
+            replicas.add(replica);
+            replica.start();
+        }
+        try {
+            for (Thread eachReplica : replicas)
+                eachReplica.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + filename);
+        }
+        if (!chunks.isEmpty())
+            throw new IOException("No replica could send " + chunks.size() + " ranges of " + filename);
+        return data;
+    }
+
+    public void remove(String filename) throws IOException {
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.REMOVE, ++this.nextRequestId).writeString(filename));
+            this.expect(response, BinaryProtocol.REMOVE_COMPLETE, Protocol.REMOVE_TOKEN);
+            return;
+        }
+        String response = this.request(Protocol.REMOVE_TOKEN + " " + filename);
+        if (!response.equals(Protocol.REMOVE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response to REMOVE : " + response);
+    }
+
+    /**
+     * STORE_BATCH : the Controller places every file at once && each Dstore of the plan gets all of its files over one connection.
+     */
+    public void storeBatch(String[] filenames, byte[][] data) throws IOException {
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for (int i = 0; i < filenames.length; i++)
+            contents.put(filenames[i], data[i]);
+        //port => the files to send to that Dstore
+        Map<Integer, List<String>> plan = new LinkedHashMap<Integer, List<String>>();
+        if (this.binary) {
+            BinaryProtocol.FRAME_WRITER request = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_BATCH, ++this.nextRequestId);
+            for (int i = 0; i < filenames.length; i++)
+                request.writeString(filenames[i]).writeVarint(data[i].length);
+            BinaryProtocol.FRAME response = this.request(request);
+            this.expect(response, BinaryProtocol.STORE_BATCH_TO, Protocol.STORE_BATCH_TOKEN);
+            while (response.hasRemaining()) {
+                List<String> files = plan.computeIfAbsent((int) response.readVarint(), dPort -> new ArrayList<String>());
+                for (long count = response.readVarint(); count > 0; count--)
+                    files.add(response.readString());
+            }
+        } else {
+            StringBuilder request = new StringBuilder(Protocol.STORE_BATCH_TOKEN);
+            for (int i = 0; i < filenames.length; i++)
+                request.append(" ").append(filenames[i]).append(" ").append(data[i].length);
+            String response = this.request(request.toString());
+            if (!response.startsWith(Protocol.STORE_BATCH_TO_TOKEN + " "))
+                throw new IOException("Unexpected response to STORE_BATCH : " + response);
+            String[] segments = response.split(" ");
+            for (int i = 1; i < segments.length; ) {
+                List<String> files = plan.computeIfAbsent(Integer.parseInt(segments[i]), dPort -> new ArrayList<String>());
+                int count = Integer.parseInt(segments[i + 1]);
+                files.addAll(List.of(segments).subList(i + 2, i + 2 + count));
+                i += 2 + count;
+            }
+        }
+
+        for (Map.Entry<Integer, List<String>> eachDstore : plan.entrySet()) {
+            List<byte[]> files = new ArrayList<byte[]>();
+            for (String eachFilename : eachDstore.getValue())
+                files.add(contents.get(eachFilename));
+            BenchmarkClient.uploadBatch(eachDstore.getKey(), eachDstore.getValue(), files, this.timeout, this.binary);
+        }
+
+        if (this.binary) {
+            this.expect(this.readFrame(), BinaryProtocol.STORE_COMPLETE, Protocol.STORE_BATCH_TOKEN);
+            return;
+        }
+        String response = this.readResponse();
+        if (!response.equals(Protocol.STORE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response after the batch upload : " + response);
+    }
+
+    /**
+     * LOAD_BATCH : the Controller picks a replica for every file at once && the files of each Dstore are downloaded over one connection.
+     *
+     * @return byte[][] | the content of each file, in the order of filenames
+     */
+    public byte[][] loadBatch(String[] filenames) throws IOException {
+        //port => the files(&& their sizes) to download from that Dstore
+        Map<Integer, List<String>> planFiles = new LinkedHashMap<Integer, List<String>>();
+        Map<Integer, List<Integer>> planSizes = new HashMap<Integer, List<Integer>>();
+        if (this.binary) {
+            BinaryProtocol.FRAME_WRITER request = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_BATCH, ++this.nextRequestId);
+            for (String eachFilename : filenames)
+                request.writeString(eachFilename);
+            BinaryProtocol.FRAME response = this.request(request);
+            this.expect(response, BinaryProtocol.LOAD_BATCH_FROM, Protocol.LOAD_BATCH_TOKEN);
+            while (response.hasRemaining()) {
+                int dPort = (int) response.readVarint();
+                for (long count = response.readVarint(); count > 0; count--) {
+                    planFiles.computeIfAbsent(dPort, port -> new ArrayList<String>()).add(response.readString());
+                    planSizes.computeIfAbsent(dPort, port -> new ArrayList<Integer>()).add((int) response.readVarint());
+                }
+            }
+        } else {
+            String response = this.request(Protocol.LOAD_BATCH_TOKEN + " " + String.join(" ", filenames));
+            if (!response.startsWith(Protocol.LOAD_BATCH_FROM_TOKEN + " "))
+                throw new IOException("Unexpected response to LOAD_BATCH : " + response);
+            String[] segments = response.split(" ");
+            for (int i = 1; i < segments.length; ) {
+                int dPort = Integer.parseInt(segments[i]);
+                int count = Integer.parseInt(segments[i + 1]);
+                i += 2;
+                for (int eachFile = 0; eachFile < count; eachFile++, i += 2) {
+                    planFiles.computeIfAbsent(dPort, port -> new ArrayList<String>()).add(segments[i]);
+                    planSizes.computeIfAbsent(dPort, port -> new ArrayList<Integer>()).add(Integer.parseInt(segments[i + 1]));
+                }
+            }
+        }
+
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        for (Map.Entry<Integer, List<String>> eachDstore : planFiles.entrySet()) {
+            byte[][] data = BenchmarkClient.downloadBatch(eachDstore.getKey(), eachDstore.getValue(), planSizes.get(eachDstore.getKey()), this.timeout, this.binary);
+            for (int i = 0; i < data.length; i++)
+                contents.put(eachDstore.getValue().get(i), data[i]);
+        }
+        byte[][] data = new byte[filenames.length][];
+        for (int i = 0; i < filenames.length; i++)
+            data[i] = contents.get(filenames[i]);
+        return data;
+    }
+
+    public void removeBatch(String[] filenames) throws IOException {
+        if (this.binary) {
+            BinaryProtocol.FRAME_WRITER request = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.REMOVE_BATCH, ++this.nextRequestId);
+            for (String eachFilename : filenames)
+                request.writeString(eachFilename);
+            this.expect(this.request(request), BinaryProtocol.REMOVE_COMPLETE, Protocol.REMOVE_BATCH_TOKEN);
+            return;
+        }
+        String response = this.request(Protocol.REMOVE_BATCH_TOKEN + " " + String.join(" ", filenames));
+        if (!response.equals(Protocol.REMOVE_COMPLETE_TOKEN))
+            throw new IOException("Unexpected response to REMOVE_BATCH : " + response);
+    }
+
+    public String[] list() throws IOException {
+        if (this.binary) {
+            BinaryProtocol.FRAME response = this.request(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LIST, ++this.nextRequestId));
+            this.expect(response, BinaryProtocol.LIST, Protocol.LIST_TOKEN);
+            List<String> files = new ArrayList<String>();
+            while (response.hasRemaining())
+                files.add(response.readString());
+            return files.toArray(new String[0]);
+        }
+        String response = this.request(Protocol.LIST_TOKEN);
+        String files = response.substring(Protocol.LIST_TOKEN.length()).trim();
+        return files.isEmpty() ? new String[0] : files.split(" ");
+    }
+
+    /**
+     * Upload the given file content to a single Dstore.
+     */
+    public static void upload(int dPort, String filename, byte[] data, int timeout) throws IOException {
+        BenchmarkClient.upload(dPort, filename, data, timeout, false);
+    }
+
+    /**
+     * @param binary boolean | send the request as a frame, right after the handshake(the Dstores of the system speak the binary protocol)
+     */
+    public static void upload(int dPort, String filename, byte[] data, int timeout, boolean binary) throws IOException {
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            if (binary) {
+                OutputStream dOut = new BufferedOutputStream(dstore.getOutputStream());
+                InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+                dOut.write(HANDSHAKE_LINE);
+                new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE, 0).writeString(filename).writeVarint(data.length).writeTo(dOut);
+                dOut.flush();
+                BinaryProtocol.FRAME ack = new BinaryProtocol.FRAME();
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)) || !ack.read(dIn, BinaryProtocol.MAX_REQUEST_LENGTH) || ack.opcode != BinaryProtocol.ACK)
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE");
+                dOut.write(data);
+                dOut.flush();
+                return;
+            }
+            PrintWriter dOut = new PrintWriter(new OutputStreamWriter(dstore.getOutputStream()));
+            BufferedReader dIn = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
+            dOut.println(Protocol.STORE_TOKEN + " " + filename + " " + data.length);
+            dOut.flush();
+            String ack = dIn.readLine();
+            if (!Protocol.ACK_TOKEN.equals(ack))
+                throw new IOException("Dstore " + dPort + " did not ACK the STORE : " + ack);
+            dstore.getOutputStream().write(data);
+            dstore.getOutputStream().flush();
+        }
+    }
+
+    /**
+     * Upload a file to the first Dstore of the chain(STORE_CHAIN filename filesize port2 port3 ...), which forwards it to the others.
+     */
+    public static void uploadChain(List<Integer> dPorts, String filename, byte[] data, int timeout, boolean binary) throws IOException {
+        int dPort = dPorts.get(0);
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            OutputStream dOut = new BufferedOutputStream(dstore.getOutputStream());
+            InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+            if (binary) {
+                dOut.write(HANDSHAKE_LINE);
+                BinaryProtocol.FRAME_WRITER request = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_CHAIN, 0).writeString(filename).writeVarint(data.length);
+                for (int i = 1; i < dPorts.size(); i++)
+                    request.writeVarint(dPorts.get(i));
+                request.writeTo(dOut);
+                dOut.flush();
+                BinaryProtocol.FRAME ack = new BinaryProtocol.FRAME();
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)) || !ack.read(dIn, BinaryProtocol.MAX_REQUEST_LENGTH) || ack.opcode != BinaryProtocol.ACK)
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_CHAIN");
+            } else {
+                StringBuilder request = new StringBuilder(Protocol.STORE_CHAIN_TOKEN).append(" ").append(filename).append(" ").append(data.length);
+                for (int i = 1; i < dPorts.size(); i++)
+                    request.append(" ").append(dPorts.get(i));
+                dOut.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+                dOut.flush();
+                String ack = BinaryProtocol.readLine(dIn);
+                if (!Protocol.ACK_TOKEN.equals(ack))
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_CHAIN : " + ack);
+            }
+            dOut.write(data);
+            dOut.flush();
+        }
+    }
+
+    /**
+     * Upload a file to a Dstore with STORE_DEDUP : the recipe goes with the request, && only the chunks the Dstore asks for after the ACK
+     * are sent.
+     *
+     * @return long | the bytes of the file that have been sent
+     */
+    public static long uploadDedup(int dPort, String filename, byte[] data, List<ContentChunker.CHUNK> chunks, int timeout, boolean binary) throws IOException {
+        byte[] recipe = ContentChunker.encodeRecipe(chunks);
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            OutputStream dOut = new BufferedOutputStream(dstore.getOutputStream());
+            InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+            if (binary) {
+                dOut.write(HANDSHAKE_LINE);
+                new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_DEDUP, 0).writeString(filename).writeVarint(data.length).writeVarint(recipe.length).writeTo(dOut);
+            } else {
+                dOut.write((Protocol.STORE_DEDUP_TOKEN + " " + filename + " " + data.length + " " + recipe.length + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            dOut.write(recipe);
+            dOut.flush();
+            if (binary) {
+                BinaryProtocol.FRAME ack = new BinaryProtocol.FRAME();
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)) || !ack.read(dIn, BinaryProtocol.MAX_REQUEST_LENGTH) || ack.opcode != BinaryProtocol.ACK)
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_DEDUP");
+            } else {
+                String ack = BinaryProtocol.readLine(dIn);
+                if (!Protocol.ACK_TOKEN.equals(ack))
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_DEDUP : " + ack);
+            }
+            byte[] missing = dIn.readNBytes((chunks.size() + 7) / 8);
+            if (missing.length != (chunks.size() + 7) / 8)
+                throw new IOException("Dstore " + dPort + " did not say which chunks it needs");
+            long uploaded = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                if ((missing[i / 8] & (1 << (i % 8))) != 0) {
+                    dOut.write(data, (int) chunks.get(i).offset, chunks.get(i).length);
+                    uploaded += chunks.get(i).length;
+                }
+            }
+            dOut.flush();
+            return uploaded;
+        }
+    }
+
+    /**
+     * Upload the files of a STORE_BATCH plan to a single Dstore : one request && one ACK, then the bytes of every file in a row.
+     */
+    public static void uploadBatch(int dPort, List<String> filenames, List<byte[]> data, int timeout, boolean binary) throws IOException {
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            OutputStream dOut = new BufferedOutputStream(dstore.getOutputStream());
+            InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+            if (binary) {
+                dOut.write(HANDSHAKE_LINE);
+                BinaryProtocol.FRAME_WRITER request = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_BATCH, 0);
+                for (int i = 0; i < filenames.size(); i++)
+                    request.writeString(filenames.get(i)).writeVarint(data.get(i).length);
+                request.writeTo(dOut);
+                dOut.flush();
+                BinaryProtocol.FRAME ack = new BinaryProtocol.FRAME();
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)) || !ack.read(dIn, BinaryProtocol.MAX_REQUEST_LENGTH) || ack.opcode != BinaryProtocol.ACK)
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_BATCH");
+            } else {
+                StringBuilder request = new StringBuilder(Protocol.STORE_BATCH_TOKEN);
+                for (int i = 0; i < filenames.size(); i++)
+                    request.append(" ").append(filenames.get(i)).append(" ").append(data.get(i).length);
+                dOut.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+                dOut.flush();
+                String ack = BinaryProtocol.readLine(dIn);
+                if (!Protocol.ACK_TOKEN.equals(ack))
+                    throw new IOException("Dstore " + dPort + " did not ACK the STORE_BATCH : " + ack);
+            }
+            for (byte[] eachFile : data)
+                dOut.write(eachFile);
+            dOut.flush();
+        }
+    }
+
+    /**
+     * Download the files of a LOAD_BATCH plan from a single Dstore : every LOAD_DATA is sent at once && the files come back in a row.
+     */
+    public static byte[][] downloadBatch(int dPort, List<String> filenames, List<Integer> filesizes, int timeout, boolean binary) throws IOException {
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            if (binary) {
+                request.write(HANDSHAKE_LINE);
+                for (String eachFilename : filenames)
+                    new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_DATA, 0).writeString(eachFilename).writeTo(request);
+            } else {
+                for (String eachFilename : filenames)
+                    request.write((Protocol.LOAD_DATA_TOKEN + " " + eachFilename + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            request.writeTo(dstore.getOutputStream());
+            InputStream dIn = new BufferedInputStream(dstore.getInputStream());
+            if (binary && !BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)))
+                throw new IOException("Dstore " + dPort + " does not speak the binary protocol");
+            byte[][] data = new byte[filenames.size()][];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = dIn.readNBytes(filesizes.get(i));
+                if (data[i].length != filesizes.get(i))
+                    throw new IOException("Dstore " + dPort + " sent " + data[i].length + " bytes of " + filenames.get(i) + " instead of " + filesizes.get(i));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Download a file from a single Dstore.
+     */
+    public static byte[] download(int dPort, String filename, int filesize, int timeout) throws IOException {
+        return BenchmarkClient.download(dPort, filename, filesize, timeout, false);
+    }
+
+    /**
+     * @param binary boolean | send the request as a frame, right after the handshake(the Dstores of the system speak the binary protocol)
+     */
+    public static byte[] download(int dPort, String filename, int filesize, int timeout, boolean binary) throws IOException {
+        try (Socket dstore = new Socket("localhost", dPort)) {
+            dstore.setSoTimeout(timeout);
+            InputStream dIn = dstore.getInputStream();
+            if (binary) {
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                request.write(HANDSHAKE_LINE);
+                new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_DATA, 0).writeString(filename).writeTo(request);
+                request.writeTo(dstore.getOutputStream());
+                dIn = new BufferedInputStream(dIn);
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(dIn)))
+                    throw new IOException("Dstore " + dPort + " does not speak the binary protocol");
+            } else {
+                PrintWriter dOut = new PrintWriter(new OutputStreamWriter(dstore.getOutputStream()));
+                dOut.println(Protocol.LOAD_DATA_TOKEN + " " + filename);
+                dOut.flush();
+            }
+            byte[] data = dIn.readNBytes(filesize);
+            if (data.length != filesize)
+                throw new IOException("Dstore " + dPort + " sent " + data.length + " bytes instead of " + filesize);
+            return data;
+        }
+    }
+}
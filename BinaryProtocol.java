@@ -0,0 +1,333 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary framing of the protocol, which a connection can use instead of the text lines. The client opts in with its first line,
+ * "PROTOCOL BINARY", && the server answers with the same line, after which every message of the connection is a frame. A server answers
+ * "PROTOCOL TEXT" to a PROTOCOL line it does not speak && the connection stays on the text protocol. A client may send its first frames
+ * right after the handshake line, without waiting for the answer, to a server it knows speaks the framing(e.g. a Dstore to another Dstore).
+ * "PROTOCOL PIPELINED" is the same framing, but the Controller processes the requests of the connection concurrently && answers each one as
+ * soon as it is done, so the responses can come in any order && the client matches them to its requests by request id. A client that needs
+ * one request to be processed before another(e.g. a STORE before the LOAD of the same file) waits for the first response before sending
+ * the second one.
+ *
+ * frame = length | opcode | request id | fields
+ *  - length : varint, the number of bytes that follow it
+ *  - opcode : 1 byte, one per message of Protocol
+ *  - request id : varint, chosen by the client && repeated in the responses to the request
+ *  - fields : numbers are varints, strings are a varint byte length followed by the UTF-8 bytes
+ *
+ * The fields of each request && its responses, the lists run until the end of the frame :
+ *  LIST                         -> LIST filename1 filename2 ...
+ *  STORE filename filesize      -> STORE_TO port1 port2 ... , then STORE_COMPLETE
+ *  LOAD/RELOAD filename         -> LOAD_FROM port filesize
+ *  REMOVE filename              -> REMOVE_COMPLETE
+ *  STORE_BATCH filename1 filesize1 filename2 filesize2 ... -> STORE_BATCH_TO port1 count1 filename ... port2 count2 ... , then STORE_COMPLETE
+ *  LOAD_BATCH filename1 filename2 ...   -> LOAD_BATCH_FROM port1 count1 filename filesize ... port2 count2 ...
+ *  REMOVE_BATCH filename1 filename2 ... -> REMOVE_COMPLETE
+ *  LOAD_ALL filename            -> LOAD_ALL_FROM filesize port1 port2 ...
+ *  to a Dstore : STORE/REBALANCE_STORE filename filesize -> ACK, then the raw bytes of the file; LOAD_DATA filename -> the raw bytes of the file
+ *                LOAD_DATA filename offset length -> the raw bytes [offset, offset + length) of the file, cut at its end
+ *                STORE_BATCH filename1 filesize1 ... -> ACK, then the raw bytes of every file, one after the other
+ *                STORE_CHAIN filename filesize port2 port3 ... -> ACK(once the rest of the chain has ACKed), then the raw bytes of the file,
+ *                which the Dstore forwards to port2 with STORE_CHAIN filename filesize port3 ...
+ *                STORE_DEDUP filename filesize recipe_length, then the recipe(see ContentChunker) -> ACK, then a bitmap of the chunks the
+ *                Dstore does not have(1 bit per chunk, lowest bit first), then the raw bytes of those chunks, one after the other
+ *  ACK, the completes && the errors have no fields.
+ * A filename still cannot have spaces : the Controller passes it on to the Dstores(and to its metadata log) in text messages.
+ * The Controller <-> Dstore messages(JOIN, INVENTORY, the ACKs, REBALANCE) stay on the text protocol.
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class BinaryProtocol {
+    public static final String HANDSHAKE = Protocol.PROTOCOL_TOKEN + " " + Protocol.BINARY_TOKEN;
+    public static final String PIPELINED_HANDSHAKE = Protocol.PROTOCOL_TOKEN + " " + Protocol.PIPELINED_TOKEN;
+    public static final String DECLINED = Protocol.PROTOCOL_TOKEN + " " + Protocol.TEXT_TOKEN;
+    public static final int MAX_REQUEST_LENGTH = 64 * 1024;//the longest frame a server takes from a client
+
+    public static final byte LIST = 1;
+    public static final byte STORE = 2;
+    public static final byte LOAD = 3;
+    public static final byte LOAD_DATA = 4;
+    public static final byte RELOAD = 5;
+    public static final byte REMOVE = 6;
+    public static final byte STORE_TO = 7;
+    public static final byte STORE_COMPLETE = 8;
+    public static final byte LOAD_FROM = 9;
+    public static final byte REMOVE_COMPLETE = 10;
+    public static final byte ERROR_FILE_DOES_NOT_EXIST = 11;
+    public static final byte ERROR_FILE_ALREADY_EXISTS = 12;
+    public static final byte ERROR_NOT_ENOUGH_DSTORES = 13;
+    public static final byte ERROR_LOAD = 14;
+    public static final byte ACK = 15;
+    public static final byte REBALANCE_STORE = 16;
+    public static final byte STORE_BATCH = 17;
+    public static final byte LOAD_BATCH = 18;
+    public static final byte REMOVE_BATCH = 19;
+    public static final byte STORE_BATCH_TO = 20;
+    public static final byte LOAD_BATCH_FROM = 21;
+    public static final byte LOAD_ALL = 22;
+    public static final byte LOAD_ALL_FROM = 23;
+    public static final byte STORE_CHAIN = 24;
+    public static final byte STORE_DEDUP = 25;
+    public static final byte ERROR_BATCH_TOO_LARGE = 26;
+
+    //opcode => the token of the same message in the text protocol
+    private static final String[] TOKENS = {null, Protocol.LIST_TOKEN, Protocol.STORE_TOKEN, Protocol.LOAD_TOKEN, Protocol.LOAD_DATA_TOKEN,
+            Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN, Protocol.STORE_TO_TOKEN, Protocol.STORE_COMPLETE_TOKEN, Protocol.LOAD_FROM_TOKEN,
+            Protocol.REMOVE_COMPLETE_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN,
+            Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, Protocol.ERROR_LOAD_TOKEN, Protocol.ACK_TOKEN, Protocol.REBALANCE_STORE_TOKEN,
+            Protocol.STORE_BATCH_TOKEN, Protocol.LOAD_BATCH_TOKEN, Protocol.REMOVE_BATCH_TOKEN, Protocol.STORE_BATCH_TO_TOKEN, Protocol.LOAD_BATCH_FROM_TOKEN,
+            Protocol.LOAD_ALL_TOKEN, Protocol.LOAD_ALL_FROM_TOKEN, Protocol.STORE_CHAIN_TOKEN, Protocol.STORE_DEDUP_TOKEN, Protocol.ERROR_BATCH_TOO_LARGE_TOKEN};
+    private static final Map<String, Byte> OPCODES = new HashMap<String, Byte>();
+    static {
+        for (int i = 1; i < TOKENS.length; i++)
+            OPCODES.put(TOKENS[i], (byte) i);
+    }
+
+    /**
+     * @return String | the text token of the opcode, null if there is no such opcode
+     */
+    public static String getToken(byte opcode) {
+        return (opcode > 0 && opcode < TOKENS.length) ? TOKENS[opcode] : null;
+    }
+
+    /**
+     * @return byte | the opcode of the text token, -1 if the message has no binary form
+     */
+    public static byte getOpcode(String token) {
+        return OPCODES.getOrDefault(token, (byte) -1);
+    }
+
+    /**
+     * Read a text line(the handshake) byte by byte, so that nothing after it is taken from the stream.
+     *
+     * @return String | the line without its terminator, null if the stream has ended before it
+     */
+    public static String readLine(InputStream in) throws IOException {
+        byte[] line = new byte[64];
+        int length = 0;
+        for (int eachByte = in.read(); eachByte != '\n'; eachByte = in.read()) {
+            if (eachByte == -1)
+                return null;
+            if (length == line.length) {
+                if (length >= MAX_REQUEST_LENGTH)
+                    throw new IOException("Line longer than " + MAX_REQUEST_LENGTH + " bytes");
+                line = Arrays.copyOf(line, 2 * length);
+            }
+            line[length++] = (byte) eachByte;
+        }
+        if (length > 0 && line[length - 1] == '\r')
+            length--;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds one frame. The length prefix is only known at the end, so room for the longest one is left at the start of the buffer && the
+     * prefix is written right before the rest of the frame when it is sent.
+     */
+    public static class FRAME_WRITER {
+        private static final int LENGTH_ROOM = 5;//a frame is shorter than 2^35 bytes
+        private byte[] buffer;
+        private int end;
+        private int start;
+
+        public FRAME_WRITER(byte opcode, long requestId) {
+            this.buffer = new byte[128];
+            this.end = LENGTH_ROOM;
+            this.writeByte(opcode);
+            this.writeVarint(requestId);
+        }
+
+        public FRAME_WRITER writeVarint(long value) {
+            this.ensureRoom(10);
+            while ((value & ~0x7FL) != 0) {
+                this.buffer[this.end++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this.buffer[this.end++] = (byte) value;
+            return this;
+        }
+
+        public FRAME_WRITER writeString(String value) {
+            int length = value.length();
+            //filenames are nearly always ASCII, which is copied straight into the frame
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) >= 0x80) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    this.writeVarint(bytes.length);
+                    this.ensureRoom(bytes.length);
+                    System.arraycopy(bytes, 0, this.buffer, this.end, bytes.length);
+                    this.end += bytes.length;
+                    return this;
+                }
+            }
+            this.writeVarint(length);
+            this.ensureRoom(length);
+            for (int i = 0; i < length; i++)
+                this.buffer[this.end++] = (byte) value.charAt(i);
+            return this;
+        }
+
+        private void writeByte(byte value) {
+            this.ensureRoom(1);
+            this.buffer[this.end++] = value;
+        }
+
+        private void ensureRoom(int bytes) {
+            if (this.end + bytes > this.buffer.length)
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.end + bytes));
+        }
+
+        /**
+         * Write the length prefix in front of the frame.
+         *
+         * @return int | the size of the whole frame
+         */
+        private int finish() {
+            int length = this.end - LENGTH_ROOM;
+            int prefixLength = 1;
+            for (long rest = length >>> 7; rest != 0; rest >>>= 7)
+                prefixLength++;
+            this.start = LENGTH_ROOM - prefixLength;
+            int position = this.start;
+            while ((length & ~0x7F) != 0) {
+                this.buffer[position++] = (byte) ((length & 0x7F) | 0x80);
+                length >>>= 7;
+            }
+            this.buffer[position] = (byte) length;
+            return this.end - this.start;
+        }
+
+        /**
+         * Write the whole frame to out, in one write. It is not flushed.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            int size = this.finish();
+            out.write(this.buffer, this.start, size);
+        }
+
+        /**
+         * @return byte[] | the whole frame
+         */
+        public byte[] toByteArray() {
+            int size = this.finish();
+            return Arrays.copyOfRange(this.buffer, this.start, this.start + size);
+        }
+    }
+
+    /**
+     * A received frame, read field by field. It is either parsed in place from the buffer of the connection(parse), or read from a stream into
+     * its own buffer(read), && one object is reused for every frame of the connection.
+     */
+    public static class FRAME {
+        public byte opcode;
+        public long requestId;
+        private byte[] data = new byte[0];
+        private int position;
+        private int limit;
+
+        /**
+         * Take the frame that starts at bytes[from], if all of it is in bytes[from, to). The fields are read from bytes, which must not change
+         * until they have all been read.
+         *
+         * @return int | the size of the whole frame, 0 if it has not fully arrived yet
+         * @throws IOException | if the frame is longer than maxLength or has no header
+         */
+        public int parse(byte[] bytes, int from, int to, int maxLength) throws IOException {
+            long length = 0;
+            int position = from;
+            for (int shift = 0; ; shift += 7) {
+                if (position == to)
+                    return 0;
+                if (shift > 28)
+                    throw new IOException("Invalid frame length");
+                byte eachByte = bytes[position++];
+                length |= (long) (eachByte & 0x7F) << shift;
+                if (eachByte >= 0)
+                    break;
+            }
+            if (length > maxLength)
+                throw new IOException("Frame longer than " + maxLength + " bytes");
+            if (to - position < length)
+                return 0;
+            this.data = bytes;
+            this.position = position;
+            this.limit = position + (int) length;
+            this.readHeader();
+            return this.limit - from;
+        }
+
+        /**
+         * Read the next frame of the stream.
+         *
+         * @return boolean | false if the stream has ended before the frame
+         * @throws IOException | if the frame is longer than maxLength, has no header, or the stream ends inside it
+         */
+        public boolean read(InputStream in, int maxLength) throws IOException {
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int eachByte = in.read();
+                if (eachByte == -1) {
+                    if (shift == 0)
+                        return false;
+                    throw new EOFException("The connection ended inside a frame");
+                }
+                if (shift > 28)
+                    throw new IOException("Invalid frame length");
+                length |= (long) (eachByte & 0x7F) << shift;
+                if (eachByte < 0x80)
+                    break;
+            }
+            if (length > maxLength)
+                throw new IOException("Frame longer than " + maxLength + " bytes");
+            if (this.data.length < length)
+                this.data = new byte[(int) Math.max(length, Math.min(2L * this.data.length, maxLength))];
+            if (in.readNBytes(this.data, 0, (int) length) != length)
+                throw new EOFException("The connection ended inside a frame");
+            this.position = 0;
+            this.limit = (int) length;
+            this.readHeader();
+            return true;
+        }
+
+        private void readHeader() throws IOException {
+            if (this.position == this.limit)
+                throw new IOException("Frame without an opcode");
+            this.opcode = this.data[this.position++];
+            this.requestId = this.readVarint();
+        }
+
+        public boolean hasRemaining() {
+            return this.position < this.limit;
+        }
+
+        public long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.position == this.limit)
+                    throw new IOException("Truncated frame");
+                byte eachByte = this.data[this.position++];
+                value |= (long) (eachByte & 0x7F) << shift;
+                if (eachByte >= 0)
+                    return value;
+            }
+            throw new IOException("Invalid varint");
+        }
+
+        public String readString() throws IOException {
+            long length = this.readVarint();
+            if (length > this.limit - this.position)
+                throw new IOException("Truncated frame");
+            String value = new String(this.data, this.position, (int) length, StandardCharsets.UTF_8);
+            this.position += (int) length;
+            return value;
+        }
+    }
+}
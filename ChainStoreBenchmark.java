@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+/**
+ * Large file upload benchmark - STOREs the same number of files with one upload per replica(STORE_TO) && with one upload forwarded along
+ * the replicas(STORE_CHAIN), checks that every replica of the chained files has the whole file, && prints the ms per STORE of each && the
+ * MB the client uploads for one STORE.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java ChainStoreBenchmark cport timeout [file_mb] [stores] [protocol(TEXT|BINARY)]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ChainStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int fileMb = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int stores = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        String protocol = args.length > 4 ? args[4] : Protocol.TEXT_TOKEN;
+
+        byte[] data = new byte[fileMb * 1024 * 1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + (i >>> 16));
+        BenchmarkClient client = new BenchmarkClient(cport, timeout, protocol);
+        client.connect();
+
+        System.out.println("mode\tms per STORE\tMB/s\tMB uploaded per STORE");
+        for (boolean chained : new boolean[]{false, true}) {
+            String prefix = "c" + Long.toString(System.nanoTime(), 36) + "_";
+            //the first STORE warms up the JIT
+            ChainStoreBenchmark.store(client, prefix + "warmup", data, chained);
+            long start = System.nanoTime();
+            for (int i = 0; i < stores; i++)
+                ChainStoreBenchmark.store(client, prefix + i, data, chained);
+            double millis = (System.nanoTime() - start) / 1e6 / stores;
+
+            long[] location = client.locateReplicas(prefix + 0);
+            if (chained) {
+                for (int i = 1; i < location.length; i++) {
+                    if (!Arrays.equals(BenchmarkClient.download((int) location[i], prefix + 0, data.length, timeout), data))
+                        throw new Exception("Wrong content on Dstore " + location[i]);
+                }
+            }
+            System.out.printf("%s\t%.1f\t%.0f\t%d%n", chained ? "chain" : "one upload per replica", millis, fileMb * 1000 / millis, chained ? fileMb : fileMb * (location.length - 1));
+
+            client.remove(prefix + "warmup");
+            for (int i = 0; i < stores; i++)
+                client.remove(prefix + i);
+        }
+        client.disconnect();
+    }
+
+    private static void store(BenchmarkClient client, String filename, byte[] data, boolean chained) throws Exception {
+        if (chained)
+            client.storeChain(filename, data);
+        else
+            client.store(filename, data);
+    }
+}
@@ -0,0 +1,54 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the per connection threads of the Controller && the Dstores(--threads=platform|virtual).
+ * Virtual threads need Java 21+, they are created by reflection so that the code still builds && runs on older JDKs, where virtual falls back to platform threads.
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ConnectionThreads {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    /**
+     * @param mode platform || virtual
+     * @param name the prefix of the thread names
+     * @return ThreadFactory
+     */
+    public static ThreadFactory create(String mode, String name) {
+        switch (mode) {
+            case PLATFORM:
+                return ConnectionThreads.platformThreads(name);
+            case VIRTUAL:
+                ThreadFactory virtualThreads = ConnectionThreads.virtualThreads(name);
+                if (virtualThreads != null)
+                    return virtualThreads;
+                System.out.println("Virtual threads are not available on Java " + Runtime.version().feature() + ", using platform threads.");
+                return ConnectionThreads.platformThreads(name);
+            default:
+                throw new IllegalArgumentException("Unknown thread mode : " + mode);
+        }
+    }
+
+    private static ThreadFactory platformThreads(String name) {
+        return runnable -> new Thread(runnable, name);
+    }
+
+    /**
+     * Thread.ofVirtual().name(name, 0).factory()
+     *
+     * @return ThreadFactory | null if the JVM has no virtual threads
+     */
+    private static ThreadFactory virtualThreads(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking, shared by the clients && the Dstores so that they cut the same bytes into the same chunks. A Gear rolling hash
+ * runs over the bytes && a chunk ends where the top bits of the hash are all 0(after MIN_CHUNK bytes, at MAX_CHUNK bytes at the latest),
+ * so the boundaries only depend on the last 64 bytes : an insert || a change in a file only changes the chunks around it, && two files
+ * that are mostly the same(e.g. two builds of the same artifact) share most of their chunks whatever their names are.
+ * Each chunk is named by the SHA-256 of its bytes.
+ *
+ * The recipe of a file(STORE_DEDUP) is the list of its chunks, RECIPE_ENTRY_LENGTH bytes each : the chunk length(4 bytes, big endian)
+ * && its SHA-256(32 bytes).
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ContentChunker {
+    public static final int MIN_CHUNK = 2 * 1024;
+    public static final int MAX_CHUNK = 64 * 1024;
+    public static final int HASH_LENGTH = 32;
+    public static final int RECIPE_ENTRY_LENGTH = 4 + HASH_LENGTH;
+    private static final long BOUNDARY_MASK = ((1L << 14) - 1) << 50;//14 bits, a chunk ends every 16 KB on average after MIN_CHUNK
+    private static final long[] GEAR = new long[256];
+    static {
+        //a fixed seed : every client && Dstore must have the same table
+        Random random = new Random(0x5DEECE66DL);
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private long hash = 0;
+    private int length = 0;//the bytes of the current chunk seen so far
+
+    /**
+     * One chunk of a file.
+     */
+    public static class CHUNK {
+        public final long offset;
+        public final int length;
+        public final byte[] hash;
+
+        public CHUNK(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Look for the end of the current chunk in bytes[from, to). The chunk carries on over the next calls if it does not end there.
+     *
+     * @return int | the index right after the last byte of the chunk, -1 if the chunk does not end in bytes[from, to)
+     */
+    public int findEnd(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            this.hash = (this.hash << 1) + GEAR[bytes[i] & 0xff];
+            this.length++;
+            if ((this.length >= MIN_CHUNK && (this.hash & BOUNDARY_MASK) == 0) || this.length >= MAX_CHUNK) {
+                this.hash = 0;
+                this.length = 0;
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Cut a whole file that is in memory.
+     */
+    public static List<CHUNK> chunk(byte[] data) {
+        List<CHUNK> chunks = new ArrayList<CHUNK>();
+        ContentChunker chunker = new ContentChunker();
+        MessageDigest digest = ContentChunker.newDigest();
+        int start = 0;
+        while (start < data.length) {
+            int end = chunker.findEnd(data, start, data.length);
+            if (end == -1)
+                end = data.length;
+            digest.update(data, start, end - start);
+            chunks.add(new CHUNK(start, end - start, digest.digest()));
+            start = end;
+        }
+        return chunks;
+    }
+
+    public static byte[] encodeRecipe(List<CHUNK> chunks) {
+        ByteArrayOutputStream recipe = new ByteArrayOutputStream(chunks.size() * RECIPE_ENTRY_LENGTH);
+        try (DataOutputStream out = new DataOutputStream(recipe)) {
+            for (CHUNK eachChunk : chunks) {
+                out.writeInt(eachChunk.length);
+                out.write(eachChunk.hash);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return recipe.toByteArray();
+    }
+
+    /**
+     * Decode the entries of recipe[0, length) && add them to chunks, so that a recipe can be read && decoded part by part : the receiver
+     * never holds more of it than the sender has actually sent.
+     *
+     * @throws IOException | if length is not whole entries, || a chunk is longer than MAX_CHUNK || ends after fileSize
+     */
+    public static void decodeRecipe(byte[] recipe, int length, long fileSize, List<CHUNK> chunks) throws IOException {
+        if (length % RECIPE_ENTRY_LENGTH != 0)
+            throw new IOException("The recipe is " + length + " bytes, not a whole number of chunks");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(recipe, 0, length));
+        CHUNK last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        long offset = (last != null) ? last.offset + last.length : 0;
+        for (int i = 0; i < length / RECIPE_ENTRY_LENGTH; i++) {
+            int chunkLength = in.readInt();
+            byte[] hash = new byte[HASH_LENGTH];
+            in.readFully(hash);
+            if (chunkLength <= 0 || chunkLength > MAX_CHUNK)
+                throw new IOException("Chunk " + chunks.size() + " of the recipe is " + chunkLength + " bytes");
+            if (offset + chunkLength > fileSize)
+                throw new IOException("The chunks of the recipe add up to more than " + fileSize + " bytes");
+            chunks.add(new CHUNK(offset, chunkLength, hash));
+            offset += chunkLength;
+        }
+    }
+
+    /**
+     * @throws IOException | if the decoded chunks do not add up to fileSize
+     */
+    public static void checkRecipe(List<CHUNK> chunks, long fileSize) throws IOException {
+        CHUNK last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        long end = (last != null) ? last.offset + last.length : 0;
+        if (end != fileSize)
+            throw new IOException("The chunks of the recipe add up to " + end + " bytes instead of " + fileSize);
+    }
+
+    /**
+     * @return long | the longest recipe a file of fileSize bytes can have
+     */
+    public static long maxRecipeLength(long fileSize) {
+        return (fileSize / MIN_CHUNK + 1) * RECIPE_ENTRY_LENGTH;
+    }
+
+    public static boolean matches(byte[] bytes, int from, int length, byte[] hash) {
+        MessageDigest digest = ContentChunker.newDigest();
+        digest.update(bytes, from, length);
+        return Arrays.equals(digest.digest(), hash);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
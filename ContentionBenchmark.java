@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Contention benchmark for the Controller - runs STORE + REMOVE pairs on different files from an increasing number of concurrent clients
+ * && prints the throughput for each client count. With per-file locking the throughput should keep growing with the client count
+ * until the Dstores/network become the bottleneck.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java ContentionBenchmark cport timeout [max_clients] [operations_per_client] [file_size]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ContentionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int maxClients = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        final int operations = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        int fileSize = args.length > 4 ? Integer.parseInt(args[4]) : 1024;
+        final byte[] data = new byte[fileSize];
+
+        System.out.println("clients\toperations\tseconds\toperations/s\terrors");
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            final AtomicInteger errors = new AtomicInteger(0);
+            final String round = "r" + clients + "_" + System.nanoTime();
+            List<Thread> threads = new ArrayList<Thread>();
+
+            for (int i = 0; i < clients; i++) {
+                final String prefix = round + "_c" + i + "_";
+                threads.add(new Thread(() -> {
+                    BenchmarkClient client = new BenchmarkClient(cport, timeout);
+                    try {
+                        client.connect();
+                        for (int op = 0; op < operations; op++) {
+                            String filename = prefix + op;
+                            try {
+                                client.store(filename, data);
+                                client.remove(filename);
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        errors.addAndGet(operations);
+                    } finally {
+                        try { client.disconnect(); } catch (Exception e) { e.printStackTrace(); }
+                    }
+                }));
+            }
+
+            long start = System.nanoTime();
+            for (Thread eachThread : threads)
+                eachThread.start();
+            for (Thread eachThread : threads)
+                eachThread.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            //every STORE + REMOVE pair counts as 2 operations
+            int total = clients * operations * 2;
+            System.out.printf("%d\t%d\t%.3f\t%.1f\t%d%n", clients, total, seconds, total / seconds, errors.get());
+        }
+    }
+}
@@ -1,10 +1,58 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Controller class - this will be the entrypoint of the Distributed Storage.
@@ -18,22 +66,33 @@ public class Controller {
     //expected incoming requests from client
     private static final String STORE_OPERATION = Protocol.STORE_TOKEN;
     private static final String LOAD_OPERATION = Protocol.LOAD_TOKEN;
+    private static final String RELOAD_OPERATION = Protocol.RELOAD_TOKEN;
     private static final String REMOVE_OPERATION = Protocol.REMOVE_TOKEN; //this will also be used to send the request to the Dstores
     private static final String LIST_OPERATION = Protocol.LIST_TOKEN;
+    private static final String STORE_BATCH_OPERATION = Protocol.STORE_BATCH_TOKEN;
+    private static final String LOAD_BATCH_OPERATION = Protocol.LOAD_BATCH_TOKEN;
+    private static final String REMOVE_BATCH_OPERATION = Protocol.REMOVE_BATCH_TOKEN; //also sent to the Dstores, one per Dstore with all of its files
+    private static final String LOAD_ALL_OPERATION = Protocol.LOAD_ALL_TOKEN;
 
     //expected incoming requests from DStores
     private static final String STORE_ACK_DSTORE = Protocol.STORE_ACK_TOKEN;
     private static final String REMOVE_ACK_DSTORE = Protocol.REMOVE_ACK_TOKEN;
     public static final String JOIN_OPERATION = Protocol.JOIN_TOKEN;
+    private static final String REBALANCE_COMPLETE_DSTORE = Protocol.REBALANCE_COMPLETE_TOKEN;
+    private static final String HEARTBEAT_DSTORE = Protocol.HEARTBEAT_TOKEN;
+    private static final String INVENTORY_DSTORE = Protocol.INVENTORY_TOKEN;
 
     //outgoing requests
     //expected outgoing requests to client
     //store operation
     private static final String STORE_TO_RESPONSE = "STORE_TO";
     private static final String STORE_COMPLETE_RESPONSE = "STORE_COMPLETE";
+    private static final String STORE_BATCH_TO_RESPONSE = Protocol.STORE_BATCH_TO_TOKEN;
 
     //load operation
     private static final String LOAD_FROM_RESPONSE = "LOAD_FROM";
+    private static final String LOAD_BATCH_FROM_RESPONSE = Protocol.LOAD_BATCH_FROM_TOKEN;
+    private static final String LOAD_ALL_FROM_RESPONSE = Protocol.LOAD_ALL_FROM_TOKEN;
 
     //remove operation
     private static final String REMOVE_COMPLETE_RESPONSE = "REMOVE_COMPLETE";
@@ -44,10 +103,18 @@ public class Controller {
     private static final String DSTORE_STORE_IN_PROGRESS_STATUS = "STORE_IN_PROGRESS";
     private static final String DSTORE_REMOVE_IN_PROGRESS_STATUS = "REMOVE_IN_PROGRESS";
 
+    //File Statuses
+    private static final String FILE_STORE_IN_PROGRESS_STATUS = "STORE_IN_PROGRESS";
+    private static final String FILE_STORE_COMPLETE_STATUS = "STORE_COMPLETE";
+    private static final String FILE_REMOVE_IN_PROGRESS_STATUS = "REMOVE_IN_PROGRESS";
+
     //Process Statuses
     private static final String REMOVE_PROCESS = "REMOVE_PROCESS";
     private static final String STORE_PROCESS = "LIST_PROCESS";
 
+    //expected outgoing requests to Dstores
+    private static final String REBALANCE_REQUEST = Protocol.REBALANCE_TOKEN;
+
     //list operation
     private static final String LIST_RESPONSE = "LIST";
 
@@ -55,29 +122,97 @@ public class Controller {
     private static final String ERROR_FILE_ALREADY_EXISTS = "ERROR_FILE_ALREADY_EXISTS";
     private static final String ERROR_FILE_DOES_NOT_EXIST = "ERROR_FILE_DOES_NOT_EXIST";
     private static final String ERROR_NOT_ENOUGH_DSTORES = "ERROR_NOT_ENOUGH_DSTORES";
+    private static final String ERROR_LOAD = Protocol.ERROR_LOAD_TOKEN;
+    private static final String ERROR_BATCH_TOO_LARGE = Protocol.ERROR_BATCH_TOO_LARGE_TOKEN;
 
     /* Define constants end */
 
     static private int cPort;//the port where the controller will listen on
     static private int rFactor;//the minimum number of DStores that should be in use
-    static private int currRFator = 0;//initially will be 0
-    static private int timeoutPer;//the time it should wait for a DStore to do something todo look exactly what's this
-    static private int timeoutForNewReb;//the time it should wait for the next rebalance operation to start
+    static private volatile int currRFator = 0;//initially will be 0
+    static private int timeoutPer;//the time(ms) it should wait for the Dstores to ACK a STORE/REMOVE before giving up on it
+    static private int timeoutForNewReb;//the time(seconds) it should wait for the next rebalance operation to start
+    static private Map<String, String> options = new HashMap<String, String>();//the optional startup flags, given as --name=value after the required arguments
+    static private PLACEMENT_STRATEGY placementStrategy;//decides which Dstores get the replicas of a new file
+    static private String ioMode;//threads : a thread per connection, nio : selector threads && a worker pool(NIO_FRONT_END)
+    static private ThreadFactory connectionThreads;//creates the thread of each connection in the threaded front end, platform or virtual threads
+    static private final int ACCEPT_BACKLOG = 1024;//connections waiting to be accepted, the default(50) refuses bursts of clients
+    static private final int NIO_MAX_QUEUED_REQUESTS = 1024;//a NIO session is not read anymore while it has this many requests waiting
+    static private final int NIO_MAX_QUEUED_BYTES = 1024 * 1024;//or while this many bytes of its responses wait for the client to read them
+    static private final int NIO_MAX_DSTORE_LINE_LENGTH = 16 * 1024 * 1024;//the longest line of a joined Dstore(e.g. the ACK of a big batch)
+    static private final int MAX_BATCH_FILES = 1000;//the most files a STORE_BATCH/LOAD_BATCH/REMOVE_BATCH can have
+    static private final int MAX_LOAD_ATTEMPTS = 64;//the files a session remembers the tried Dstores of, for RELOAD
+    static private int dstoreMaxInFlight;//the number of STORE/REMOVE operations a Dstore can have in progress before it stops getting new files
+    static private int pipelineMaxInFlight;//the number of requests of a pipelined session that are processed at the same time
+    static private ExecutorService pipelineWorkers;//process the requests of the pipelined sessions of the threaded front end
     static private ServerSocket socket;//the socket where all the communications will happen(both with DStore and Client)
-    static private List<DSTORE_DATA> dStores = new ArrayList<DSTORE_DATA>(); //for saving && keeping track of all Dstores(this is the index from the specSheet);
-    static private List<ONGOING_PROCESS> ongoingProcesses = new ArrayList<ONGOING_PROCESS>();
-    static private Object lock = new Object();//for thread locking
+    static private List<DSTORE_DATA> dStores = new CopyOnWriteArrayList<DSTORE_DATA>(); //for saving && keeping track of all Dstores(this is the index from the specSheet). Can be read without locking;
+    static private ConcurrentHashMap<Integer, DSTORE_DATA> dStoresByPort = new ConcurrentHashMap<Integer, DSTORE_DATA>(); //port => Dstore, for the Dstores from dStores
+    static private final StampedLock rebalanceGate = new StampedLock();//STORE/REMOVE operations hold a read stamp until they finish, a rebalance holds the write stamp
+    static private final ArrayDeque<Runnable> gateWaiters = new ArrayDeque<Runnable>();//the NIO requests parked until the rebalance gate opens, guarded by itself
+    static private boolean gateClosing = false;//true while a rebalance waits for || holds the write stamp, guarded by gateWaiters
+    static private ScheduledExecutorService rebalanceScheduler = Executors.newSingleThreadScheduledExecutor();//runs the rebalances, one at a time
+    static private ScheduledExecutorService failureDetectorScheduler = Executors.newSingleThreadScheduledExecutor();//runs the FAILURE_DETECTOR
+    static private METADATA_LOG metadataLog;//the durable log of the index, null unless --metadata-dir is given
+    static private ScheduledExecutorService snapshotScheduler = Executors.newSingleThreadScheduledExecutor();//writes the metadata snapshots
+    static private ConcurrentHashMap<Integer, List<FILE_ENTRY>> recoveredReplicas = new ConcurrentHashMap<Integer, List<FILE_ENTRY>>();//port => recovered files, attached when the Dstore joins again
+    static private volatile REBALANCE_OPERATION currentRebalance;//the rebalance waiting for REBALANCE_COMPLETE, if any
+    static private final Comparator<FILE_ENTRY> FILE_SIZE_ORDER = Comparator.<FILE_ENTRY>comparingLong(file -> file.fileSize).thenComparing(file -> file.fileName);//smallest files first
+    static private ExecutorService completionExecutor = Executors.newCachedThreadPool();//runs the STORE/REMOVE completion handlers, so they never block the Dstore sessions
+    static private ExecutorService controlExecutor = Executors.newCachedThreadPool();//writes the queued commands of the Dstore control channels
+    static private ConcurrentHashMap<String, FILE_ENTRY> fileIndex = new ConcurrentHashMap<String, FILE_ENTRY>(); //filename => file entry, the global index of every file in the system
+    static private ConcurrentHashMap<String, ConcurrentHashMap<String, ONGOING_PROCESS>> ongoingProcesses = new ConcurrentHashMap<String, ConcurrentHashMap<String, ONGOING_PROCESS>>(); //process type => (filename => process)
+    static private AtomicInteger ongoingProcessCount = new AtomicInteger(0); //number of in-flight STORE/REMOVE operations, for monitoring
+    static private final Object dstoresLock = new Object();//for changes to the Dstore membership(JOIN/drop) only
+    static private final Object[] fileLocks = new Object[64];//striped locks for the index, a file is always guarded by the same stripe
+    static {
+        for (int i = 0; i < fileLocks.length; i++)
+            fileLocks[i] = new Object();
+    }
 
     //
 
+    /**
+     * The class that represents each file from the index. There is only one entry per filename, shared between the global index and the Dstores that hold a replica.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class FILE_ENTRY {
+        public final String fileName;
+        public final long fileSize;
+        public volatile String state;
+        public Set<Integer> dPorts = ConcurrentHashMap.newKeySet(); //the Dstores that hold a replica of the file
+
+        public FILE_ENTRY(String fileName, long fileSize, String state) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.state = state;
+        }
+
+        public boolean isStoreComplete() {
+            return this.state.equals(Controller.FILE_STORE_COMPLETE_STATUS);
+        }
+    }
+
     /**
      * The class that represents each Database. This will be dynamically updated based on Client's request && Dstore's responses.
      * @author Andrei123f(ap4u19@soton.ac.uk)
      */
     class DSTORE_DATA {
         public int dPort;
-        public String status = Controller.DSTORE_IDLE_STATUS;
-        public List<HashMap<String, String>> files = new ArrayList<HashMap<String, String>>();
+        public volatile String status = Controller.DSTORE_IDLE_STATUS;
+        public Map<String, FILE_ENTRY> files = new ConcurrentHashMap<String, FILE_ENTRY>(); //reverse index : filename => file entry, for the files this Dstore holds
+        public final AtomicLong storedBytes = new AtomicLong(0); //total size of the files from the reverse index
+        public final AtomicLong pendingBytes = new AtomicLong(0); //total size of the files that are being stored on this Dstore
+        public final AtomicInteger inFlight = new AtomicInteger(0); //number of STORE/REMOVE operations in progress on this Dstore
+        public volatile CONTROL_CHANNEL control; //the JOIN connection, for sending commands to the Dstore
+        public volatile long lastHeardNanos = System.nanoTime(); //when the Dstore last sent anything(a HEARTBEAT or any other message)
+        public volatile boolean suspect = false; //missed a few heartbeats, not picked for new files/downloads while there are other Dstores
+        public final AtomicInteger inventoryPending = new AtomicInteger(0); //number of files the Dstore announced on JOIN && has not reported yet
+        public Map<String, FILE_ENTRY> unconfirmedReplicas = new ConcurrentHashMap<String, FILE_ENTRY>(); //recovered replicas, dropped unless the inventory has them
+        public Set<String> strayFiles = ConcurrentHashMap.newKeySet(); //files on the Dstore's disk that are not part of the index, removed by the next rebalance
+        private volatile long loadWindow = 0; //the second the recent LOAD counter is for
+        private final AtomicInteger recentLoads = new AtomicInteger(0); //number of clients sent to this Dstore by LOAD/RELOAD in the current second
+        private boolean dropped = false; //removed from the membership, no replica is added to it anymore(guarded by the Dstore's monitor)
 
         public DSTORE_DATA(int dPort) {
             this.dPort = dPort;
@@ -87,46 +222,364 @@ public class Controller {
             this.status = status;
         }
 
-        public void addFile(String fileName, String fileSize) {
-            HashMap<String, String> file = new HashMap<String, String>();
-            file.put("filename", fileName);
-            file.put("filesize", fileSize);
-            this.files.add(file);
+        /**
+         * Mark the start of a STORE/REMOVE on this Dstore.
+         *
+         * @param status String
+         * @param bytes long | the size of the file that is being stored, 0 for a REMOVE
+         */
+        public void startOperation(String status, long bytes) {
+            this.inFlight.incrementAndGet();
+            this.pendingBytes.addAndGet(bytes);
+            this.updateStatus(status);
+        }
+
+        public void finishOperation(long bytes) {
+            this.pendingBytes.addAndGet(-bytes);
+            if (this.inFlight.decrementAndGet() <= 0)
+                this.updateStatus(Controller.DSTORE_IDLE_STATUS);
+        }
+
+        /**
+         * A Dstore can get new files if it is idle or still under its concurrency limit, && it is not suspected to have failed.
+         *
+         * @return boolean
+         */
+        public boolean isAvailable() {
+            return !this.suspect && this.inFlight.get() < Controller.dstoreMaxInFlight;
+        }
+
+        /**
+         * Called for every message the Dstore sends, it proves the Dstore is alive.
+         */
+        public void heard() {
+            this.lastHeardNanos = System.nanoTime();
+            this.suspect = false;
+        }
+
+        /**
+         * Count a client that has been sent to this Dstore to download a file.
+         */
+        public void recordLoad() {
+            this.getRecentLoads();
+            this.recentLoads.incrementAndGet();
+        }
+
+        /**
+         * Number of clients sent to this Dstore to download a file in the current second. The counter starts from 0 every second.
+         *
+         * @return int
+         */
+        public int getRecentLoads() {
+            long currentWindow = System.currentTimeMillis() / 1000;
+            if (this.loadWindow != currentWindow) {
+                this.loadWindow = currentWindow;
+                this.recentLoads.set(0);
+            }
+            return this.recentLoads.get();
+        }
+
+        /**
+         * @return boolean | false if the Dstore has been dropped, the file is not added : its replicas are being removed from the index
+         */
+        public synchronized boolean addFile(FILE_ENTRY file) {
+            if (this.dropped)
+                return false;
+            if (this.files.put(file.fileName, file) == null)
+                this.storedBytes.addAndGet(file.fileSize);
+            file.dPorts.add(this.dPort);
+            return true;
+        }
+
+        /**
+         * Called before the replicas of a dropped Dstore are removed from the index, so that none is added behind that.
+         */
+        public synchronized void markDropped() {
+            this.dropped = true;
         }
 
         public void removeFile(String filename) {
-            int i = 0;
-            for (HashMap<String, String> currFile : this.files) {
-                if(currFile.get("filename").equals(filename)) {
-                    this.files.remove(i);
-                    break;
-                }
-                i++;
+            FILE_ENTRY file = this.files.remove(filename);
+            if (file != null) {
+                this.storedBytes.addAndGet(-file.fileSize);
+                file.dPorts.remove(this.dPort);
             }
         }
 
         public boolean hasFile(String fileName) {
-            for (HashMap<String, String> currFile : this.files) {
-                if (currFile.get("filename").equals(fileName)) {
-                    return true;
-                }
+            return this.files.containsKey(fileName);
+        }
+
+        public FILE_ENTRY getFileInfoByFileName(String filename)
+        {
+            return this.files.get(filename);
+        }
+
+    }
+
+    /**
+     * The control channel of a Dstore : its JOIN connection, reused for every command the Controller sends to it(REMOVE, REBALANCE).
+     * The commands are queued && written in order by one task at a time on the control executor, so the caller never waits for the Dstore
+     * && never writes to a socket while holding a lock.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class CONTROL_CHANNEL {
+        private final PrintWriter out;
+        private final Closeable connection;
+        private final Queue<String> commands = new ConcurrentLinkedQueue<String>();
+        private final AtomicBoolean writing = new AtomicBoolean(false);
+        private volatile boolean closed = false;
+
+        CONTROL_CHANNEL(PrintWriter out, Closeable connection) {
+            this.out = out;
+            this.connection = connection;
+        }
+
+        /**
+         * Queue a command for the Dstore.
+         *
+         * @return boolean | false if the channel is closed(the Dstore dropped), the command is not sent
+         */
+        boolean send(String command) {
+            if (this.closed)
+                return false;
+            this.commands.add(command);
+            this.scheduleWrite();
+            return true;
+        }
+
+        /**
+         * Stop sending commands && close the JOIN connection(the Dstore dropped or has been declared dead).
+         */
+        void close() {
+            this.closed = true;
+            this.commands.clear();
+            try {
+                this.connection.close();
+            } catch (IOException e) {
+                //already closed
             }
+        }
 
-            return false;
+        private void scheduleWrite() {
+            if (!this.commands.isEmpty() && this.writing.compareAndSet(false, true))
+                Controller.controlExecutor.execute(this::writeCommands);
         }
 
-        public HashMap<String, String> getFileInfoByFileName(String filename)
-        {
-            int i = 0;
-            for (HashMap<String, String> currFile : this.files) {
-                if(currFile.get("filename").equals(filename)) {
-                    return this.files.get(i);
-                }
-                i++;
+        private void writeCommands() {
+            try {
+                for (String command = this.commands.poll(); command != null && !this.closed; command = this.commands.poll())
+                    this.out.println(command);
+                this.out.flush();
+                if (this.out.checkError())
+                    this.closed = true;
+            } finally {
+                this.writing.set(false);
             }
-            return null;
+            //a command queued while the last one was being written
+            this.scheduleWrite();
+        }
+    }
+
+    /**
+     * Decides which Dstores will get the replicas of a new file. Chosen at startup with --placement=name.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    interface PLACEMENT_STRATEGY {
+        /**
+         * @param candidates the Dstores that are available for a new file(never fewer than r)
+         * @param r the number of Dstores to select
+         * @param filename the file that is being stored
+         * @return the selected Dstores
+         */
+        List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename);
+
+        /**
+         * Called when a Dstore joins.
+         * @param dPort the port of the Dstore
+         */
+        default void dstoreJoined(int dPort) {}
+
+        /**
+         * Called when a Dstore drops.
+         * @param dPort the port of the Dstore
+         */
+        default void dstoreLeft(int dPort) {}
+
+        /**
+         * The Dstores a file belongs on, for the strategies where that depends only on the filename && the membership.
+         * The rebalance uses them as the target placement instead of spreading the files evenly.
+         * @param filename the file
+         * @param r the number of Dstores to select
+         * @param dPorts the Dstores taking part in the rebalance
+         * @return the selected ports, or null if the strategy has no fixed place for a file
+         */
+        default List<Integer> getTargetDPorts(String filename, int r, Set<Integer> dPorts) { return null; }
+    }
+
+    /**
+     * Picks the Dstores with the fewest bytes stored, counting the files that are being stored on them as well.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class LEAST_BYTES_PLACEMENT implements PLACEMENT_STRATEGY {
+        public List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename) {
+            List<DSTORE_DATA> sorted = new ArrayList<DSTORE_DATA>(candidates);
+            sorted.sort(Comparator.comparingLong(eachDstore -> eachDstore.storedBytes.get() + eachDstore.pendingBytes.get()));
+            return sorted.subList(0, r);
+        }
+    }
+
+    /**
+     * Picks the Dstores with the fewest STORE/REMOVE operations in progress.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class FEWEST_IN_FLIGHT_PLACEMENT implements PLACEMENT_STRATEGY {
+        public List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename) {
+            List<DSTORE_DATA> sorted = new ArrayList<DSTORE_DATA>(candidates);
+            sorted.sort(Comparator.comparingInt(eachDstore -> eachDstore.inFlight.get()));
+            return sorted.subList(0, r);
+        }
+    }
+
+    /**
+     * Power of two random choices : for each replica, take 2 random Dstores && keep the less loaded one.
+     * Almost as well balanced as looking at every Dstore, without sorting them all.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class TWO_RANDOM_CHOICES_PLACEMENT implements PLACEMENT_STRATEGY {
+        public List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename) {
+            List<DSTORE_DATA> remaining = new ArrayList<DSTORE_DATA>(candidates);
+            List<DSTORE_DATA> selected = new ArrayList<DSTORE_DATA>();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            while (selected.size() < r) {
+                int first = random.nextInt(remaining.size());
+                int second = (remaining.size() == 1) ? first : (first + 1 + random.nextInt(remaining.size() - 1)) % remaining.size();
+                DSTORE_DATA firstDstore = remaining.get(first);
+                DSTORE_DATA secondDstore = remaining.get(second);
+                boolean pickFirst = firstDstore.inFlight.get() != secondDstore.inFlight.get()
+                        ? firstDstore.inFlight.get() < secondDstore.inFlight.get()
+                        : firstDstore.storedBytes.get() + firstDstore.pendingBytes.get() <= secondDstore.storedBytes.get() + secondDstore.pendingBytes.get();
+                selected.add(remaining.remove(pickFirst ? first : second));
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * Takes R consecutive Dstores, starting one after where the previous STORE started.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class ROUND_ROBIN_PLACEMENT implements PLACEMENT_STRATEGY {
+        private final AtomicInteger next = new AtomicInteger(0);
+
+        public List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename) {
+            int start = Math.floorMod(this.next.getAndIncrement(), candidates.size());
+            List<DSTORE_DATA> selected = new ArrayList<DSTORE_DATA>();
+            for (int i = 0; i < r; i++) {
+                selected.add(candidates.get((start + i) % candidates.size()));
+            }
+            return selected;
+        }
+    }
+
+    /**
+     * Consistent-hash ring with virtual nodes over the Dstore ports. The replicas of a file are the next R distinct Dstores clockwise
+     * from the hash of its filename, so a Dstore that joins or drops only changes the replicas of the files next to its own points(about 1/N of them).
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class HASH_RING {
+        private final int virtualNodes;
+        private final ConcurrentSkipListMap<Long, Integer> ring = new ConcurrentSkipListMap<Long, Integer>();//point => port
+
+        HASH_RING(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        void add(int dPort) {
+            for (int i = 0; i < this.virtualNodes; i++)
+                this.ring.put(HASH_RING.hash(dPort + "#" + i), dPort);
+        }
+
+        void remove(int dPort) {
+            for (int i = 0; i < this.virtualNodes; i++)
+                this.ring.remove(HASH_RING.hash(dPort + "#" + i), dPort);
+        }
+
+        /**
+         * Walk the ring clockwise from the hash of the filename && take the first r distinct ports that are allowed.
+         * @return the ports, fewer than r if there are not enough allowed ports on the ring
+         */
+        List<Integer> getReplicas(String filename, int r, Set<Integer> allowedDPorts) {
+            List<Integer> replicas = new ArrayList<Integer>(r);
+            long start = HASH_RING.hash(filename);
+            for (Iterator<Integer> points = HASH_RING.concat(this.ring.tailMap(start).values(), this.ring.headMap(start).values()); points.hasNext() && replicas.size() < r; ) {
+                Integer eachDPort = points.next();
+                if (allowedDPorts.contains(eachDPort) && !replicas.contains(eachDPort))
+                    replicas.add(eachDPort);
+            }
+            return replicas;
+        }
+
+        private static Iterator<Integer> concat(Collection<Integer> first, Collection<Integer> second) {
+            Iterator<Integer> firstIterator = first.iterator();
+            Iterator<Integer> secondIterator = second.iterator();
+            return new Iterator<Integer>() {
+                public boolean hasNext() { return firstIterator.hasNext() || secondIterator.hasNext(); }
+                public Integer next() { return firstIterator.hasNext() ? firstIterator.next() : secondIterator.next(); }
+            };
+        }
+
+        /**
+         * 64 bit FNV-1a, with a final mix so that similar names(file1, file2 ...) land far apart on the ring.
+         */
+        static long hash(String key) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                hash ^= key.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            hash ^= (hash >>> 33);
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= (hash >>> 33);
+            return hash;
+        }
+    }
+
+    /**
+     * Places the replicas on the consistent-hash ring(see HASH_RING). A STORE does not need to look at the index or the loads, && the
+     * rebalance moves each file to its ring Dstores, so a membership change only moves the files next to the Dstore that joined/dropped.
+     * Overloaded Dstores are skipped, the next rebalance moves the file to its ring Dstores.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class CONSISTENT_HASH_PLACEMENT implements PLACEMENT_STRATEGY {
+        private final HASH_RING ring;
+
+        CONSISTENT_HASH_PLACEMENT(int virtualNodes) {
+            this.ring = new HASH_RING(virtualNodes);
         }
 
+        public List<DSTORE_DATA> selectDstores(List<DSTORE_DATA> candidates, int r, String filename) {
+            Map<Integer, DSTORE_DATA> candidatesByPort = new HashMap<Integer, DSTORE_DATA>();
+            for (DSTORE_DATA eachDstore : candidates)
+                candidatesByPort.put(eachDstore.dPort, eachDstore);
+
+            List<DSTORE_DATA> selected = new ArrayList<DSTORE_DATA>(r);
+            for (Integer eachDPort : this.ring.getReplicas(filename, r, candidatesByPort.keySet()))
+                selected.add(candidatesByPort.remove(eachDPort));
+            //a Dstore that joined while the ring was being read is not on it yet
+            for (Iterator<DSTORE_DATA> rest = candidatesByPort.values().iterator(); selected.size() < r; )
+                selected.add(rest.next());
+            return selected;
+        }
+
+        public void dstoreJoined(int dPort) { this.ring.add(dPort); }
+
+        public void dstoreLeft(int dPort) { this.ring.remove(dPort); }
+
+        public List<Integer> getTargetDPorts(String filename, int r, Set<Integer> dPorts) {
+            return this.ring.getReplicas(filename, r, dPorts);
+        }
     }
 
     /**
@@ -136,6 +589,10 @@ public class Controller {
     class INCOMING_REQUEST {
         public String operation;
         public Map<String, String> arguments = new HashMap<String, String>();
+        public String[] segments; //the raw request, for the requests with a variable number of arguments(INVENTORY)
+        public String[] filenames; //the files of a batch, && of a STORE_ACK/REMOVE_ACK(which can have more than one file)
+        public long[] filesizes; //the sizes of the files of a STORE_BATCH
+        public long requestId; //the id of a request that came in a frame, repeated in its responses
         public boolean invalidOperation = false;
         public boolean invalidArguments = false;
 
@@ -143,9 +600,76 @@ public class Controller {
             this.initRequestStructure(request);
         }
 
+        /**
+         * For a request of a binary session. Only the client requests have a binary form.
+         */
+        public INCOMING_REQUEST(BinaryProtocol.FRAME frame) {
+            this.requestId = frame.requestId;
+            this.operation = BinaryProtocol.getToken(frame.opcode);
+            try {
+                switch (frame.opcode) {
+                    case BinaryProtocol.LIST:
+                        break;
+                    case BinaryProtocol.STORE:
+                        this.arguments.put("filename", frame.readString());
+                        this.arguments.put("filesize", Long.toString(frame.readVarint()));
+                        break;
+                    case BinaryProtocol.LOAD:
+                    case BinaryProtocol.RELOAD:
+                    case BinaryProtocol.LOAD_ALL:
+                    case BinaryProtocol.REMOVE:
+                        this.arguments.put("filename", frame.readString());
+                        break;
+                    case BinaryProtocol.STORE_BATCH:
+                    case BinaryProtocol.LOAD_BATCH:
+                    case BinaryProtocol.REMOVE_BATCH:
+                        List<String> filenames = new ArrayList<String>();
+                        List<Long> filesizes = new ArrayList<Long>();
+                        while (frame.hasRemaining()) {
+                            filenames.add(frame.readString());
+                            if (frame.opcode == BinaryProtocol.STORE_BATCH)
+                                filesizes.add(frame.readVarint());
+                        }
+                        this.filenames = filenames.toArray(new String[0]);
+                        this.filesizes = filesizes.stream().mapToLong(Long::longValue).toArray();
+                        break;
+                    default:
+                        this.invalidOperation = true;
+                        return;
+                }
+                String filename = this.arguments.get("filename");
+                //the filename goes on to the Dstores && the metadata log in text messages
+                this.invalidArguments = frame.hasRemaining() || (filename != null && !INCOMING_REQUEST.isValidFilename(filename))
+                        || (this.filenames != null && this.filenames.length == 0);
+                for (int i = 0; this.filenames != null && i < this.filenames.length; i++)
+                    this.invalidArguments |= !INCOMING_REQUEST.isValidFilename(this.filenames[i]);
+            } catch (IOException e) {
+                this.invalidArguments = true;
+            }
+        }
+
+        /**
+         * @return String | the request as it would have been sent in the text protocol, for the logs
+         */
+        public String describe() {
+            StringBuilder request = new StringBuilder(String.valueOf(this.operation));
+            if (this.arguments.containsKey("filename"))
+                request.append(" ").append(this.arguments.get("filename"));
+            if (this.arguments.containsKey("filesize"))
+                request.append(" ").append(this.arguments.get("filesize"));
+            if (this.filenames != null)
+                request.append(" (").append(this.filenames.length).append(" files)");
+            return request.append(" (request ").append(this.requestId).append(")").toString();
+        }
+
+        private static boolean isValidFilename(String filename) {
+            return !filename.isEmpty() && filename.indexOf(' ') < 0 && filename.indexOf('\n') < 0;
+        }
+
         private void initRequestStructure(String request) {
             //split the request by spaces
             String segments[] = request.split(" ");
+            this.segments = segments;
             //get the request type
             String request_type = segments[0];
             //decide if the the request type is correct or not
@@ -161,10 +685,32 @@ public class Controller {
                     this.operation = Controller.LOAD_OPERATION;
                     this.prepareLoadOperation(segments);
                     break;
+                case Controller.RELOAD_OPERATION:
+                    //expected request : RELOAD filename
+                    this.operation = Controller.RELOAD_OPERATION;
+                    this.prepareLoadOperation(segments);
+                    break;
                 case Controller.REMOVE_OPERATION:
                     this.operation = Controller.REMOVE_OPERATION;
                     this.prepareRemoveOperation(segments);
                     break;
+                case Controller.LOAD_ALL_OPERATION:
+                    //expected request : LOAD_ALL filename
+                    this.operation = Controller.LOAD_ALL_OPERATION;
+                    this.prepareLoadOperation(segments);
+                    break;
+                case Controller.STORE_BATCH_OPERATION:
+                    this.operation = Controller.STORE_BATCH_OPERATION;
+                    this.prepareBatchOperation(segments, true);
+                    break;
+                case Controller.LOAD_BATCH_OPERATION:
+                    this.operation = Controller.LOAD_BATCH_OPERATION;
+                    this.prepareBatchOperation(segments, false);
+                    break;
+                case Controller.REMOVE_BATCH_OPERATION:
+                    this.operation = Controller.REMOVE_BATCH_OPERATION;
+                    this.prepareBatchOperation(segments, false);
+                    break;
                 case Controller.JOIN_OPERATION:
                     this.operation = Controller.JOIN_OPERATION;
                     this.prepareJoinOperation(segments);
@@ -177,6 +723,26 @@ public class Controller {
                     this.operation = Controller.REMOVE_ACK_DSTORE;
                     this.prepareRemoveACKOperation(segments);
                     break;
+                case Controller.REBALANCE_COMPLETE_DSTORE:
+                    //expected request : REBALANCE_COMPLETE
+                    this.operation = Controller.REBALANCE_COMPLETE_DSTORE;
+                    this.invalidArguments = segments.length != 1;
+                    break;
+                case Controller.HEARTBEAT_DSTORE:
+                    //expected request : HEARTBEAT
+                    this.operation = Controller.HEARTBEAT_DSTORE;
+                    this.invalidArguments = segments.length != 1;
+                    break;
+                case Controller.INVENTORY_DSTORE:
+                    //expected request : INVENTORY filename1 filesize1 filename2 filesize2 ...
+                    this.operation = Controller.INVENTORY_DSTORE;
+                    this.invalidArguments = segments.length < 3 || segments.length % 2 != 1;
+                    break;
+                case Controller.ERROR_FILE_DOES_NOT_EXIST:
+                    //expected request from Dstores : ERROR_FILE_DOES_NOT_EXIST filename
+                    this.operation = Controller.ERROR_FILE_DOES_NOT_EXIST;
+                    this.prepareRemoveACKOperation(segments);
+                    break;
                 default:
                     this.invalidOperation = true;
                     break;
@@ -211,49 +777,76 @@ public class Controller {
             this.arguments.put("filename", requestSegments[1]);
         }
 
+        private void prepareBatchOperation(String[] requestSegments, boolean withSizes) {
+            //expected request : STORE_BATCH filename1 filesize1 filename2 filesize2 ... || LOAD_BATCH/REMOVE_BATCH filename1 filename2 ...
+            int fields = withSizes ? 2 : 1;
+            if (requestSegments.length < 2 || (requestSegments.length - 1) % fields != 0) {
+                this.invalidArguments = true;
+                return;
+            }
+            this.filenames = new String[(requestSegments.length - 1) / fields];
+            this.filesizes = new long[this.filenames.length];
+            for (int i = 0; i < this.filenames.length; i++) {
+                this.filenames[i] = requestSegments[1 + i * fields];
+                try {
+                    if (withSizes && (this.filesizes[i] = Long.parseLong(requestSegments[2 + i * fields])) < 0)
+                        this.invalidArguments = true;
+                } catch (NumberFormatException e) {
+                    this.invalidArguments = true;
+                }
+            }
+        }
+
         private void prepareJoinOperation(String[] requestSegments) {
-            //expected request : JOIN port
-            if (requestSegments.length != 2) {
+            //expected request : JOIN port [number_of_files], the Dstore reports that many files with INVENTORY right after
+            if (requestSegments.length != 2 && requestSegments.length != 3) {
                 this.invalidArguments = true;
                 return;
             }
             this.arguments.put("port", requestSegments[1]);
+            if (requestSegments.length == 3)
+                this.arguments.put("files", requestSegments[2]);
         }
 
         private void prepareStoreACKOperation(String[] requestSegments) {
-            //expected request : STORE_ACK filename
-            if (requestSegments.length != 2) {
+            //expected request : STORE_ACK filename1 filename2 ...(a single file, unless it is the ACK of a STORE_BATCH)
+            if (requestSegments.length < 2) {
                 this.invalidArguments = true;
                 return;
             }
-            this.arguments.put("filename", requestSegments[1]);
+            this.filenames = Arrays.copyOfRange(requestSegments, 1, requestSegments.length);
         }
 
         private void prepareRemoveACKOperation(String[] requestSegments) {
-            //expected request : REMOVE_ACK filename
-            if (requestSegments.length != 2) {
+            //expected request : REMOVE_ACK filename1 filename2 ...(a single file, unless it is the ACK of a REMOVE_BATCH)
+            if (requestSegments.length < 2) {
                 this.invalidArguments = true;
                 return;
             }
-            this.arguments.put("filename", requestSegments[1]);
+            this.filenames = Arrays.copyOfRange(requestSegments, 1, requestSegments.length);
         }
     }
 
     /**
      * The class that will be used for keeping track of ongoing Thread requests from the Client(Store and Remove).
      * This will be updated/deleted once we get every ACK response from the Dstores.
+     * The completion future is completed by the ACK handler that receives the last ACK, or completed exceptionally once timeoutPer has passed.
      * @author Andrei123f(ap4u19@soton.ac.uk)
      */
     class ONGOING_PROCESS {
         String processType;
         PrintWriter clientOutputStream;
         List<String> dPorts; //for internal use - used for data linking.
+        List<DSTORE_DATA> dstores = new ArrayList<DSTORE_DATA>(); //the Dstores affected by the process
+        FILE_ENTRY fileEntry;
         int numberOfSentRequests; //Number of DStores that we sent requests to
-        //volatile int numberOfReceivedSuccessRequests = 0; //initially will be 0 and we will increment when we receive a success response from Dstores
         private final AtomicInteger numberOfReceivedSuccessRequests = new AtomicInteger(0);
-        int numberOfReceivedFailureRequests = 0; //initially will be 0 and we will increment when we receive a failure response from Dstores todo currently not used at all.
+        private final Set<Integer> ackedDPorts = ConcurrentHashMap.newKeySet(); //so that a repeated ACK from the same Dstore is not counted twice
+        final CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        long gateStamp; //the read stamp on the rebalance gate, held until the process is finished
         public long ThreadId;
         public String fileName;
+        long requestId; //repeated in the response sent when the process is finished(binary sessions)
 
         public ONGOING_PROCESS(String processType, PrintWriter clientOutputStream, List<String> dPorts, int numberOfSentRequests, long ThreadId) {
             this.processType = processType;
@@ -263,6 +856,18 @@ public class Controller {
             this.ThreadId = ThreadId;
         }
 
+        /**
+         * Register a success ACK from the given Dstore && complete the process if it was the last one we were waiting for.
+         *
+         * @param dPort int | -1 if the Dstore is unknown
+         */
+        public void receivedSuccess(int dPort) {
+            if (dPort != -1 && !this.ackedDPorts.add(dPort))
+                return;
+            if (this.numberOfReceivedSuccessRequests.incrementAndGet() >= this.numberOfSentRequests)
+                this.completion.complete(null);
+        }
+
     }
 
     /**
@@ -273,14 +878,36 @@ public class Controller {
         private Socket clientSocket;
         private BufferedReader inStream;
         private PrintWriter outStream;
-        private boolean finishedOngoingRequest = false;
-        private ONGOING_PROCESS currentOngoingProcess;
-        private String request_type;//for handling when a dstore connection drops.
+        private volatile String request_type;//for handling when a dstore connection drops.
+        //filename => the Dstores this client has already been sent to, for RELOAD. Only the last MAX_LOAD_ATTEMPTS files loaded are kept : a
+        //successful download never tells the Controller that it is done, so the map would grow with every file the session loads
+        private Map<String, Set<Integer>> loadAttempts = Collections.synchronizedMap(new LinkedHashMap<String, Set<Integer>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<Integer>> eldest) {
+                return this.size() > Controller.MAX_LOAD_ATTEMPTS;
+            }
+        });
         private String dPort; //for handling when a dstore connection drops
-        private List<DSTORE_DATA> dstoresAffected = new ArrayList<DSTORE_DATA>();
+        private DSTORE_DATA dstore; //the Dstore that joined on this session
+        private Closeable connection; //closes this session
+        private volatile OutputStream binaryOut; //where the frames of a binary session go, null while the session speaks the text protocol
+        private volatile boolean pipelined = false; //true if the requests of the session are processed concurrently, see BinaryProtocol
+        private final ReentrantLock frameLock = new ReentrantLock(); //the completion handlers send frames too, a lock(not a monitor) keeps them whole
+        private Consumer<BooleanSupplier> resumeRequest; //NIO : queues a request parked on the rebalance gate again, null : the request waits on the gate
 
         public REQUEST_THREAD(Socket clientSocket) {
             this.clientSocket = clientSocket;
+            this.connection = clientSocket;
+        }
+
+        /**
+         * For a session of the NIO front end : the requests are read by the selector && handed over to processRequest, the responses go to outStream.
+         * A STORE/REMOVE that comes during a rebalance does not keep its worker, it is handed to resumeRequest once the rebalance is over.
+         */
+        public REQUEST_THREAD(PrintWriter outStream, Closeable connection, Consumer<BooleanSupplier> resumeRequest) {
+            this.outStream = outStream;
+            this.connection = connection;
+            this.resumeRequest = resumeRequest;
         }
 
         /**
@@ -289,515 +916,2121 @@ public class Controller {
          */
         public void run() {
             try {
-                this.inStream = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
+                InputStream in = new BufferedInputStream(this.clientSocket.getInputStream());
                 this.outStream = new PrintWriter(this.clientSocket.getOutputStream());
-                String operation = null;
-                String request = this.inStream.readLine();
-
-                while (request  != null) {
-                    try {
-                        System.out.println("Incoming request : " + request);
-                        ControllerLogger.getInstance().log("Incoming request : " + request);
-                        INCOMING_REQUEST formattedRequest = new INCOMING_REQUEST(request);
-
-                        if (formattedRequest.invalidOperation || formattedRequest.invalidArguments) {
-                            throw new Exception("Invalid request: " + request);
-                        }
-
-
-                        String response;
-                        operation = formattedRequest.operation;
-                        this.request_type = operation;
-                        switch (formattedRequest.operation) {
-                            case Controller.LIST_OPERATION:
-                                Thread.currentThread().setPriority(7);
-                                response = this.processListOperation();
-                                this.sendResponse(response, outStream);
-                                break;
-                            case Controller.STORE_OPERATION:
-                                response = this.processStoreOperation(formattedRequest.arguments.get("filename"), formattedRequest.arguments.get("filesize"), outStream);
-                                this.sendResponse(response, outStream);
-                                while (!this.finishedOngoingRequest) {
-                                    //check if we have finished.
-                                    this.checkIfSuccessStoreComplete();
-                                    //update the ongoing process
-                                    this.updateOngoingRequest(Controller.STORE_PROCESS);
-                                    Thread.sleep(10);
-                                }
-                                this.sendResponse(Controller.STORE_COMPLETE_RESPONSE, outStream);
-                                synchronized (Controller.lock) {
-                                    Controller.addFileToDstores(this.dstoresAffected, formattedRequest.arguments.get("filename"), formattedRequest.arguments.get("filesize"));
-                                    Controller.updateDstoreStatuses(this.dstoresAffected, Controller.DSTORE_IDLE_STATUS);
-                                    Controller.removeOngoingProcess(this.currentOngoingProcess);
-                                    this.dstoresAffected = new ArrayList<DSTORE_DATA>();
-                                }
-                                break;
-                            case Controller.LOAD_OPERATION:
-                                response = this.processLoadOperation(formattedRequest.arguments.get("filename"));
-                                this.sendResponse(response, outStream);
-                                break;
-                            case Controller.REMOVE_OPERATION:
-                                this.processRemoveOperation(formattedRequest.arguments.get("filename"), outStream);
-                                while (!this.finishedOngoingRequest) {
-                                    //check if we have finished.
-                                    this.checkIfSuccessRemoveComplete();
-                                    //update the ongoing process
-                                    this.updateOngoingRequest(Controller.REMOVE_PROCESS);
-                                    Thread.sleep(10);
-                                }
-                                this.sendResponse(Controller.REMOVE_COMPLETE_RESPONSE, outStream);
-                                synchronized (Controller.lock) {
-                                    Controller.removeFileFromDstores(this.dstoresAffected, formattedRequest.arguments.get("filename"));
-                                    Controller.updateDstoreStatuses(this.dstoresAffected, Controller.DSTORE_IDLE_STATUS);
-                                    Controller.removeOngoingProcess(this.currentOngoingProcess);
-                                    this.dstoresAffected = new ArrayList<DSTORE_DATA>();
-                                }
-                                break;
-                            case Controller.JOIN_OPERATION:
-                                Thread.currentThread().setPriority(7);
-                                this.processJoinOperation(formattedRequest.arguments.get("port"));
-                                break;
-                            case Controller.STORE_ACK_DSTORE:
-                                Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-                                this.processStoreACKOperation(formattedRequest.arguments.get("filename"), this.clientSocket.getPort());
-                                break;
-                            case Controller.REMOVE_ACK_DSTORE:
-                                Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-                                this.processRemoveACKOperation(formattedRequest.arguments.get("filename"), clientSocket.getPort());
-                                break;
-                        }
-                    } catch (Throwable e) {
-                        this.processError((e.getMessage() != null ? e.getMessage() : e.toString()), outStream);
+                //the first line is read straight from the stream, so that the frames of a binary session that follow it stay there
+                String request = BinaryProtocol.readLine(in);
+                this.inStream = new BufferedReader(new InputStreamReader(in));
+                if (Controller.isHandshake(request)) {
+                    if (this.processHandshake(request, new BufferedOutputStream(this.clientSocket.getOutputStream()))) {
+                        this.processFrames(in);
+                        request = null;
+                    } else {
+                        request = this.inStream.readLine();
                     }
+                }
 
+                while (request  != null) {
+                    this.processRequest(request);
                     request = this.inStream.readLine();
                 }
-                System.out.println("Session closed for operation : " + this.request_type + " curr N : " + Controller.currRFator);
+            } catch (Throwable e) {
+                this.processError((e.getMessage() != null ? e.getMessage() : e.toString()), outStream, 0);
+            }
+            this.processSessionEnd();
+        }
 
-                //for the cases when the session is either terminated/timed out/finished by the client/dstore
-                switch (this.request_type) {
-                    case Controller.JOIN_OPERATION:
-                        System.out.println("A connection with a Dstore(port : " + this.dPort  + ") just dropped. Updating index ... ");
-                        this.processDstoreDrop();
-                        System.out.println("Index updated.");
-                        break;
-                    case Controller.STORE_OPERATION:
-                        if(!this.finishedOngoingRequest) {
-                            System.out.println("Store operation has timed out/has been closed without finishing. Updating index.");
-                        }
-                    case Controller.REMOVE_OPERATION:
-                        if(!this.finishedOngoingRequest) {
-                            System.out.println("Remove operation has timed out/has been closed without finishing. Updating index.");
-                        }
-                    default:
-                        synchronized (Controller.lock) {
-                            Controller.checkIfDstoreConnectionExists();
-                        }
+        /**
+         * Read the frames of a binary session until it ends. In a pipelined session every request is handed to the pipeline workers, the
+         * reading stops(and so does the client, once the socket buffers are full) while --pipeline-max-in-flight requests are in progress.
+         */
+        private void processFrames(InputStream in) throws IOException, InterruptedException {
+            BinaryProtocol.FRAME frame = new BinaryProtocol.FRAME();
+            Semaphore inFlight = new Semaphore(Controller.pipelineMaxInFlight);
+            while (frame.read(in, BinaryProtocol.MAX_REQUEST_LENGTH)) {
+                INCOMING_REQUEST formattedRequest = new INCOMING_REQUEST(frame);
+                if (!this.pipelined) {
+                    this.processRequest(formattedRequest);
+                    continue;
                 }
+                inFlight.acquire();
+                Controller.pipelineWorkers.execute(() -> {
+                    try {
+                        this.processRequest(formattedRequest);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            //the session ends once the requests that are still in progress have been answered
+            inFlight.acquire(Controller.pipelineMaxInFlight);
+        }
 
-
-
-
-            } catch (Throwable e) {
-                this.processError((e.getMessage() != null ? e.getMessage() : e.toString()), outStream);
+        /**
+         * Answer the PROTOCOL line a session has started with : a binary session from then on for "PROTOCOL BINARY" && "PROTOCOL PIPELINED",
+         * "PROTOCOL TEXT" for anything else.
+         *
+         * @param out the stream the frames of the session go to
+         * @return boolean | true if the session speaks the binary protocol from now on
+         */
+        boolean processHandshake(String request, OutputStream out) {
+            ControllerLogger.getInstance().log("Incoming request : " + request);
+            if (!request.equals(BinaryProtocol.HANDSHAKE) && !request.equals(BinaryProtocol.PIPELINED_HANDSHAKE)) {
+                this.sendResponse(BinaryProtocol.DECLINED, this.outStream, 0);
+                return false;
             }
+            this.sendResponse(request, this.outStream, 0);
+            this.pipelined = request.equals(BinaryProtocol.PIPELINED_HANDSHAKE);
+            this.binaryOut = out;
+            return true;
+        }
+
+        /**
+         * @return boolean | true once the session has opted into pipelining
+         */
+        boolean isPipelined() {
+            return this.pipelined;
+        }
+
+        /**
+         * Validate, format && process a single request line of this session.
+         *
+         * @return boolean | false if the request has been parked until the rebalance gate opens(NIO sessions only)
+         */
+        boolean processRequest(String request) {
+            //heartbeats && inventories are not logged line by line, finishInventory logs a summary of the inventory
+            if (!request.equals(Controller.HEARTBEAT_DSTORE) && !request.startsWith(Controller.INVENTORY_DSTORE + " ")) {
+                System.out.println("Incoming request : " + request);
+                ControllerLogger.getInstance().log("Incoming request : " + request);
+            }
+            return this.processRequest(new INCOMING_REQUEST(request), request);
+        }
+
+        /**
+         * Process a request that came in a frame of a binary session.
+         *
+         * @return boolean | false if the request has been parked until the rebalance gate opens(NIO sessions only)
+         */
+        boolean processRequest(INCOMING_REQUEST formattedRequest) {
+            String request = formattedRequest.describe();
+            System.out.println("Incoming request : " + request);
+            ControllerLogger.getInstance().log("Incoming request : " + request);
+            return this.processRequest(formattedRequest, request);
+        }
+
+        private boolean processRequest(INCOMING_REQUEST formattedRequest, String request) {
+            long requestId = formattedRequest.requestId;
+            long gateStamp;
+            try {
+                if (formattedRequest.invalidOperation || formattedRequest.invalidArguments) {
+                    throw new Exception("Invalid request: " + request);
+                }
+
+
+                String response;
+                if (this.dstore != null)
+                    this.dstore.heard();
+                //a Dstore session stays a JOIN session, whatever it sends after joining
+                if (!Controller.JOIN_OPERATION.equals(this.request_type))
+                    this.request_type = formattedRequest.operation;
+                switch (formattedRequest.operation) {
+                    case Controller.LIST_OPERATION:
+                        Thread.currentThread().setPriority(7);
+                        if (this.binaryOut != null) {
+                            this.sendFrame(this.getListFrame(requestId));
+                        } else {
+                            response = this.processListOperation();
+                            this.sendResponse(response, outStream, requestId);
+                        }
+                        break;
+                    case Controller.STORE_OPERATION:
+                        if ((gateStamp = this.enterRebalanceGate(formattedRequest, request)) == 0)
+                            return false;
+                        ONGOING_PROCESS storeProcess = this.processStoreOperation(formattedRequest.arguments.get("filename"), formattedRequest.arguments.get("filesize"), outStream, gateStamp);
+                        storeProcess.requestId = requestId;
+                        if (this.binaryOut != null)
+                            this.sendFrame(this.getStoreToFrame(storeProcess));
+                        else
+                            this.sendResponse(this.getStoreToResponse(storeProcess), outStream, requestId);
+                        //STORE_COMPLETE is sent by whoever completes the process(the last STORE_ACK), this thread goes back to reading requests
+                        storeProcess.completion.orTimeout(Controller.timeoutPer, TimeUnit.MILLISECONDS)
+                                .whenCompleteAsync((ignored, error) -> this.finishStoreOperation(storeProcess, error), Controller.completionExecutor);
+                        break;
+                    case Controller.LOAD_OPERATION:
+                        this.processLoadOperation(formattedRequest.arguments.get("filename"), false, requestId);
+                        break;
+                    case Controller.RELOAD_OPERATION:
+                        this.processLoadOperation(formattedRequest.arguments.get("filename"), true, requestId);
+                        break;
+                    case Controller.LOAD_ALL_OPERATION:
+                        this.processLoadAllOperation(formattedRequest.arguments.get("filename"), requestId);
+                        break;
+                    case Controller.REMOVE_OPERATION:
+                        if ((gateStamp = this.enterRebalanceGate(formattedRequest, request)) == 0)
+                            return false;
+                        ONGOING_PROCESS removeProcess = this.processRemoveOperation(formattedRequest.arguments.get("filename"), outStream, gateStamp);
+                        removeProcess.requestId = requestId;
+                        removeProcess.completion.orTimeout(Controller.timeoutPer, TimeUnit.MILLISECONDS)
+                                .whenCompleteAsync((ignored, error) -> this.finishRemoveOperation(removeProcess, error), Controller.completionExecutor);
+                        break;
+                    case Controller.STORE_BATCH_OPERATION:
+                        Controller.checkBatchSize(Controller.STORE_BATCH_OPERATION, formattedRequest.filenames, formattedRequest.filesizes);
+                        if ((gateStamp = this.enterRebalanceGate(formattedRequest, request)) == 0)
+                            return false;
+                        this.processStoreBatchOperation(formattedRequest.filenames, formattedRequest.filesizes, requestId, gateStamp);
+                        break;
+                    case Controller.LOAD_BATCH_OPERATION:
+                        Controller.checkBatchSize(Controller.LOAD_BATCH_OPERATION, formattedRequest.filenames, null);
+                        this.processLoadBatchOperation(formattedRequest.filenames, requestId);
+                        break;
+                    case Controller.REMOVE_BATCH_OPERATION:
+                        Controller.checkBatchSize(Controller.REMOVE_BATCH_OPERATION, formattedRequest.filenames, null);
+                        if ((gateStamp = this.enterRebalanceGate(formattedRequest, request)) == 0)
+                            return false;
+                        this.processRemoveBatchOperation(formattedRequest.filenames, requestId, gateStamp);
+                        break;
+                    case Controller.JOIN_OPERATION:
+                        Thread.currentThread().setPriority(7);
+                        this.processJoinOperation(formattedRequest.arguments.get("port"), formattedRequest.arguments.get("files"));
+                        break;
+                    case Controller.INVENTORY_DSTORE:
+                        this.processInventoryOperation(formattedRequest.segments);
+                        break;
+                    case Controller.STORE_ACK_DSTORE:
+                        Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+                        this.processStoreACKOperation(formattedRequest.filenames, this.getSessionDPort());
+                        break;
+                    case Controller.REMOVE_ACK_DSTORE:
+                    case Controller.ERROR_FILE_DOES_NOT_EXIST:
+                        //a Dstore that does not have the file anymore is as good as a REMOVE_ACK
+                        Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+                        this.processRemoveACKOperation(formattedRequest.filenames, this.getSessionDPort());
+                        break;
+                    case Controller.REBALANCE_COMPLETE_DSTORE:
+                        this.processRebalanceCompleteOperation(this.getSessionDPort());
+                        break;
+                    case Controller.HEARTBEAT_DSTORE:
+                        //nothing else to do, the Dstore has been marked as heard above
+                        break;
+                }
+            } catch (Throwable e) {
+                this.processError((e.getMessage() != null ? e.getMessage() : e.toString()), outStream, requestId);
+            }
+            return true;
+        }
+
+        /**
+         * Take a read stamp on the rebalance gate for a STORE/REMOVE(or a batch of them). A thread of the threaded front end waits for a
+         * running rebalance to finish. An NIO worker is shared by every session, so it does not wait : the request is parked && processed
+         * again from the start, on a worker of its session, once the gate opens.
+         *
+         * @return long | the read stamp, 0 if the request has been parked
+         */
+        private long enterRebalanceGate(INCOMING_REQUEST formattedRequest, String request) {
+            if (this.resumeRequest == null)
+                return Controller.rebalanceGate.readLock();
+            return Controller.tryEnterRebalanceGate(() -> this.resumeRequest.accept(() -> this.processRequest(formattedRequest, request)));
+        }
+
+        /**
+         * Called once the session is closed by the client/Dstore.
+         */
+        void processSessionEnd() {
+            try {
+                System.out.println("Session closed for operation : " + this.request_type + " curr N : " + Controller.currRFator + " ongoing operations : " + Controller.getOngoingProcessCount());
+
+                //for the cases when the session is either terminated/timed out/finished by the client/dstore
+                switch (this.request_type) {
+                    case Controller.JOIN_OPERATION:
+                        System.out.println("A connection with a Dstore(port : " + this.dPort  + ") just dropped. Updating index ... ");
+                        if (this.dstore != null)
+                            Controller.dropDstore(this.dstore);
+                        System.out.println("Index updated.");
+                        break;
+                    //unfinished STORE/REMOVE operations are cleaned up by their own timeout, failed Dstores are found by the FAILURE_DETECTOR
+                    default:
+                        break;
+                }
+            } catch (Throwable e) {
+                this.processError((e.getMessage() != null ? e.getMessage() : e.toString()), outStream, 0);
+            }
+        }
+
+        /**
+         * @return boolean | true once this session has been joined by a Dstore
+         */
+        boolean isDstoreSession() {
+            return Controller.JOIN_OPERATION.equals(this.request_type);
         }
 
 
         //JOIN OPERATION
-        private void processJoinOperation(String port) {
-            synchronized (Controller.lock) {
+        private void processJoinOperation(String port, String files) {
+            //-1 : the Dstore does not report its files, 0.. : the number of files it reports with INVENTORY
+            int inventorySize = (files != null) ? Integer.parseInt(files) : -1;
+            DSTORE_DATA dStore;
+            DSTORE_DATA previous;
+            synchronized (Controller.dstoresLock) {
+                //a Dstore that restarts on the same port can JOIN before its old session is dropped : drop the old one first, so that
+                //the new one does not lose its replicas && ring points when the old session ends
+                previous = Controller.dStoresByPort.get(Integer.parseInt(port));
+                if (previous != null && !Controller.removeMember(previous))
+                    previous = null;
                 System.out.println("adding a new DStore...");
-                DSTORE_DATA dStore = new DSTORE_DATA(Integer.parseInt(port));
+                dStore = new DSTORE_DATA(Integer.parseInt(port));
+                dStore.control = new CONTROL_CHANNEL(this.outStream, this.connection);
+                this.dstore = dStore;
+                //the files this Dstore held before the Controller restarted, unless they have been removed since. If the Dstore reports
+                //its files they are only attached once the inventory confirms them
+                for (FILE_ENTRY eachFile : Controller.recoveredReplicas.getOrDefault(dStore.dPort, Collections.emptyList())) {
+                    if (Controller.fileIndex.get(eachFile.fileName) != eachFile || !eachFile.dPorts.contains(dStore.dPort))
+                        continue;
+                    if (inventorySize < 0)
+                        dStore.addFile(eachFile);
+                    else
+                        dStore.unconfirmedReplicas.put(eachFile.fileName, eachFile);
+                }
+                Controller.recoveredReplicas.remove(dStore.dPort);
+                dStore.inventoryPending.set(Math.max(inventorySize, 0));
+                Controller.logMetadata(METADATA_LOG.JOIN_RECORD + " " + dStore.dPort);
                 Controller.dStores.add(dStore);
+                Controller.dStoresByPort.put(dStore.dPort, dStore);
+                Controller.placementStrategy.dstoreJoined(dStore.dPort);
                 Controller.currRFator++;
                 System.out.println("DStore added.");
                 this.dPort = port;
                 //Controller.printDstoreData();
             }
+            if (previous != null)
+                Controller.closeMember(previous);
+            //otherwise the rebalance waits for the last INVENTORY
+            if (inventorySize <= 0)
+                this.finishInventory(dStore);
 
         }
 
-        //LIST OPERATION
-        private String processListOperation() throws Exception {
-            synchronized (Controller.lock)
-            {
-                Controller.checkIfEnoughDstores(false);
-                Controller.printDstoreData();
-                String rtrn_request = Controller.LIST_RESPONSE + " ";
-                ArrayList<String> usedFiles = new ArrayList<String>();
-                List<HashMap<String, String>> currFileList;
-                String currFileName;
+        //INVENTORY OPERATION
+        /**
+         * Merge a batch of the files reported by the Dstore of this session into the index. The files are merged as the batches come,
+         * so the Dstore serves its files before it has reported all of them. The rebalance starts after the last batch.
+         */
+        private void processInventoryOperation(String[] segments) throws Exception {
+            DSTORE_DATA dStore = this.dstore;
+            if (dStore == null)
+                throw new Exception("INVENTORY from a Dstore that has not joined");
+            int files = (segments.length - 1) / 2;
+            for (int i = 1; i < segments.length; i += 2)
+                this.mergeInventoryFile(dStore, segments[i], Long.parseLong(segments[i + 1]));
+            int pending = dStore.inventoryPending.addAndGet(-files);
+            if (pending <= 0 && pending + files > 0)
+                this.finishInventory(dStore);
+        }
 
-                //because a dstore might not be up to date with the other dstores, we need to see what files are in the overall distributed sever storage
-                for (DSTORE_DATA eachDstore : Controller.dStores) {
-                    currFileList = eachDstore.files;
-                    for (HashMap<String, String> eachFile : currFileList) {
-                        currFileName = eachFile.get("filename");
-                        if (!usedFiles.contains(currFileName)) {
-                            usedFiles.add(currFileName);
-                        }
-                    }
+        /**
+         * A reported file is attached to the Dstore if the index has it fully stored with the same size. Without a metadata log the
+         * Controller may have restarted && forgotten the file, so an unknown file is added to the index. Every other file is stray.
+         */
+        private void mergeInventoryFile(DSTORE_DATA dStore, String filename, long fileSize) {
+            synchronized (Controller.getFileLock(filename)) {
+                FILE_ENTRY file = Controller.fileIndex.get(filename);
+                if (file == null && Controller.metadataLog == null) {
+                    file = new FILE_ENTRY(filename, fileSize, Controller.FILE_STORE_COMPLETE_STATUS);
+                    Controller.fileIndex.put(filename, file);
+                }
+                if (file == null || !file.isStoreComplete() || file.fileSize != fileSize) {
+                    dStore.strayFiles.add(filename);
+                    return;
                 }
+                //a recovered replica the Dstore does not have(or has a different version of) is dropped by finishInventory
+                dStore.unconfirmedReplicas.remove(filename);
+                boolean recorded = file.dPorts.contains(dStore.dPort);
+                if (dStore.addFile(file) && !recorded)
+                    Controller.logMetadata(METADATA_LOG.ADD_REPLICA_RECORD + " " + filename + " " + dStore.dPort);
+            }
+        }
 
-                int i = 1;
-                String currAppend;
+        /**
+         * The Dstore has reported all of its files : the recovered replicas it did not report are gone, then rebalance.
+         */
+        private void finishInventory(DSTORE_DATA dStore) {
+            for (FILE_ENTRY eachFile : dStore.unconfirmedReplicas.values()) {
+                synchronized (Controller.getFileLock(eachFile.fileName)) {
+                    if (eachFile.dPorts.remove(dStore.dPort))
+                        Controller.logMetadata(METADATA_LOG.DROP_REPLICA_RECORD + " " + eachFile.fileName + " " + dStore.dPort);
+                }
+            }
+            dStore.unconfirmedReplicas.clear();
+            ControllerLogger.getInstance().log("Dstore " + dStore.dPort + " joined with " + dStore.files.size() + " files of the index && " + dStore.strayFiles.size() + " stray files.");
+            //spread the existing files to the new Dstore as well
+            Controller.rebalanceScheduler.execute(new REBALANCE_OPERATION(true));
+        }
 
-                for (String filename : usedFiles) {
-                    currAppend = filename + ((i == usedFiles.size()) ? "" : " ");
+        //LIST OPERATION
+        private String processListOperation() throws Exception {
+            //no locking needed, the index can be iterated while other threads are changing it
+            Controller.checkIfEnoughDstores(false);
+            StringBuilder rtrn_request = new StringBuilder(Controller.LIST_RESPONSE).append(" ");
+
+            //every file is in the index only once, so there is nothing to deduplicate. Files that are not fully stored are not listed.
+            boolean first = true;
+            for (FILE_ENTRY eachFile : Controller.fileIndex.values()) {
+                if (!eachFile.isStoreComplete())
+                    continue;
+                if (!first)
+                    rtrn_request.append(" ");
+                rtrn_request.append(eachFile.fileName);
+                first = false;
+            }
+            return rtrn_request.toString();
+        }
 
-                    rtrn_request += currAppend;
-                    i++;
-                }
-                return rtrn_request;
+        /**
+         * LIST for a binary session : the filenames are written straight from the index into the frame.
+         */
+        private BinaryProtocol.FRAME_WRITER getListFrame(long requestId) throws Exception {
+            Controller.checkIfEnoughDstores(false);
+            BinaryProtocol.FRAME_WRITER frame = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LIST, requestId);
+            for (FILE_ENTRY eachFile : Controller.fileIndex.values()) {
+                if (eachFile.isStoreComplete())
+                    frame.writeString(eachFile.fileName);
             }
+            return frame;
         }
 
         //STORE OPERATION
-        private String processStoreOperation(String filename, String filesize, PrintWriter clientOutputStream) throws Exception {
-            synchronized (Controller.lock) {
+        /**
+         * @param gateStamp long | the read stamp of the STORE on the rebalance gate, released once the STORE is finished
+         */
+        private ONGOING_PROCESS processStoreOperation(String filename, String filesize, PrintWriter clientOutputStream, long gateStamp) throws Exception {
+            try {
+                ONGOING_PROCESS storeProcess = this.startStoreOperation(filename, filesize, clientOutputStream);
+                storeProcess.gateStamp = gateStamp;
+                return storeProcess;
+            } catch (Exception e) {
+                Controller.rebalanceGate.unlockRead(gateStamp);
+                throw e;
+            }
+        }
+
+        private ONGOING_PROCESS startStoreOperation(String filename, String filesize, PrintWriter clientOutputStream) throws Exception {
+            synchronized (Controller.getFileLock(filename)) {
                 Controller.checkIfEnoughDstores(true);
-                if (Controller.checkIfFileExists(filename)) {
+                //reserve the filename in the index straight away, so that a second STORE of the same file is rejected while this one is in progress.
+                FILE_ENTRY fileEntry = new FILE_ENTRY(filename, Long.parseLong(filesize), Controller.FILE_STORE_IN_PROGRESS_STATUS);
+                if (Controller.fileIndex.putIfAbsent(filename, fileEntry) != null) {
                     throw new Exception(Controller.ERROR_FILE_ALREADY_EXISTS);
                 }
-                String port_arr = " ";
-                String rtrn_request = Controller.STORE_TO_RESPONSE;
-
-                List<DSTORE_DATA> selectedDstores = new ArrayList<DSTORE_DATA>();
-
-                //select R dStores && update their status
-                int currI = 1;
-                for (int i = 0; i < Controller.dStores.size(); i++) {
-                    Controller.dStores.get(i).updateStatus(Controller.DSTORE_STORE_IN_PROGRESS_STATUS);
-                    //Controller.dStores.get(i).addFile(filename, filesize); we will add the file once we receive all ACK responses.
-                    selectedDstores.add(Controller.dStores.get(i));
-                    this.dstoresAffected.add(Controller.dStores.get(i));
-                    //only to R Dstores.
-                    if (currI == Controller.rFactor)
-                        break;
-                    currI++;
+                //select R dStores from the available ones && update their status
+                //we will add the file to them once we receive all ACK responses.
+                List<DSTORE_DATA> selectedDstores;
+                try {
+                    List<DSTORE_DATA> candidates = Controller.getAvailableDstores();
+                    if (candidates.size() < Controller.rFactor)
+                        throw new Exception(Controller.ERROR_NOT_ENOUGH_DSTORES);
+                    selectedDstores = Controller.placementStrategy.selectDstores(candidates, Controller.rFactor, filename);
+                } catch (Exception e) {
+                    Controller.fileIndex.remove(filename, fileEntry);
+                    throw e;
+                }
+                for (DSTORE_DATA eachDstore : selectedDstores) {
+                    eachDstore.startOperation(Controller.DSTORE_STORE_IN_PROGRESS_STATUS, fileEntry.fileSize);
                 }
-                //get their port and put in the request
-                String currAppend;
                 List<String> selectedDPorts = new ArrayList<String>();
-                int i = 1;
                 for (DSTORE_DATA eachDstore : selectedDstores) {
-                    currAppend = Integer.toString(eachDstore.dPort) + ((i == selectedDstores.size()) ? "" : " ");
                     selectedDPorts.add(Integer.toString(eachDstore.dPort));
-                    port_arr += currAppend;
                 }
 
                 //create a new process so that we can keep track of the ongoing ones
                 ONGOING_PROCESS storeProcess = new ONGOING_PROCESS(Controller.STORE_PROCESS, clientOutputStream, selectedDPorts, selectedDPorts.size(), Thread.currentThread().getId());
                 storeProcess.fileName = filename;
-                Controller.ongoingProcesses.add(storeProcess);
-                this.currentOngoingProcess = storeProcess;
+                storeProcess.fileEntry = fileEntry;
+                storeProcess.dstores = selectedDstores;
+                Controller.registerOngoingProcess(storeProcess);
+                return storeProcess;
+            }
+        }
+
+        private String getStoreToResponse(ONGOING_PROCESS storeProcess) {
+            //request should look something like "STORE_TO port1 port2 … portR"
+            StringBuilder rtrn_request = new StringBuilder(Controller.STORE_TO_RESPONSE);
+            for (String eachDPort : storeProcess.dPorts) {
+                rtrn_request.append(" ").append(eachDPort);
+            }
+            return rtrn_request.toString();
+        }
+
+        private BinaryProtocol.FRAME_WRITER getStoreToFrame(ONGOING_PROCESS storeProcess) {
+            BinaryProtocol.FRAME_WRITER frame = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_TO, storeProcess.requestId);
+            for (DSTORE_DATA eachDstore : storeProcess.dstores)
+                frame.writeVarint(eachDstore.dPort);
+            return frame;
+        }
+
+        /**
+         * Called once every Dstore has sent its STORE_ACK, or once the STORE has timed out.
+         * A timed out STORE is dropped from the index && nothing is sent to the client.
+         */
+        private void finishStoreOperation(ONGOING_PROCESS storeProcess, Throwable error) {
+            try {
+                CompletableFuture<Void> committed = this.completeStoreOperation(storeProcess, error);
+                //STORE_COMPLETE only once the STORE is durable
+                if (committed != null)
+                    this.sendResponseWhenCommitted(committed, Controller.STORE_COMPLETE_RESPONSE, storeProcess.clientOutputStream, storeProcess.requestId);
+            } finally {
+                Controller.rebalanceGate.unlockRead(storeProcess.gateStamp);
+            }
+        }
+
+        /**
+         * Update the index once a STORE(on its own or from a batch) is finished : the file is added to its Dstores, or dropped if the STORE
+         * has timed out/failed.
+         *
+         * @return CompletableFuture<Void> | completes once the STORE is durable, null if the STORE has failed
+         */
+        private CompletableFuture<Void> completeStoreOperation(ONGOING_PROCESS storeProcess, Throwable error) {
+            try {
+                synchronized (Controller.getFileLock(storeProcess.fileName)) {
+                    Controller.removeOngoingProcess(storeProcess);
+                    Controller.finishDstoreOperations(storeProcess.dstores, storeProcess.fileEntry.fileSize);
+                    if (error == null && Controller.addFileToDstores(storeProcess.dstores, storeProcess.fileEntry) > 0) {
+                        //logged under the file lock, so the records of a file are in the same order as its changes
+                        return Controller.logMetadata(METADATA_LOG.storeRecord(storeProcess.fileEntry));
+                    }
+                    Controller.fileIndex.remove(storeProcess.fileName, storeProcess.fileEntry);
+                }
+                ControllerLogger.getInstance().log("STORE of " + storeProcess.fileName + " has timed out/failed(or all of its Dstores have dropped). Removed it from the index.");
+            } catch (Throwable e) {
+                ControllerLogger.getInstance().log("Error when finishing the STORE of " + storeProcess.fileName + " : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+            return null;
+        }
 
-                //port arr would look something like " por1 port2 port3 ..."
-                rtrn_request += port_arr;
+        //STORE_BATCH OPERATION
+        /**
+         * STORE_BATCH : every file of the batch is reserved in the index && placed on R Dstores in one go, && the client gets the plan
+         * grouped by Dstore(STORE_BATCH_TO), so that it sends each Dstore all of its files over one connection && each Dstore
+         * acknowledges them with one STORE_ACK. STORE_COMPLETE is sent once every file of the batch is stored && durable.
+         */
+        private void processStoreBatchOperation(String[] filenames, long[] filesizes, long requestId, long gateStamp) throws Exception {
+            //one read stamp for the whole batch, released once every file of it is finished
+            List<ONGOING_PROCESS> storeProcesses;
+            try {
+                storeProcesses = this.startStoreBatchOperation(filenames, filesizes, this.outStream);
+            } catch (Exception e) {
+                Controller.rebalanceGate.unlockRead(gateStamp);
+                throw e;
+            }
+            Map<DSTORE_DATA, List<FILE_ENTRY>> plan = new LinkedHashMap<DSTORE_DATA, List<FILE_ENTRY>>();
+            for (ONGOING_PROCESS eachProcess : storeProcesses) {
+                eachProcess.requestId = requestId;
+                for (DSTORE_DATA eachDstore : eachProcess.dstores)
+                    plan.computeIfAbsent(eachDstore, dstore -> new ArrayList<FILE_ENTRY>()).add(eachProcess.fileEntry);
+            }
+            this.sendBatchPlan(Controller.STORE_BATCH_TO_RESPONSE, plan, false, requestId);
+            this.finishBatchOperation(storeProcesses, this::completeStoreOperation, Controller.STORE_COMPLETE_RESPONSE, requestId, gateStamp);
+        }
+
+        private List<ONGOING_PROCESS> startStoreBatchOperation(String[] filenames, long[] filesizes, PrintWriter clientOutputStream) throws Exception {
+            Controller.checkIfEnoughDstores(true);
+            //the candidates are taken once for the whole batch, a batch is one upload to each of its Dstores(not one operation per file)
+            List<DSTORE_DATA> candidates = Controller.getAvailableDstores();
+            if (candidates.size() < Controller.rFactor)
+                throw new Exception(Controller.ERROR_NOT_ENOUGH_DSTORES);
+
+            //reserve every filename first : the batch is rejected as a whole, && leaves nothing in the index, if one of its files already exists
+            List<FILE_ENTRY> fileEntries = new ArrayList<FILE_ENTRY>();
+            for (int i = 0; i < filenames.length; i++) {
+                FILE_ENTRY fileEntry = new FILE_ENTRY(filenames[i], filesizes[i], Controller.FILE_STORE_IN_PROGRESS_STATUS);
+                boolean reserved;
+                synchronized (Controller.getFileLock(filenames[i])) {
+                    reserved = Controller.fileIndex.putIfAbsent(filenames[i], fileEntry) == null;
+                }
+                if (!reserved) {
+                    this.releaseFileEntries(fileEntries);
+                    throw new Exception(Controller.ERROR_FILE_ALREADY_EXISTS);
+                }
+                fileEntries.add(fileEntry);
+            }
+
+            List<ONGOING_PROCESS> storeProcesses = new ArrayList<ONGOING_PROCESS>();
+            try {
+                for (FILE_ENTRY eachFile : fileEntries) {
+                    synchronized (Controller.getFileLock(eachFile.fileName)) {
+                        List<DSTORE_DATA> selectedDstores = Controller.placementStrategy.selectDstores(candidates, Controller.rFactor, eachFile.fileName);
+                        List<String> selectedDPorts = new ArrayList<String>();
+                        for (DSTORE_DATA eachDstore : selectedDstores)
+                            selectedDPorts.add(Integer.toString(eachDstore.dPort));
+                        ONGOING_PROCESS storeProcess = new ONGOING_PROCESS(Controller.STORE_PROCESS, clientOutputStream, selectedDPorts, selectedDPorts.size(), Thread.currentThread().getId());
+                        storeProcess.fileName = eachFile.fileName;
+                        storeProcess.fileEntry = eachFile;
+                        storeProcess.dstores = selectedDstores;
+                        Controller.registerOngoingProcess(storeProcess);
+                        //counted as each file is placed, so the placement spreads the batch like the same number of STOREs
+                        for (DSTORE_DATA eachDstore : selectedDstores)
+                            eachDstore.startOperation(Controller.DSTORE_STORE_IN_PROGRESS_STATUS, eachFile.fileSize);
+                        storeProcesses.add(storeProcess);
+                    }
+                }
+            } catch (Exception e) {
+                for (ONGOING_PROCESS eachProcess : storeProcesses)
+                    this.completeStoreOperation(eachProcess, e);
+                this.releaseFileEntries(fileEntries.subList(storeProcesses.size(), fileEntries.size()));
+                throw e;
+            }
+            return storeProcesses;
+        }
+
+        /**
+         * Drop the files a rejected STORE_BATCH has reserved from the index.
+         */
+        private void releaseFileEntries(List<FILE_ENTRY> fileEntries) {
+            for (FILE_ENTRY eachFile : fileEntries) {
+                synchronized (Controller.getFileLock(eachFile.fileName)) {
+                    Controller.fileIndex.remove(eachFile.fileName, eachFile);
+                }
+            }
+        }
+
+        /**
+         * Send the plan of a batch(STORE_BATCH_TO/LOAD_BATCH_FROM) : for each Dstore its port, the number of its files && the files, with
+         * their sizes for a LOAD_BATCH.
+         */
+        private void sendBatchPlan(String response, Map<DSTORE_DATA, List<FILE_ENTRY>> plan, boolean withSizes, long requestId) {
+            if (this.binaryOut != null) {
+                BinaryProtocol.FRAME_WRITER frame = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.getOpcode(response), requestId);
+                for (Map.Entry<DSTORE_DATA, List<FILE_ENTRY>> eachDstore : plan.entrySet()) {
+                    frame.writeVarint(eachDstore.getKey().dPort).writeVarint(eachDstore.getValue().size());
+                    for (FILE_ENTRY eachFile : eachDstore.getValue()) {
+                        frame.writeString(eachFile.fileName);
+                        if (withSizes)
+                            frame.writeVarint(eachFile.fileSize);
+                    }
+                }
+                this.sendFrame(frame);
+                return;
+            }
+            //request should look something like "STORE_BATCH_TO port1 count1 file1 file2 ... port2 count2 ..."
+            //or "LOAD_BATCH_FROM port1 count1 file1 filesize1 ... port2 count2 ..."
+            StringBuilder rtrn_request = new StringBuilder(response);
+            for (Map.Entry<DSTORE_DATA, List<FILE_ENTRY>> eachDstore : plan.entrySet()) {
+                rtrn_request.append(" ").append(eachDstore.getKey().dPort).append(" ").append(eachDstore.getValue().size());
+                for (FILE_ENTRY eachFile : eachDstore.getValue()) {
+                    rtrn_request.append(" ").append(eachFile.fileName);
+                    if (withSizes)
+                        rtrn_request.append(" ").append(eachFile.fileSize);
+                }
+            }
+            this.sendResponse(rtrn_request.toString(), this.outStream, requestId);
+        }
 
-                //request should look something like "STORE_TO port1 port2 … portR"
-                return rtrn_request;
+        /**
+         * Finish each file of a batch as it is acknowledged(or times out), as if it had been sent on its own, && send the response of the
+         * batch once every file is finished && durable. Nothing is sent if a file has timed out/failed, as for a single STORE/REMOVE.
+         *
+         * @param complete BiFunction | completeStoreOperation || completeRemoveOperation
+         * @param gateStamp long | the read stamp of the batch on the rebalance gate, released once every file is finished
+         */
+        private void finishBatchOperation(List<ONGOING_PROCESS> processes, BiFunction<ONGOING_PROCESS, Throwable, CompletableFuture<Void>> complete,
+                                          String response, long requestId, long gateStamp) {
+            List<CompletableFuture<CompletableFuture<Void>>> finished = new ArrayList<CompletableFuture<CompletableFuture<Void>>>();
+            for (ONGOING_PROCESS eachProcess : processes) {
+                finished.add(eachProcess.completion.orTimeout(Controller.timeoutPer, TimeUnit.MILLISECONDS)
+                        .handleAsync((ignored, error) -> complete.apply(eachProcess, error), Controller.completionExecutor));
             }
+            CompletableFuture.allOf(finished.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, error) -> {
+                Controller.rebalanceGate.unlockRead(gateStamp);
+                List<CompletableFuture<Void>> committed = new ArrayList<CompletableFuture<Void>>();
+                for (CompletableFuture<CompletableFuture<Void>> eachFile : finished) {
+                    if (eachFile.join() != null)
+                        committed.add(eachFile.join());
+                }
+                if (committed.size() < finished.size()) {
+                    ControllerLogger.getInstance().log((finished.size() - committed.size()) + " of the " + finished.size() + " files of a batch have timed out/failed, " + response + " is not sent.");
+                    return;
+                }
+                this.sendResponseWhenCommitted(CompletableFuture.allOf(committed.toArray(new CompletableFuture<?>[0])), response, this.outStream, requestId);
+            }, Controller.completionExecutor);
         }
 
         //REMOVE OPERATION
-        private void processRemoveOperation(String filename, PrintWriter clientOutputStream) throws Exception {
-            synchronized (Controller.lock) {
+        /**
+         * @param gateStamp long | the read stamp of the REMOVE on the rebalance gate, released once the REMOVE is finished
+         */
+        private ONGOING_PROCESS processRemoveOperation(String filename, PrintWriter clientOutputStream, long gateStamp) throws Exception {
+            ONGOING_PROCESS removeProcess;
+            try {
+                removeProcess = this.startRemoveOperation(filename, clientOutputStream);
+                removeProcess.gateStamp = gateStamp;
+            } catch (Exception e) {
+                Controller.rebalanceGate.unlockRead(gateStamp);
+                throw e;
+            }
+
+            //now for each the selected dStores send remove requests to them, over their control channel && outside of the file lock.
+            //NOTE that we will just queue the payload, the response will come afterwards. If a Dstore cannot be reached the REMOVE will time out.
+            String dStorePayload = Controller.REMOVE_OPERATION + " " + filename;
+            for (DSTORE_DATA eachDstore : removeProcess.dstores) {
+                CONTROL_CHANNEL control = eachDstore.control;
+                if (control != null)
+                    control.send(dStorePayload);
+            }
+            return removeProcess;
+        }
+
+        private ONGOING_PROCESS startRemoveOperation(String filename, PrintWriter clientOutputStream) throws Exception {
+            synchronized (Controller.getFileLock(filename)) {
                 Controller.checkIfEnoughDstores(false);
-                if (!Controller.checkIfFileExists(filename)) {
+                FILE_ENTRY fileEntry = Controller.getStoredFile(filename);
+                if (fileEntry == null) {
                     throw new Exception(Controller.ERROR_FILE_DOES_NOT_EXIST);
                 }
+                fileEntry.state = Controller.FILE_REMOVE_IN_PROGRESS_STATUS;
 
                 ArrayList<String> dStorePorts = new ArrayList<String>();
-                //select all dStores && update their status
-                for (int i = 0; i < Controller.dStores.size(); i++) {
-                    Controller.dStores.get(i).updateStatus(Controller.DSTORE_REMOVE_IN_PROGRESS_STATUS);
-                    dStorePorts.add(Integer.toString(Controller.dStores.get(i).dPort));
-                    this.dstoresAffected.add(Controller.dStores.get(i));
+                List<DSTORE_DATA> dstoresAffected = new ArrayList<DSTORE_DATA>();
+                //select only the dStores that hold the file && update their status
+                for (DSTORE_DATA eachDstore : Controller.dStores) {
+                    if (!eachDstore.hasFile(filename))
+                        continue;
+                    eachDstore.startOperation(Controller.DSTORE_REMOVE_IN_PROGRESS_STATUS, 0);
+                    dStorePorts.add(Integer.toString(eachDstore.dPort));
+                    dstoresAffected.add(eachDstore);
                 }
 
-                String dStorePayload = Controller.REMOVE_OPERATION + " " + filename;
-
-
                 //create a new process so that we can keep track of the ongoing ones
                 ONGOING_PROCESS removeProcess = new ONGOING_PROCESS(Controller.REMOVE_PROCESS, clientOutputStream, dStorePorts, dStorePorts.size(), Thread.currentThread().getId());
                 removeProcess.fileName = filename;
-                Controller.ongoingProcesses.add(removeProcess);
-                this.currentOngoingProcess = removeProcess;
-
-                //now for each the selected dStores send remove requests to them.
-                //NOTE that we will just send the payload, the response will come afterwards.
-                for (String currDPort : dStorePorts) {
-                    //create a new connection with the DStore
-                    Socket currSocket = new Socket("localhost", Integer.parseInt(currDPort));
-                    PrintWriter currOutPutStream = new PrintWriter(currSocket.getOutputStream());
-                    currOutPutStream.println(dStorePayload);
-                    currOutPutStream.flush();
+                removeProcess.fileEntry = fileEntry;
+                removeProcess.dstores = dstoresAffected;
+                Controller.registerOngoingProcess(removeProcess);
+                if (dStorePorts.isEmpty()) {
+                    //no Dstore holds the file anymore(they all dropped), nothing to wait for
+                    removeProcess.completion.complete(null);
                 }
+                return removeProcess;
             }
 
         }
 
-        //LOAD OPERATION
-        private String processLoadOperation(String filename) throws Exception {
-            synchronized (Controller.lock)
-            {
-                Controller.checkIfEnoughDstores(false);
-                String rtrn_request = Controller.LOAD_FROM_RESPONSE;
-                //get the first dStore that has the file
-
-                DSTORE_DATA selectedDstore = null;
-                String filesize = "";
+        /**
+         * Called once every Dstore has sent its REMOVE_ACK, or once the REMOVE has timed out.
+         * On a time out only the Dstores that did ACK are removed from the index, the file stays "remove in progress" until a rebalance cleans it up.
+         */
+        private void finishRemoveOperation(ONGOING_PROCESS removeProcess, Throwable error) {
+            try {
+                CompletableFuture<Void> committed = this.completeRemoveOperation(removeProcess, error);
+                if (committed != null)
+                    this.sendResponseWhenCommitted(committed, Controller.REMOVE_COMPLETE_RESPONSE, removeProcess.clientOutputStream, removeProcess.requestId);
+            } finally {
+                Controller.rebalanceGate.unlockRead(removeProcess.gateStamp);
+            }
+        }
 
-                for (DSTORE_DATA eachDstore : Controller.dStores) {
-                    if (eachDstore.hasFile(filename)) {
-                        selectedDstore = eachDstore;
-                        filesize = eachDstore.getFileInfoByFileName(filename).get("filesize");
-                        break;
+        /**
+         * Update the index once a REMOVE(on its own or from a batch) is finished.
+         *
+         * @return CompletableFuture<Void> | completes once the REMOVE is durable, null if the REMOVE has failed
+         */
+        private CompletableFuture<Void> completeRemoveOperation(ONGOING_PROCESS removeProcess, Throwable error) {
+            try {
+                synchronized (Controller.getFileLock(removeProcess.fileName)) {
+                    Controller.removeOngoingProcess(removeProcess);
+                    Controller.finishDstoreOperations(removeProcess.dstores, 0);
+                    if (error == null) {
+                        Controller.removeFileFromDstores(removeProcess.dstores, removeProcess.fileName);
+                        Controller.fileIndex.remove(removeProcess.fileName, removeProcess.fileEntry);
+                        return Controller.logMetadata(METADATA_LOG.REMOVE_RECORD + " " + removeProcess.fileName);
+                    }
+                    for (DSTORE_DATA eachDstore : removeProcess.dstores) {
+                        if (removeProcess.ackedDPorts.contains(eachDstore.dPort)) {
+                            eachDstore.removeFile(removeProcess.fileName);
+                            Controller.logMetadata(METADATA_LOG.DROP_REPLICA_RECORD + " " + removeProcess.fileName + " " + eachDstore.dPort);
+                        }
                     }
                 }
+                ControllerLogger.getInstance().log("REMOVE of " + removeProcess.fileName + " has timed out/failed. The file stays in remove in progress state.");
+            } catch (Throwable e) {
+                ControllerLogger.getInstance().log("Error when finishing the REMOVE of " + removeProcess.fileName + " : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+            return null;
+        }
 
-                if (selectedDstore == null) {
-                    throw new Exception(Controller.ERROR_FILE_DOES_NOT_EXIST);
-                }
+        //REMOVE_BATCH OPERATION
+        /**
+         * REMOVE_BATCH : every file of the batch is marked for removal in one go && each Dstore gets one REMOVE_BATCH with all of its files,
+         * which it acknowledges with one REMOVE_ACK. REMOVE_COMPLETE is sent once every file of the batch is removed && durable.
+         */
+        private void processRemoveBatchOperation(String[] filenames, long requestId, long gateStamp) throws Exception {
+            List<ONGOING_PROCESS> removeProcesses = new ArrayList<ONGOING_PROCESS>();
+            try {
+                for (String eachFilename : filenames)
+                    removeProcesses.add(this.startRemoveOperation(eachFilename, this.outStream));
+            } catch (Exception e) {
+                //the batch is rejected as a whole if one of its files is not stored, the files it has already marked are stored again
+                for (ONGOING_PROCESS eachProcess : removeProcesses)
+                    this.abortRemoveOperation(eachProcess);
+                Controller.rebalanceGate.unlockRead(gateStamp);
+                throw e;
+            }
+
+            //one command per Dstore, over its control channel
+            Map<DSTORE_DATA, StringBuilder> dStorePayloads = new LinkedHashMap<DSTORE_DATA, StringBuilder>();
+            for (ONGOING_PROCESS eachProcess : removeProcesses) {
+                eachProcess.requestId = requestId;
+                for (DSTORE_DATA eachDstore : eachProcess.dstores)
+                    dStorePayloads.computeIfAbsent(eachDstore, dstore -> new StringBuilder(Controller.REMOVE_BATCH_OPERATION)).append(" ").append(eachProcess.fileName);
+            }
+            for (Map.Entry<DSTORE_DATA, StringBuilder> eachDstore : dStorePayloads.entrySet()) {
+                CONTROL_CHANNEL control = eachDstore.getKey().control;
+                if (control != null)
+                    control.send(eachDstore.getValue().toString());
+            }
+            this.finishBatchOperation(removeProcesses, this::completeRemoveOperation, Controller.REMOVE_COMPLETE_RESPONSE, requestId, gateStamp);
+        }
 
+        /**
+         * Undo startRemoveOperation for a REMOVE_BATCH that has been rejected, before anything has been sent to the Dstores.
+         */
+        private void abortRemoveOperation(ONGOING_PROCESS removeProcess) {
+            synchronized (Controller.getFileLock(removeProcess.fileName)) {
+                Controller.removeOngoingProcess(removeProcess);
+                for (DSTORE_DATA eachDstore : removeProcess.dstores)
+                    eachDstore.finishOperation(0);
+                removeProcess.fileEntry.state = Controller.FILE_STORE_COMPLETE_STATUS;
+            }
+        }
 
-                String append = " ";
+        //LOAD OPERATION
+        private void processLoadOperation(String filename, boolean reload, long requestId) throws Exception {
+            //no locking needed, the file entry is only read
+            Controller.checkIfEnoughDstores(false);
+            FILE_ENTRY fileEntry = Controller.getStoredFile(filename);
+            if (fileEntry == null) {
+                this.loadAttempts.remove(filename);
+                throw new Exception(Controller.ERROR_FILE_DOES_NOT_EXIST);
+            }
+            DSTORE_DATA selectedDstore = this.selectLoadDstore(fileEntry, reload, true);
 
-                append += Integer.toString(selectedDstore.dPort);
-                rtrn_request += append;
-                rtrn_request += " ";
-                rtrn_request += filesize;
-                //request should look something like "LOAD_FROM port filesize"
-                return rtrn_request;
+            if (this.binaryOut != null) {
+                this.sendFrame(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_FROM, requestId).writeVarint(selectedDstore.dPort).writeVarint(fileEntry.fileSize));
+                return;
             }
+            //request should look something like "LOAD_FROM port filesize"
+            this.sendResponse(Controller.LOAD_FROM_RESPONSE + " " + selectedDstore.dPort + " " + fileEntry.fileSize, this.outStream, requestId);
         }
 
-        //STORE ACK OPERATION
-        private void processStoreACKOperation(String filename, int dPort) throws Exception {
-            synchronized (Controller.lock)
-            {
-                ONGOING_PROCESS linkedProcess = Controller.getOngoingProcessByFileName(Controller.STORE_PROCESS, filename);
-                linkedProcess.numberOfReceivedSuccessRequests.incrementAndGet();
+        /**
+         * Pick the replica the client downloads the file from && remember it(if remember is set), for a RELOAD of the file.
+         *
+         * @throws Exception | ERROR_LOAD if the client has already tried every replica
+         */
+        private DSTORE_DATA selectLoadDstore(FILE_ENTRY fileEntry, boolean reload, boolean remember) throws Exception {
+            String filename = fileEntry.fileName;
+            //a LOAD starts from scratch, a RELOAD skips every Dstore the client has already tried for this file
+            Set<Integer> triedDPorts;
+            if (reload) {
+                triedDPorts = this.loadAttempts.computeIfAbsent(filename, name -> ConcurrentHashMap.newKeySet());
+            } else {
+                triedDPorts = ConcurrentHashMap.newKeySet();
+                if (remember)
+                    this.loadAttempts.put(filename, triedDPorts);
+            }
+
+            //spread the downloads over the replicas : pick the least busy replica that has not been tried yet
+            DSTORE_DATA selectedDstore = null;
+            for (Integer eachDPort : fileEntry.dPorts) {
+                DSTORE_DATA eachDstore = Controller.dStoresByPort.get(eachDPort);
+                if (eachDstore == null || triedDPorts.contains(eachDPort))
+                    continue;
+                //a suspect replica is only picked if there is nothing else
+                if (selectedDstore == null || (selectedDstore.suspect && !eachDstore.suspect)
+                        || (selectedDstore.suspect == eachDstore.suspect && Controller.getLoadScore(eachDstore) < Controller.getLoadScore(selectedDstore)))
+                    selectedDstore = eachDstore;
             }
 
+            if (selectedDstore == null) {
+                this.loadAttempts.remove(filename);
+                throw new Exception(Controller.ERROR_LOAD);
+            }
+            triedDPorts.add(selectedDstore.dPort);
+            selectedDstore.recordLoad();
+            return selectedDstore;
         }
 
-        //REMOVE ACK OPERATION
-        private void processRemoveACKOperation(String filename, int dPort) throws Exception {
-            synchronized (Controller.lock)
-            {
-                ONGOING_PROCESS linkedProcess = Controller.getOngoingProcessByFileName(Controller.REMOVE_PROCESS, filename);
-                int successResponses = linkedProcess.numberOfReceivedSuccessRequests.incrementAndGet();
+        //LOAD_ALL OPERATION
+        /**
+         * LOAD_ALL : every replica of the file, the ones to prefer first(the same order a LOAD picks from), so that a client can download
+         * different ranges of the file(LOAD_DATA filename offset length) from all of them at once. Every replica is counted as busy with
+         * the download. There is nothing to RELOAD : a client whose range fails takes it from another replica of the list.
+         */
+        private void processLoadAllOperation(String filename, long requestId) throws Exception {
+            Controller.checkIfEnoughDstores(false);
+            FILE_ENTRY fileEntry = Controller.getStoredFile(filename);
+            if (fileEntry == null)
+                throw new Exception(Controller.ERROR_FILE_DOES_NOT_EXIST);
+            List<DSTORE_DATA> replicas = new ArrayList<DSTORE_DATA>();
+            for (Integer eachDPort : fileEntry.dPorts) {
+                DSTORE_DATA eachDstore = Controller.dStoresByPort.get(eachDPort);
+                if (eachDstore != null)
+                    replicas.add(eachDstore);
+            }
+            if (replicas.isEmpty())
+                throw new Exception(Controller.ERROR_LOAD);
+            //the suspect replicas last, then the least busy first
+            replicas.sort(Comparator.comparing((DSTORE_DATA eachDstore) -> eachDstore.suspect).thenComparingInt(Controller::getLoadScore));
+            for (DSTORE_DATA eachDstore : replicas)
+                eachDstore.recordLoad();
+
+            if (this.binaryOut != null) {
+                BinaryProtocol.FRAME_WRITER frame = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD_ALL_FROM, requestId).writeVarint(fileEntry.fileSize);
+                for (DSTORE_DATA eachDstore : replicas)
+                    frame.writeVarint(eachDstore.dPort);
+                this.sendFrame(frame);
+                return;
+            }
+            //request should look something like "LOAD_ALL_FROM filesize port1 port2 ..."
+            StringBuilder response = new StringBuilder(Controller.LOAD_ALL_FROM_RESPONSE).append(" ").append(fileEntry.fileSize);
+            for (DSTORE_DATA eachDstore : replicas)
+                response.append(" ").append(eachDstore.dPort);
+            this.sendResponse(response.toString(), this.outStream, requestId);
+        }
+
+        //LOAD_BATCH OPERATION
+        /**
+         * LOAD_BATCH : a replica is picked for every file as for a LOAD, && the client gets the plan grouped by Dstore(LOAD_BATCH_FROM), so
+         * that it downloads all the files of a Dstore over one connection. The picked replicas are not remembered(a batch can be thousands
+         * of files) : a file whose download fails can be retried with RELOAD, which may send the client back to the same Dstore the first time.
+         */
+        private void processLoadBatchOperation(String[] filenames, long requestId) throws Exception {
+            Controller.checkIfEnoughDstores(false);
+            FILE_ENTRY[] fileEntries = new FILE_ENTRY[filenames.length];
+            for (int i = 0; i < filenames.length; i++) {
+                fileEntries[i] = Controller.getStoredFile(filenames[i]);
+                if (fileEntries[i] == null)
+                    throw new Exception(Controller.ERROR_FILE_DOES_NOT_EXIST);
+            }
+            Map<DSTORE_DATA, List<FILE_ENTRY>> plan = new LinkedHashMap<DSTORE_DATA, List<FILE_ENTRY>>();
+            for (FILE_ENTRY eachFile : fileEntries) {
+                DSTORE_DATA selectedDstore = this.selectLoadDstore(eachFile, false, false);
+                plan.computeIfAbsent(selectedDstore, dstore -> new ArrayList<FILE_ENTRY>()).add(eachFile);
             }
+            this.sendBatchPlan(Controller.LOAD_BATCH_FROM_RESPONSE, plan, true, requestId);
+        }
+
+        //STORE ACK OPERATION, a STORE_ACK has every file of a STORE_BATCH the Dstore has received
+        private void processStoreACKOperation(String[] filenames, int dPort) throws Exception {
+            this.processACKs(Controller.STORE_PROCESS, filenames, dPort);
         }
 
-        private void updateOngoingRequest(String process_type) throws Exception {
-            synchronized (Controller.lock) {
-                this.currentOngoingProcess = Controller.getOngoingProcessByFileName(process_type, this.currentOngoingProcess.fileName);
+        //REMOVE ACK OPERATION
+        private void processRemoveACKOperation(String[] filenames, int dPort) throws Exception {
+            this.processACKs(Controller.REMOVE_PROCESS, filenames, dPort);
+        }
+
+        /**
+         * Count the ACK of the Dstore for every file. A file that has no process anymore(e.g. it has timed out) does not stop the others.
+         */
+        private void processACKs(String processType, String[] filenames, int dPort) throws Exception {
+            Exception unknownFile = null;
+            for (String eachFilename : filenames) {
+                try {
+                    //the ACK counter is atomic, so there is no need to take the file lock here
+                    Controller.getOngoingProcessByFileName(processType, eachFilename).receivedSuccess(dPort);
+                } catch (Exception e) {
+                    unknownFile = e;
+                }
             }
+            if (unknownFile != null)
+                throw unknownFile;
+        }
+
+        //REBALANCE COMPLETE OPERATION
+        private void processRebalanceCompleteOperation(int dPort) {
+            REBALANCE_OPERATION rebalance = Controller.currentRebalance;
+            CompletableFuture<Void> confirmation = (rebalance == null) ? null : rebalance.confirmations.get(dPort);
+            if (confirmation != null)
+                confirmation.complete(null);
         }
 
-        private void checkIfSuccessStoreComplete() {
-            this.finishedOngoingRequest = this.currentOngoingProcess.numberOfSentRequests == this.currentOngoingProcess.numberOfReceivedSuccessRequests.get();
+        private int getSessionDPort() {
+            return (this.dPort != null) ? Integer.parseInt(this.dPort) : -1;
         }
 
-        private void checkIfSuccessRemoveComplete() {
-            this.finishedOngoingRequest = this.currentOngoingProcess.numberOfSentRequests == this.currentOngoingProcess.numberOfReceivedSuccessRequests.get();
+        /**
+         * Send the response once the metadata record is durable. If the log cannot be written the change only lives in memory, which is logged.
+         */
+        private void sendResponseWhenCommitted(CompletableFuture<Void> committed, String response, PrintWriter outStream, long requestId) {
+            committed.whenCompleteAsync((ignored, logError) -> {
+                if (logError != null)
+                    ControllerLogger.getInstance().log("Could not log the metadata before " + response + " : " + logError);
+                this.sendResponse(response, outStream, requestId);
+            }, Controller.completionExecutor);
         }
 
-        private void sendResponse(String response, PrintWriter outStream) {
+        /**
+         * @param requestId long | the request the response is for, only sent in binary sessions(where the responses without fields go through here)
+         */
+        private void sendResponse(String response, PrintWriter outStream, long requestId) {
+            if (this.binaryOut != null) {
+                this.sendFrame(new BinaryProtocol.FRAME_WRITER(BinaryProtocol.getOpcode(response), requestId));
+                return;
+            }
+            //the completion handlers write to the same stream as the request thread. println holds the PrintWriter's own lock, so lines never mix,
+            //&& no monitor is held over the socket write(that would pin the carrier of a virtual thread)
             outStream.println(response);
             outStream.flush();
         }
 
-        private void processDstoreDrop()
-        {
-            synchronized (Controller.lock)
-            {
-                int  i = 0;
-                for (DSTORE_DATA eachDstore : Controller.dStores) {
-                    if(eachDstore.dPort == Integer.parseInt(this.dPort)){
-                        Controller.dStores.remove(i);
-                        break;
+        private void sendFrame(BinaryProtocol.FRAME_WRITER frame) {
+            this.frameLock.lock();
+            try {
+                frame.writeTo(this.binaryOut);
+                this.binaryOut.flush();
+            } catch (IOException e) {
+                //the session has ended, like println on a closed connection
+                ControllerLogger.getInstance().log("Could not send a response : " + e.getMessage());
+            } finally {
+                this.frameLock.unlock();
+            }
+        }
+
+        private void processError(String errorMessage, PrintWriter outStream, long requestId) {
+            //errors that we need send
+            ControllerLogger.getInstance().log(errorMessage);
+            if (errorMessage.equals(Controller.ERROR_FILE_ALREADY_EXISTS) || errorMessage.equals(Controller.ERROR_FILE_DOES_NOT_EXIST) || errorMessage.equals(Controller.ERROR_NOT_ENOUGH_DSTORES) || errorMessage.equals(Controller.ERROR_LOAD)
+                    || errorMessage.equals(Controller.ERROR_BATCH_TOO_LARGE)) {
+                this.sendResponse(errorMessage, outStream, requestId);
+                return;
+            }
+
+        }
+    }
+
+    /**
+     * The rebalance operation will be on its own thread(the rebalance scheduler), so only one rebalance runs at a time.
+     * It runs every timeoutForNewReb seconds && every time a Dstore joins. STORE/REMOVE operations are queued while it runs.
+     *
+     * The plan is computed on a copy of the index : every file ends up on exactly R Dstores && every Dstore ends up with between
+     * floor(R*F/N) and ceil(R*F/N) files, moving as few(and as small) files as possible. The index is only updated once the Dstores
+     * confirm with REBALANCE_COMPLETE.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    class REBALANCE_OPERATION implements Runnable
+    {
+        private final boolean newDstore;
+        private List<DSTORE_DATA> realDstoreData; //the Dstores taking part in the rebalance
+        private List<FILE_ENTRY> filesToDistribute = new ArrayList<FILE_ENTRY>(); //the stored files
+        private List<FILE_ENTRY> filesToForget = new ArrayList<FILE_ENTRY>(); //files stuck in remove in progress, they are removed from every Dstore
+        private Map<Integer, Set<String>> currentFiles = new HashMap<Integer, Set<String>>(); //port => files, as the index has them now
+        private Map<Integer, TreeSet<FILE_ENTRY>> testDstoreData = new HashMap<Integer, TreeSet<FILE_ENTRY>>(); //port => files, as they will be after the rebalance
+        private Map<Integer, Map<String, List<Integer>>> filesToSend = new HashMap<Integer, Map<String, List<Integer>>>(); //source port => (filename => destination ports)
+        private Map<Integer, List<String>> filesToRemove = new HashMap<Integer, List<String>>(); //port => files to remove
+        final Map<Integer, CompletableFuture<Void>> confirmations = new ConcurrentHashMap<Integer, CompletableFuture<Void>>(); //port => REBALANCE_COMPLETE received
+        private int R;
+        private int N;
+        private int F;
+
+        public REBALANCE_OPERATION(boolean newDstore){this.newDstore = newDstore;}
+
+        public void run()
+        {
+            try {
+                //wait for the ongoing STORE/REMOVE operations to finish(they finish or time out within timeoutPer) && hold the new ones back
+                long gateStamp = Controller.closeRebalanceGate();
+                if (gateStamp == 0) {
+                    ControllerLogger.getInstance().log("Rebalance skipped, the ongoing operations did not finish in time.");
+                    return;
+                }
+                try {
+                    Controller.currentRebalance = this;
+                    this.rebalance();
+                } finally {
+                    Controller.currentRebalance = null;
+                    Controller.openRebalanceGate(gateStamp);
+                }
+            } catch (Throwable e) {
+                ControllerLogger.getInstance().log("Error during rebalance : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+        private void rebalance() throws Exception
+        {
+            this.setVariables();
+            if (this.N < this.R || this.N == 0) {
+                return;
+            }
+            //the index does not know every file of a Dstore that is still reporting them, the end of its inventory starts another rebalance
+            for (DSTORE_DATA eachDstore : this.realDstoreData) {
+                if (eachDstore.inventoryPending.get() > 0) {
+                    ControllerLogger.getInstance().log("Rebalance postponed, Dstore " + eachDstore.dPort + " is still reporting its files.");
+                    return;
+                }
+            }
+            this.setFilesToDistribute();
+            //when the placement strategy decides where each file goes(ring) the counts are only about even
+            if (!this.distributeByStrategy()) {
+                this.distributeEvenly();
+                if (!this.eachDstoreHasCorrectFileNumber()) {
+                    ControllerLogger.getInstance().log("Rebalance could not spread the files evenly(R : " + this.R + ", N : " + this.N + ", F : " + this.F + ")");
+                }
+            }
+
+            Map<Integer, String> dStoresOperations = this.getRebalanceOperations();
+            if (dStoresOperations.isEmpty()) {
+                return;
+            }
+            ControllerLogger.getInstance().log("Rebalance started" + (this.newDstore ? " for a new Dstore" : "") + ", sending REBALANCE to " + dStoresOperations.size() + " Dstores.");
+
+            for (Map.Entry<Integer, String> eachDstoreOperation : dStoresOperations.entrySet()) {
+                DSTORE_DATA dstore = Controller.dStoresByPort.get(eachDstoreOperation.getKey());
+                this.confirmations.put(eachDstoreOperation.getKey(), new CompletableFuture<Void>());
+                if (dstore != null && dstore.control != null)
+                    dstore.control.send(eachDstoreOperation.getValue());
+            }
+
+            try {
+                CompletableFuture.allOf(this.confirmations.values().toArray(new CompletableFuture<?>[0])).get(Controller.timeoutPer, TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                ControllerLogger.getInstance().log("Not every Dstore finished the rebalance in time, only the confirmed changes will be applied.");
+            }
+            this.updateIndex();
+        }
+
+        private void setVariables()
+        {
+            synchronized (Controller.dstoresLock)
+            {
+                this.R = Controller.rFactor;
+                this.realDstoreData = new ArrayList<DSTORE_DATA>(Controller.dStores);
+                this.N = this.realDstoreData.size();
+            }
+        }
+
+        private void setFilesToDistribute()
+        {
+            for (DSTORE_DATA eachDstore : this.realDstoreData) {
+                this.currentFiles.put(eachDstore.dPort, new HashSet<String>());
+                this.testDstoreData.put(eachDstore.dPort, new TreeSet<FILE_ENTRY>(Controller.FILE_SIZE_ORDER));
+            }
+            for (FILE_ENTRY eachFile : Controller.fileIndex.values()) {
+                boolean stored = eachFile.isStoreComplete();
+                if (!stored && !eachFile.state.equals(Controller.FILE_REMOVE_IN_PROGRESS_STATUS))
+                    continue;
+                boolean hasReplica = false;
+                for (Integer eachDPort : eachFile.dPorts) {
+                    Set<String> dstoreFiles = this.currentFiles.get(eachDPort);
+                    if (dstoreFiles == null)
+                        continue;
+                    dstoreFiles.add(eachFile.fileName);
+                    hasReplica = true;
+                    if (stored)
+                        this.testDstoreData.get(eachDPort).add(eachFile);
+                }
+                if (!stored)
+                    this.filesToForget.add(eachFile);
+                else if (hasReplica)
+                    this.filesToDistribute.add(eachFile); //a file without any replica left cannot be copied anywhere
+            }
+            this.F = this.filesToDistribute.size();
+        }
+
+        /**
+         * Compute the new placement on the copy(testDstoreData) from the target Dstores of the placement strategy, if it has them.
+         *
+         * @return boolean | false if the strategy has no fixed place for a file
+         */
+        private boolean distributeByStrategy()
+        {
+            Set<Integer> dPorts = this.testDstoreData.keySet();
+            Map<FILE_ENTRY, List<Integer>> targets = new HashMap<FILE_ENTRY, List<Integer>>();
+            for (FILE_ENTRY eachFile : this.filesToDistribute) {
+                List<Integer> eachTarget = Controller.placementStrategy.getTargetDPorts(eachFile.fileName, this.R, dPorts);
+                if (eachTarget == null)
+                    return false;
+                targets.put(eachFile, eachTarget);
+            }
+            for (TreeSet<FILE_ENTRY> eachDstore : this.testDstoreData.values())
+                eachDstore.clear();
+            for (Map.Entry<FILE_ENTRY, List<Integer>> eachTarget : targets.entrySet()) {
+                for (Integer eachDPort : eachTarget.getValue())
+                    this.testDstoreData.get(eachDPort).add(eachTarget.getKey());
+            }
+            return true;
+        }
+
+        /**
+         * Compute the new placement on the copy(testDstoreData) : first make sure each file has exactly R replicas, then move files
+         * from the fullest Dstore to the emptiest one until they are within the bounds. The smallest file that can be moved is always picked.
+         */
+        private void distributeEvenly()
+        {
+            //each file on exactly R Dstores
+            for (FILE_ENTRY eachFile : this.filesToDistribute) {
+                List<Integer> holders = new ArrayList<Integer>();
+                for (Map.Entry<Integer, TreeSet<FILE_ENTRY>> eachDstore : this.testDstoreData.entrySet()) {
+                    if (eachDstore.getValue().contains(eachFile))
+                        holders.add(eachDstore.getKey());
+                }
+                while (holders.size() > this.R) {
+                    Integer fullest = Collections.max(holders, Comparator.comparingInt(port -> this.testDstoreData.get(port).size()));
+                    this.testDstoreData.get(fullest).remove(eachFile);
+                    holders.remove(fullest);
+                }
+                while (holders.size() < this.R) {
+                    Integer emptiest = null;
+                    for (Map.Entry<Integer, TreeSet<FILE_ENTRY>> eachDstore : this.testDstoreData.entrySet()) {
+                        if (holders.contains(eachDstore.getKey()))
+                            continue;
+                        if (emptiest == null || eachDstore.getValue().size() < this.testDstoreData.get(emptiest).size())
+                            emptiest = eachDstore.getKey();
+                    }
+                    this.testDstoreData.get(emptiest).add(eachFile);
+                    holders.add(emptiest);
+                }
+            }
+
+            //every Dstore within floor(R*F/N) && ceil(R*F/N)
+            while (true) {
+                Integer fullest = null;
+                Integer emptiest = null;
+                for (Map.Entry<Integer, TreeSet<FILE_ENTRY>> eachDstore : this.testDstoreData.entrySet()) {
+                    if (fullest == null || eachDstore.getValue().size() > this.testDstoreData.get(fullest).size())
+                        fullest = eachDstore.getKey();
+                    if (emptiest == null || eachDstore.getValue().size() < this.testDstoreData.get(emptiest).size())
+                        emptiest = eachDstore.getKey();
+                }
+                TreeSet<FILE_ENTRY> fullestFiles = this.testDstoreData.get(fullest);
+                TreeSet<FILE_ENTRY> emptiestFiles = this.testDstoreData.get(emptiest);
+                //once the difference is at most 1 every Dstore is within the bounds
+                if (fullestFiles.size() - emptiestFiles.size() <= 1)
+                    break;
+                //the emptiest Dstore has fewer files, so at least one file of the fullest Dstore is missing from it
+                for (FILE_ENTRY eachFile : fullestFiles) {
+                    if (!emptiestFiles.contains(eachFile)) {
+                        fullestFiles.remove(eachFile);
+                        emptiestFiles.add(eachFile);
+                        break;
+                    }
+                }
+            }
+        }
+
+        private boolean eachDstoreHasCorrectFileNumber()
+        {
+            int lowerBound = (this.R * this.F) / this.N;
+            int higherBound = (this.R * this.F + this.N - 1) / this.N;
+
+            for (TreeSet<FILE_ENTRY> eachDstore : this.testDstoreData.values()) {
+                int fileNumber = eachDstore.size();
+                if(! (lowerBound <= fileNumber && fileNumber <= higherBound))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Diff the new placement against the current one && build the REBALANCE message of each Dstore that has something to do.
+         * REBALANCE files_to_send files_to_remove, where files_to_send = number_of_files file1 number_of_dstores port1 port2 ... file2 ...
+         * and files_to_remove = number_of_files file1 file2 ...
+         *
+         * @return Map<Integer, String> | port => REBALANCE message
+         */
+        private Map<Integer, String> getRebalanceOperations()
+        {
+            Map<Integer, Integer> sendsPerDstore = new HashMap<Integer, Integer>();
+            for (Map.Entry<Integer, TreeSet<FILE_ENTRY>> eachTestDstore : this.testDstoreData.entrySet()) {
+                Integer dPort = eachTestDstore.getKey();
+                Set<String> current = this.currentFiles.get(dPort);
+
+                for (FILE_ENTRY eachTestFile : eachTestDstore.getValue()) {
+                    if (current.contains(eachTestFile.fileName))
+                        continue;
+                    //copy it from a Dstore that keeps the file if possible, otherwise from one that sends before it removes
+                    Integer source = null;
+                    boolean sourceKeepsFile = false;
+                    for (Integer eachHolder : eachTestFile.dPorts) {
+                        if (!this.currentFiles.containsKey(eachHolder) || !this.currentFiles.get(eachHolder).contains(eachTestFile.fileName))
+                            continue;
+                        boolean keepsFile = this.testDstoreData.get(eachHolder).contains(eachTestFile);
+                        if (source == null || (keepsFile && !sourceKeepsFile)
+                                || (keepsFile == sourceKeepsFile && sendsPerDstore.getOrDefault(eachHolder, 0) < sendsPerDstore.getOrDefault(source, 0))) {
+                            source = eachHolder;
+                            sourceKeepsFile = keepsFile;
+                        }
+                    }
+                    sendsPerDstore.merge(source, 1, Integer::sum);
+                    this.filesToSend.computeIfAbsent(source, port -> new LinkedHashMap<String, List<Integer>>())
+                            .computeIfAbsent(eachTestFile.fileName, filename -> new ArrayList<Integer>()).add(dPort);
+                }
+
+                for (String eachCurrentFile : current) {
+                    FILE_ENTRY file = Controller.fileIndex.get(eachCurrentFile);
+                    if (file == null || !eachTestDstore.getValue().contains(file))
+                        this.filesToRemove.computeIfAbsent(dPort, port -> new ArrayList<String>()).add(eachCurrentFile);
+                }
+                //a stray file is either removed or overwritten by the copy the Dstore gets above
+                DSTORE_DATA dstore = Controller.dStoresByPort.get(dPort);
+                for (String eachStrayFile : (dstore != null) ? dstore.strayFiles : Collections.<String>emptySet()) {
+                    FILE_ENTRY file = Controller.fileIndex.get(eachStrayFile);
+                    if (!current.contains(eachStrayFile) && (file == null || !eachTestDstore.getValue().contains(file)))
+                        this.filesToRemove.computeIfAbsent(dPort, port -> new ArrayList<String>()).add(eachStrayFile);
+                }
+            }
+
+            Map<Integer, String> rtrnRebalanceArr = new HashMap<Integer, String>();
+            for (DSTORE_DATA eachDstore : this.realDstoreData) {
+                Map<String, List<Integer>> sends = this.filesToSend.getOrDefault(eachDstore.dPort, Collections.emptyMap());
+                List<String> removes = this.filesToRemove.getOrDefault(eachDstore.dPort, Collections.emptyList());
+                if (sends.isEmpty() && removes.isEmpty())
+                    continue;
+
+                StringBuilder message = new StringBuilder(Controller.REBALANCE_REQUEST).append(" ").append(sends.size());
+                for (Map.Entry<String, List<Integer>> eachSend : sends.entrySet()) {
+                    message.append(" ").append(eachSend.getKey()).append(" ").append(eachSend.getValue().size());
+                    for (Integer eachDestination : eachSend.getValue())
+                        message.append(" ").append(eachDestination);
+                }
+                message.append(" ").append(removes.size());
+                for (String eachRemove : removes)
+                    message.append(" ").append(eachRemove);
+                rtrnRebalanceArr.put(eachDstore.dPort, message.toString());
+            }
+            return rtrnRebalanceArr;
+        }
+
+        /**
+         * Apply the changes of every Dstore that confirmed the rebalance : the files it sent are now on their destinations
+         * && the files it had to remove are gone.
+         */
+        private void updateIndex()
+        {
+            for (Map.Entry<Integer, CompletableFuture<Void>> eachConfirmation : this.confirmations.entrySet()) {
+                if (!eachConfirmation.getValue().isDone())
+                    continue;
+                Integer dPort = eachConfirmation.getKey();
+
+                for (Map.Entry<String, List<Integer>> eachSend : this.filesToSend.getOrDefault(dPort, Collections.emptyMap()).entrySet()) {
+                    FILE_ENTRY file = Controller.fileIndex.get(eachSend.getKey());
+                    for (Integer eachDestination : eachSend.getValue()) {
+                        DSTORE_DATA destination = Controller.dStoresByPort.get(eachDestination);
+                        if (file != null && destination != null) {
+                            destination.strayFiles.remove(file.fileName);
+                            if (destination.addFile(file))
+                                Controller.logMetadata(METADATA_LOG.ADD_REPLICA_RECORD + " " + file.fileName + " " + eachDestination);
+                        }
+                    }
+                }
+                DSTORE_DATA dstore = Controller.dStoresByPort.get(dPort);
+                for (String eachRemove : this.filesToRemove.getOrDefault(dPort, Collections.emptyList())) {
+                    if (dstore != null && !dstore.strayFiles.remove(eachRemove)) {
+                        dstore.removeFile(eachRemove);
+                        Controller.logMetadata(METADATA_LOG.DROP_REPLICA_RECORD + " " + eachRemove + " " + dPort);
+                    }
+                }
+            }
+
+            for (FILE_ENTRY eachFile : this.filesToForget) {
+                if (eachFile.dPorts.isEmpty() && Controller.fileIndex.remove(eachFile.fileName, eachFile))
+                    Controller.logMetadata(METADATA_LOG.REMOVE_RECORD + " " + eachFile.fileName);
+            }
+            ControllerLogger.getInstance().log("Rebalance finished.");
+        }
+
+    }
+
+
+    /**
+     * Durable metadata log of the index(--metadata-dir=path). Every change of the index is appended as one text line :
+     *  S filename filesize port1,port2 .. (store complete), R filename (remove complete), A filename port / D filename port(replica added/dropped),
+     *  J port / L port(Dstore joined/left).
+     * The records are written by one thread && fsync-ed once per batch(group commit), append returns a future that completes once the record is durable.
+     * The log is split into segments(wal-N.log). A snapshot(snapshot-N) is written in the same format && holds the whole index as it was before segment N,
+     * so a restart loads the latest snapshot && replays the segments from N on. Replaying a record is idempotent, so the snapshot does not have to
+     * stop the index while it is written.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class METADATA_LOG implements Runnable {
+        static final String STORE_RECORD = "S";
+        static final String REMOVE_RECORD = "R";
+        static final String ADD_REPLICA_RECORD = "A";
+        static final String DROP_REPLICA_RECORD = "D";
+        static final String JOIN_RECORD = "J";
+        static final String LEAVE_RECORD = "L";
+        private static final String ROTATE = "ROTATE";//not written, starts a new segment
+        private static final String STOP = "STOP";//not written, stops the writer thread
+        private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d{1,18})");
+        private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d{1,18})\\.log");
+
+        private final File directory;
+        private final boolean sync;
+        private final LinkedBlockingQueue<PENDING_RECORD> records = new LinkedBlockingQueue<PENDING_RECORD>();
+        private final AtomicLong recordsSinceSnapshot = new AtomicLong(0);
+        private FileChannel segment;
+        private volatile long segmentNumber = 0;
+
+        /**
+         * A record waiting for the writer thread.
+         */
+        static class PENDING_RECORD {
+            final String record;
+            final CompletableFuture<Void> committed = new CompletableFuture<Void>();
+
+            PENDING_RECORD(String record) {
+                this.record = record;
+            }
+        }
+
+        /**
+         * The index rebuilt from the snapshot && the log.
+         */
+        static class RECOVERED_STATE {
+            final Map<String, FILE_ENTRY> files = new HashMap<String, FILE_ENTRY>();
+            final Set<Integer> dstores = new HashSet<Integer>();
+            long records = 0;
+        }
+
+        METADATA_LOG(File directory, boolean sync) {
+            this.directory = directory;
+            this.sync = sync;
+        }
+
+        static String storeRecord(FILE_ENTRY file) {
+            StringBuilder record = new StringBuilder(STORE_RECORD).append(' ').append(file.fileName).append(' ').append(file.fileSize).append(' ');
+            boolean first = true;
+            for (Integer eachDPort : file.dPorts) {
+                if (!first)
+                    record.append(',');
+                record.append(eachDPort);
+                first = false;
+            }
+            return first ? record.append('-').toString() : record.toString();
+        }
+
+        /**
+         * Load the latest snapshot && replay the log segments written after it. A record cut short by a crash(the last line of the last segment) is ignored.
+         *
+         * @return RECOVERED_STATE
+         */
+        RECOVERED_STATE recover() throws IOException {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs())
+                throw new IOException("Cannot create the metadata directory " + this.directory.getAbsolutePath());
+            RECOVERED_STATE state = new RECOVERED_STATE();
+            long snapshot = -1;
+            TreeMap<Long, File> segments = new TreeMap<Long, File>();
+            for (File eachFile : this.directory.listFiles()) {
+                String name = eachFile.getName();
+                long number;
+                if ((number = METADATA_LOG.fileNumber(SNAPSHOT_NAME, name)) >= 0)
+                    snapshot = Math.max(snapshot, number);
+                else if ((number = METADATA_LOG.fileNumber(SEGMENT_NAME, name)) >= 0)
+                    segments.put(number, eachFile);
+                else if (!name.endsWith(".tmp"))//a snapshot cut short by a crash
+                    ControllerLogger.getInstance().log("Skipping " + name + " in the metadata directory, it is not a snapshot || a log segment.");
+            }
+            if (snapshot >= 0)
+                METADATA_LOG.replay(new File(this.directory, "snapshot-" + snapshot), state);
+            for (Map.Entry<Long, File> eachSegment : segments.tailMap(Math.max(snapshot, 0L)).entrySet())
+                METADATA_LOG.replay(eachSegment.getValue(), state);
+            this.segmentNumber = Math.max(snapshot, segments.isEmpty() ? 0 : segments.lastKey()) + 1;
+            return state;
+        }
+
+        private static void replay(File file, RECOVERED_STATE state) throws IOException {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    try {
+                        METADATA_LOG.apply(line.split(" "), state);
+                        state.records++;
+                    } catch (RuntimeException e) {
+                        ControllerLogger.getInstance().log("Ignoring a broken metadata record in " + file.getName() + " : " + line);
+                    }
+                }
+            }
+        }
+
+        private static void apply(String[] record, RECOVERED_STATE state) {
+            FILE_ENTRY file;
+            switch (record[0]) {
+                case STORE_RECORD:
+                    file = new FILE_ENTRY(record[1], Long.parseLong(record[2]), Controller.FILE_STORE_COMPLETE_STATUS);
+                    if (!record[3].equals("-")) {
+                        for (String eachDPort : record[3].split(","))
+                            file.dPorts.add(Integer.parseInt(eachDPort));
+                    }
+                    state.files.put(file.fileName, file);
+                    break;
+                case REMOVE_RECORD:
+                    state.files.remove(record[1]);
+                    break;
+                case ADD_REPLICA_RECORD:
+                    file = state.files.get(record[1]);
+                    if (file != null)
+                        file.dPorts.add(Integer.parseInt(record[2]));
+                    break;
+                case DROP_REPLICA_RECORD:
+                    file = state.files.get(record[1]);
+                    if (file != null)
+                        file.dPorts.remove(Integer.parseInt(record[2]));
+                    break;
+                case JOIN_RECORD:
+                    state.dstores.add(Integer.parseInt(record[1]));
+                    break;
+                case LEAVE_RECORD:
+                    //the Dstore's replicas were dropped from the index when it left
+                    Integer dPort = Integer.parseInt(record[1]);
+                    state.dstores.remove(dPort);
+                    for (FILE_ENTRY eachFile : state.files.values())
+                        eachFile.dPorts.remove(dPort);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown record type " + record[0]);
+            }
+        }
+
+        /**
+         * Open a new segment && start the writer thread. Called after recover.
+         */
+        void start() throws IOException {
+            this.segment = this.openSegment(this.segmentNumber);
+            Thread writer = new Thread(this, "metadata-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Queue a record.
+         *
+         * @return CompletableFuture<Void> | completes once the record is durable
+         */
+        CompletableFuture<Void> append(String record) {
+            PENDING_RECORD pending = new PENDING_RECORD(record);
+            this.records.add(pending);
+            this.recordsSinceSnapshot.incrementAndGet();
+            return pending.committed;
+        }
+
+        long getRecordsSinceSnapshot() {
+            return this.recordsSinceSnapshot.get();
+        }
+
+        /**
+         * Start a new segment, write the given index as snapshot of everything before it && delete the older segments/snapshots.
+         * The index can change while it is written : those changes are in the new segment as well, && replaying them again is harmless.
+         *
+         * @param files the files of the index, only the fully stored ones are written
+         * @param dstores the ports of the Dstores that are part of the system
+         */
+        void snapshot(Collection<FILE_ENTRY> files, Collection<Integer> dstores) throws Exception {
+            PENDING_RECORD rotate = new PENDING_RECORD(ROTATE);
+            this.records.add(rotate);
+            rotate.committed.get();
+            this.recordsSinceSnapshot.set(0);
+            long snapshotNumber = this.segmentNumber;
+
+            File temporary = new File(this.directory, "snapshot-" + snapshotNumber + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temporary);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16)) {
+                for (Integer eachDPort : dstores)
+                    writer.write(JOIN_RECORD + " " + eachDPort + "\n");
+                for (FILE_ENTRY eachFile : files) {
+                    if (eachFile.isStoreComplete())
+                        writer.write(METADATA_LOG.storeRecord(eachFile) + "\n");
+                }
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(temporary.toPath(), new File(this.directory, "snapshot-" + snapshotNumber).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            for (File eachFile : this.directory.listFiles()) {
+                String name = eachFile.getName();
+                long number = Math.max(METADATA_LOG.fileNumber(SNAPSHOT_NAME, name), METADATA_LOG.fileNumber(SEGMENT_NAME, name));
+                if (number >= 0 && number < snapshotNumber)
+                    eachFile.delete();
+            }
+        }
+
+        /**
+         * @return long | the N of a snapshot-N || wal-N.log name, -1 if the name is not one of the pattern(e.g. an editor backup)
+         */
+        private static long fileNumber(Pattern pattern, String name) {
+            Matcher matcher = pattern.matcher(name);
+            return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+        }
+
+        /**
+         * Write the records that are still queued && stop the writer thread.
+         */
+        void close() throws Exception {
+            PENDING_RECORD stop = new PENDING_RECORD(STOP);
+            this.records.add(stop);
+            stop.committed.get();
+        }
+
+        /**
+         * The writer thread : takes every record that is queued, writes them with one write && one fsync, then completes their futures.
+         */
+        public void run() {
+            List<PENDING_RECORD> batch = new ArrayList<PENDING_RECORD>();
+            List<PENDING_RECORD> written = new ArrayList<PENDING_RECORD>();
+            StringBuilder text = new StringBuilder();
+            for (; ; ) {
+                try {
+                    batch.add(this.records.take());
+                    this.records.drainTo(batch);
+                    for (PENDING_RECORD eachRecord : batch) {
+                        if (eachRecord.record.equals(ROTATE) || eachRecord.record.equals(STOP)) {
+                            this.write(text, written);
+                            this.segment.close();
+                            if (eachRecord.record.equals(STOP)) {
+                                eachRecord.committed.complete(null);
+                                return;
+                            }
+                            this.segment = this.openSegment(++this.segmentNumber);
+                            eachRecord.committed.complete(null);
+                            continue;
+                        }
+                        text.append(eachRecord.record).append('\n');
+                        written.add(eachRecord);
+                    }
+                    this.write(text, written);
+                } catch (Throwable e) {
+                    ControllerLogger.getInstance().log("Error when writing the metadata log : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                    for (PENDING_RECORD eachRecord : batch)
+                        eachRecord.committed.completeExceptionally(e);
+                    text.setLength(0);
+                    written.clear();
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void write(StringBuilder text, List<PENDING_RECORD> written) throws IOException {
+            if (text.length() > 0) {
+                ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+                while (bytes.hasRemaining())
+                    this.segment.write(bytes);
+                if (this.sync)
+                    this.segment.force(false);
+            }
+            for (PENDING_RECORD eachRecord : written)
+                eachRecord.committed.complete(null);
+            text.setLength(0);
+            written.clear();
+        }
+
+        private FileChannel openSegment(long number) throws IOException {
+            return FileChannel.open(new File(this.directory, "wal-" + number + ".log").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Failure detector : every Dstore sends a HEARTBEAT on its JOIN connection every heartbeat interval. A Dstore that has not been heard of(any message
+     * counts) for suspectAfter intervals is suspect : it gets no new files && downloads while there are other Dstores. After deadAfter intervals it is
+     * declared dead, removed from the index && its connection is closed. Runs on its own thread, so the request threads never wait for it.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    class FAILURE_DETECTOR implements Runnable
+    {
+        private final long intervalNanos;
+        private final int suspectAfter;
+        private final int deadAfter;
+
+        public FAILURE_DETECTOR(long intervalMillis, int suspectAfter, int deadAfter)
+        {
+            this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            this.suspectAfter = suspectAfter;
+            this.deadAfter = deadAfter;
+        }
+
+        public void run()
+        {
+            try {
+                long now = System.nanoTime();
+                for (DSTORE_DATA eachDstore : Controller.dStores) {
+                    long missedIntervals = (now - eachDstore.lastHeardNanos) / this.intervalNanos;
+                    if (missedIntervals >= this.deadAfter) {
+                        ControllerLogger.getInstance().log("Dstore " + eachDstore.dPort + " missed " + missedIntervals + " heartbeats, removing it.");
+                        Controller.dropDstore(eachDstore);
+                    } else if (missedIntervals >= this.suspectAfter && !eachDstore.suspect) {
+                        ControllerLogger.getInstance().log("Dstore " + eachDstore.dPort + " missed " + missedIntervals + " heartbeats, it is suspect.");
+                        eachDstore.suspect = true;
+                    }
+                }
+            } catch (Throwable e) {
+                ControllerLogger.getInstance().log("Error in the failure detector : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+    }
+
+
+    /**
+     * Non-blocking front end(--io=nio) : a few selector threads accept the connections && read them into a reusable buffer, the complete request lines
+     * are handed over to a small worker pool. The requests of a session are processed one at a time && in order by the same REQUEST_THREAD code as
+     * in the threaded front end, && its responses go through a PrintWriter that queues them on the channel, so the wire protocol does not change.
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    class NIO_FRONT_END
+    {
+        private final SELECTOR_LOOP[] loops;
+        private final ExecutorService workers;
+        private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+        NIO_FRONT_END(int selectors, int workers) throws IOException
+        {
+            this.workers = Executors.newFixedThreadPool(workers);
+            this.loops = new SELECTOR_LOOP[selectors];
+            for (int i = 0; i < selectors; i++) {
+                this.loops[i] = new SELECTOR_LOOP();
+            }
+        }
+
+        /**
+         * Accept && serve connections on the given channel. The first selector thread is the calling thread, so this never returns.
+         */
+        void run(ServerSocketChannel serverChannel) throws IOException
+        {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(this.loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (int i = 1; i < this.loops.length; i++) {
+                Thread loopThread = new Thread(this.loops[i], "nio-selector-" + i);
+                loopThread.setDaemon(true);
+                loopThread.start();
+            }
+            this.loops[0].run();
+        }
+
+        /**
+         * One selector thread. The read buffer is shared by all of its sessions, a session only keeps the bytes of a line that is not complete yet.
+         */
+        class SELECTOR_LOOP implements Runnable
+        {
+            private final Selector selector;
+            private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+            private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+            SELECTOR_LOOP() throws IOException
+            {
+                this.selector = Selector.open();
+            }
+
+            public void run()
+            {
+                for (; ; ) {
+                    try {
+                        this.selector.select();
+                        for (SocketChannel eachChannel = this.newChannels.poll(); eachChannel != null; eachChannel = this.newChannels.poll()) {
+                            NIO_SESSION session = new NIO_SESSION(eachChannel, this);
+                            session.key = eachChannel.register(this.selector, SelectionKey.OP_READ, session);
+                        }
+
+                        Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                        while (selectedKeys.hasNext()) {
+                            SelectionKey eachKey = selectedKeys.next();
+                            selectedKeys.remove();
+                            if (!eachKey.isValid())
+                                continue;
+                            if (eachKey.isAcceptable()) {
+                                this.accept((ServerSocketChannel) eachKey.channel());
+                                continue;
+                            }
+                            NIO_SESSION session = (NIO_SESSION) eachKey.attachment();
+                            if (eachKey.isWritable())
+                                session.flushWrites();
+                            if (eachKey.isValid() && eachKey.isReadable())
+                                this.read(session);
+                        }
+                    } catch (Throwable e) {
+                        System.out.println("UNEXPECTED CONTROLLER ERROR : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                    }
+                }
+            }
+
+            private void accept(ServerSocketChannel serverChannel) throws IOException
+            {
+                for (SocketChannel client = serverChannel.accept(); client != null; client = serverChannel.accept()) {
+                    client.configureBlocking(false);
+                    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    //spread the sessions over the selector threads
+                    SELECTOR_LOOP loop = NIO_FRONT_END.this.loops[Math.floorMod(NIO_FRONT_END.this.nextLoop.getAndIncrement(), NIO_FRONT_END.this.loops.length)];
+                    loop.newChannels.add(client);
+                    loop.selector.wakeup();
+                }
+            }
+
+            private void read(NIO_SESSION session)
+            {
+                this.readBuffer.clear();
+                int read;
+                try {
+                    read = session.channel.read(this.readBuffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                if (read < 0) {
+                    session.close();
+                    return;
+                }
+                this.readBuffer.flip();
+                try {
+                    session.consume(this.readBuffer);
+                } catch (IOException e) {
+                    //a line/frame that is too long or a frame that has no header
+                    ControllerLogger.getInstance().log("Invalid request, closing the session : " + e.getMessage());
+                    session.close();
+                    return;
+                }
+                //stop reading a session that sends requests faster than they are processed
+                session.updateInterest();
+            }
+        }
+
+        /**
+         * One client/Dstore connection.
+         */
+        class NIO_SESSION
+        {
+            private final SocketChannel channel;
+            private final SELECTOR_LOOP loop;
+            private SelectionKey key;
+            private final REQUEST_THREAD handler;
+            private byte[] partialLine = new byte[0]; //the start of a line(or frame) that has not been fully received yet
+            private int partialLength = 0;
+            private final ArrayDeque<BooleanSupplier> tasks = new ArrayDeque<BooleanSupplier>(); //the requests waiting for a worker, in order
+            private int running = 0; //the workers processing the requests of this session, || keeping their place for a parked request
+            private int maxRunning = 1; //one at a time(in order), unless the session is pipelined
+            private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>(); //responses the channel could not take yet
+            private int queuedBytes = 0; //the bytes left in writeQueue
+            private final Object interestLock = new Object(); //the interest ops are set from the selector && the worker threads
+            private boolean closed = false;
+            private boolean firstLine = true; //only the first line of a session can be the PROTOCOL handshake
+            private BinaryProtocol.FRAME frame; //reused for every frame, null while the session speaks the text protocol
+
+            NIO_SESSION(SocketChannel channel, SELECTOR_LOOP loop)
+            {
+                this.channel = channel;
+                this.loop = loop;
+                this.handler = new REQUEST_THREAD(new PrintWriter(new CHANNEL_WRITER(this)), this::close, this::resume);
+            }
+
+            /**
+             * Split the received bytes into lines(or frames, in a binary session) && dispatch each complete one. A line/frame that is cut at the
+             * end of the buffer is kept for the next read.
+             */
+            void consume(ByteBuffer received) throws IOException
+            {
+                byte[] bytes = received.array();
+                if (this.frame != null) {
+                    this.consumeFrames(bytes, received.position(), received.limit());
+                    return;
+                }
+                int lineStart = received.position();
+                for (int i = received.position(); i < received.limit(); i++) {
+                    if (bytes[i] != '\n')
+                        continue;
+                    String line;
+                    this.checkLineLength(i - lineStart);
+                    if (this.partialLength == 0) {
+                        line = Controller.decodeLine(bytes, lineStart, i - lineStart);
+                    } else {
+                        this.appendPartial(bytes, lineStart, i - lineStart);
+                        line = Controller.decodeLine(this.partialLine, 0, this.partialLength);
+                        this.partialLength = 0;
+                    }
+                    lineStart = i + 1;
+                    if (this.firstLine && Controller.isHandshake(line)) {
+                        //answered here, before anything that follows it is read. The frames of a binary session can be in the same buffer
+                        this.firstLine = false;
+                        if (this.handler.processHandshake(line, new CHANNEL_OUTPUT(this))) {
+                            this.frame = new BinaryProtocol.FRAME();
+                            if (this.handler.isPipelined()) {
+                                synchronized (this.tasks) {
+                                    this.maxRunning = Controller.pipelineMaxInFlight;
+                                }
+                            }
+                            this.consumeFrames(bytes, lineStart, received.limit());
+                            return;
+                        }
+                        continue;
                     }
-                    i++;
+                    this.firstLine = false;
+                    this.dispatchRequest(line);
                 }
-                Controller.currRFator--;
+                this.checkLineLength(received.limit() - lineStart);
+                this.appendPartial(bytes, lineStart, received.limit() - lineStart);
             }
-        }
 
-        private void processStoreDrop() throws Throwable
-        {
-            synchronized (Controller.lock)
+            /**
+             * The text lines of a client are capped like the frames(&& like BinaryProtocol.readLine), so a client cannot grow partialLine
+             * without end. A joined Dstore has a larger cap : the threaded front end reads its lines without any, && it is never cut off
+             * in the middle of its INVENTORY || ACKs.
+             *
+             * @param length int | the bytes of the line in the buffer, on top of the ones kept in partialLine
+             */
+            private void checkLineLength(int length) throws IOException
             {
-                String filename = this.currentOngoingProcess.fileName;
-                Controller.removeOngoingProcess(this.currentOngoingProcess);
-                Controller.updateDstoreStatuses(this.dstoresAffected, Controller.DSTORE_IDLE_STATUS);
-                Controller.removeFileFromDstores(this.dstoresAffected, filename);
+                int maxLength = this.handler.isDstoreSession() ? Controller.NIO_MAX_DSTORE_LINE_LENGTH : BinaryProtocol.MAX_REQUEST_LENGTH;
+                if (this.partialLength + length > maxLength)
+                    throw new IOException("Line longer than " + maxLength + " bytes");
             }
-        }
 
-        private void processError(String errorMessage, PrintWriter outStream) {
-            //errors that we need send
-            ControllerLogger.getInstance().log(errorMessage);
-            if (errorMessage.equals(Controller.ERROR_FILE_ALREADY_EXISTS) || errorMessage.equals(Controller.ERROR_FILE_DOES_NOT_EXIST) || errorMessage.equals(Controller.ERROR_NOT_ENOUGH_DSTORES)) {
-                this.sendResponse(errorMessage, outStream);
-                return;
+            /**
+             * The frames are turned into requests here, as the buffer is reused for the next read.
+             */
+            private void consumeFrames(byte[] bytes, int from, int to) throws IOException
+            {
+                if (this.partialLength > 0) {
+                    this.appendPartial(bytes, from, to - from);
+                    bytes = this.partialLine;
+                    from = 0;
+                    to = this.partialLength;
+                    this.partialLength = 0;
+                }
+                int frameLength;
+                while ((frameLength = this.frame.parse(bytes, from, to, BinaryProtocol.MAX_REQUEST_LENGTH)) > 0) {
+                    INCOMING_REQUEST request = new INCOMING_REQUEST(this.frame);
+                    this.dispatch(() -> this.handler.processRequest(request));
+                    from += frameLength;
+                }
+                this.appendPartial(bytes, from, to - from);
             }
 
-        }
-    }
-
-    //the rebalance operation will be on its own thread
-    class REBALANCE_OPERATION implements Runnable
-    {
-        private List<DSTORE_DATA> testDstoreData;
-        private List<DSTORE_DATA> realDstoreData;
-        private List<HashMap<String, String>> filesToDistribute;
-        private boolean newDstore;
-        private int R;
-        private int N;
-        private int F;
-
-        public REBALANCE_OPERATION(boolean newDstore){this.newDstore = newDstore; this.testDstoreData = Controller.dStores;}
+            private void appendPartial(byte[] bytes, int offset, int length)
+            {
+                if (this.partialLength + length > this.partialLine.length)
+                    this.partialLine = Arrays.copyOf(this.partialLine, Math.max(2 * this.partialLine.length, this.partialLength + length));
+                System.arraycopy(bytes, offset, this.partialLine, this.partialLength, length);
+                this.partialLength += length;
+            }
 
-        public void run()
-        {
-            this.setFilesToDistribute();
-            this.setVariables();
-            this.distributeEvenly();
-            if(this.eachDstoreHasCorrectFileNumber()){
-                // an element would look like this = (Dstore, {"remove" => [filesToRemove], "add" => [filesToAdd]})
-                // where each files array would be List<HashMap<String, String>>
-                // and each Dstore would be DSTORE_DATA
-                List<HashMap<DSTORE_DATA, HashMap<String, List<HashMap<String, String>>>>> dStoresOperations = this.getRebalanceOperations();
-                for (HashMap<DSTORE_DATA, HashMap<String, List<HashMap<String, String>>>> eachDstoreOperation : dStoresOperations) {
-                    //todo figure out how to get the files to remove
-                    //todo figure out how to get the files to add
-                    //todo figure out how to get the dstore
+            private void dispatchRequest(String request)
+            {
+                synchronized (this.tasks) {
+                    //the ACKs of a joined Dstore never block, so they are processed straight away instead of waiting behind client requests
+                    //that wait for a rebalance(which needs these ACKs to finish)
+                    if (this.running > 0 || !this.handler.isDstoreSession()) {
+                        this.dispatch(() -> this.handler.processRequest(request));
+                        return;
+                    }
+                }
+                this.handler.processRequest(request);
+            }
 
+            /**
+             * Queue a request of the session. The requests are processed one at a time, in order, unless the session is pipelined : then up
+             * to --pipeline-max-in-flight workers take them from the queue at the same time.
+             */
+            private void dispatch(BooleanSupplier task)
+            {
+                synchronized (this.tasks) {
+                    this.tasks.add(task);
+                    if (this.running >= this.maxRunning)
+                        return;
+                    this.running++;
                 }
+                NIO_FRONT_END.this.workers.execute(this::processTasks);
+            }
 
+            /**
+             * Queue a request that was parked on the rebalance gate again, ahead of the others. Its worker has kept its place(running), so
+             * the requests that came after it have waited behind it.
+             */
+            private void resume(BooleanSupplier task)
+            {
+                synchronized (this.tasks) {
+                    this.tasks.addFirst(task);
+                }
+                NIO_FRONT_END.this.workers.execute(this::processTasks);
+            }
 
+            private void processTasks()
+            {
+                for (; ; ) {
+                    BooleanSupplier task;
+                    boolean drained;
+                    synchronized (this.tasks) {
+                        task = this.tasks.poll();
+                        if (task == null) {
+                            this.running--;
+                            return;
+                        }
+                        drained = this.tasks.size() == Controller.NIO_MAX_QUEUED_REQUESTS - 1;
+                    }
+                    //the selector may have stopped reading the session when the queue was full
+                    if (drained)
+                        this.updateInterest();
+                    boolean finished = true;
+                    try {
+                        finished = task.getAsBoolean();
+                    } catch (Throwable e) {
+                        System.out.println("UNEXPECTED CONTROLLER ERROR : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                    }
+                    //parked until the rebalance is over : the worker goes back to the pool, resume carries on with this session
+                    if (!finished)
+                        return;
+                }
+            }
 
-            } else if (this.newDstore) {
-                //if we dont have the correct file number but we have a new Dstore then we should copy all the files to the new Dstore. TODO IMPLEMENT
+            /**
+             * Write the data straight away if nothing is queued, otherwise(or if the channel cannot take all of it) queue it for the selector thread.
+             */
+            void send(ByteBuffer data)
+            {
+                synchronized (this.writeQueue) {
+                    if (this.closed)
+                        return;
+                    if (this.writeQueue.isEmpty()) {
+                        try {
+                            this.channel.write(data);
+                        } catch (IOException e) {
+                            this.close();
+                            return;
+                        }
+                        if (!data.hasRemaining())
+                            return;
+                    }
+                    this.writeQueue.add(data);
+                    this.queuedBytes += data.remaining();
+                }
+                this.updateInterest();
             }
 
-        }
+            void flushWrites()
+            {
+                synchronized (this.writeQueue) {
+                    try {
+                        while (!this.writeQueue.isEmpty()) {
+                            ByteBuffer data = this.writeQueue.peek();
+                            int remaining = data.remaining();
+                            this.channel.write(data);
+                            this.queuedBytes -= remaining - data.remaining();
+                            if (data.hasRemaining())
+                                break;
+                            this.writeQueue.poll();
+                        }
+                    } catch (IOException e) {
+                        this.close();
+                        return;
+                    }
+                }
+                this.updateInterest();
+            }
 
-        private void setVariables()
-        {
-            synchronized (Controller.lock)
+            /**
+             * Set the interest ops of the session from its queues : writes while responses are queued, && no reads while too many requests
+             * wait for a worker || too many response bytes wait for the client. A client that floods the Controller || never reads its
+             * responses is then held back by TCP, as it was with a thread per connection. Never called while holding tasks || writeQueue.
+             */
+            void updateInterest()
             {
-                this.R = Controller.rFactor;
-                this.N = Controller.currRFator;
-                this.F = filesToDistribute.size();
-                this.realDstoreData = Controller.dStores;
+                boolean changed = false;
+                synchronized (this.interestLock) {
+                    int queuedRequests;
+                    synchronized (this.tasks) {
+                        queuedRequests = this.tasks.size();
+                    }
+                    int ops;
+                    synchronized (this.writeQueue) {
+                        if (this.closed)
+                            return;
+                        //the commands queued for a Dstore do not stop its ACKs, the Dstore may be waiting for them to be read
+                        boolean writesBehind = this.queuedBytes >= Controller.NIO_MAX_QUEUED_BYTES && !this.handler.isDstoreSession();
+                        ops = (this.writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE)
+                                | ((queuedRequests < Controller.NIO_MAX_QUEUED_REQUESTS && !writesBehind) ? SelectionKey.OP_READ : 0);
+                    }
+                    try {
+                        if (this.key.interestOps() != ops) {
+                            this.key.interestOps(ops);
+                            changed = true;
+                        }
+                    } catch (CancelledKeyException e) {
+                        //closed meanwhile
+                    }
+                }
+                //a select that is in progress only sees the new interest ops once it returns
+                if (changed)
+                    this.loop.selector.wakeup();
             }
-        }
 
-        private void setFilesToDistribute()
-        {
-            synchronized (Controller.lock)
+            void close()
             {
-                List<HashMap<String, String>> returnFilesArr = new ArrayList<HashMap<String, String>>();
-                List<String> filesUsed = new ArrayList<String>();
-                for (DSTORE_DATA eachDstore : Controller.dStores){
-                 for (HashMap<String, String> eachFile : eachDstore.files) {
-                     if(! filesUsed.contains(eachFile.get("filename"))){
-                         filesUsed.add(eachFile.get("filename"));
-                         returnFilesArr.add(eachFile);
-                     }
-                 }
-             }
-                this.filesToDistribute = returnFilesArr;
+                synchronized (this.writeQueue) {
+                    if (this.closed)
+                        return;
+                    this.closed = true;
+                    this.writeQueue.clear();
+                    this.queuedBytes = 0;
+                }
+                this.key.cancel();
+                try {
+                    this.channel.close();
+                } catch (IOException e) {
+                    //already closed
+                }
+                //after the requests that are still queued
+                this.dispatch(() -> {
+                    this.handler.processSessionEnd();
+                    return true;
+                });
             }
         }
 
-        private void distributeEvenly()
+        /**
+         * The frames of a binary session : each write is a whole frame(see REQUEST_THREAD.sendFrame), sent to the channel as it is.
+         */
+        class CHANNEL_OUTPUT extends OutputStream
         {
-            List<DSTORE_DATA> finalTestDstoreData = new ArrayList<>();
-            List<DSTORE_DATA> testDstoreDataToUse = new ArrayList<>();
-            testDstoreDataToUse = this.testDstoreData;
-
-            //first clear the existing files to start fresh.
-            for (DSTORE_DATA eachDstore : testDstoreDataToUse) {
-                eachDstore.files = new ArrayList<>();
+            private final NIO_SESSION session;
 
+            CHANNEL_OUTPUT(NIO_SESSION session)
+            {
+                this.session = session;
             }
-            List<List<String>> result = new ArrayList<>();
-            int dStorePartitions = this.testDstoreData.size();
-            for (int i = 0; i < dStorePartitions; i++)
-                finalTestDstoreData.add(testDstoreDataToUse.get(i));
 
-            Iterator<HashMap<String, String>> iterator = this.filesToDistribute.iterator();
-            for(int i = 0; iterator.hasNext(); i++)
-                finalTestDstoreData.get(i % dStorePartitions).addFile(iterator.next().get("filename"), iterator.next().get("filesize"));
+            public void write(int data)
+            {
+                this.session.send(ByteBuffer.wrap(new byte[]{(byte) data}));
+            }
 
-            this.testDstoreData = finalTestDstoreData;
+            public void write(byte[] data, int offset, int length)
+            {
+                this.session.send(ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length)));
+            }
         }
 
-        private boolean eachDstoreHasCorrectFileNumber()
+        /**
+         * Collects what is printed to the session's PrintWriter && sends it to the channel on flush.
+         */
+        class CHANNEL_WRITER extends Writer
         {
-            int lowerBound = (int) Math.floor((this.R * this.F) / this.N);
-            int higherBound = (int) Math.ceil((this.R * this.F) / this.N);
+            private final NIO_SESSION session;
+            private final StringBuilder pending = new StringBuilder();
 
-            for (DSTORE_DATA eachDstore : this.testDstoreData) {
-                int fileNumber = eachDstore.files.size();
-                if(! (lowerBound <= fileNumber && fileNumber >= higherBound))
-                    return false;
+            CHANNEL_WRITER(NIO_SESSION session)
+            {
+                this.session = session;
             }
 
-            return true;
-        }
-
-        private List<HashMap< DSTORE_DATA, HashMap<String, List<HashMap<String, String>>>>> getRebalanceOperations()
-        {
-            List<HashMap<DSTORE_DATA, HashMap<String, List<HashMap<String, String>>>>> rtrnRebalanceArr = new ArrayList<>();
-
-            for (DSTORE_DATA eachTestDstore : this.testDstoreData) {
-                HashMap<DSTORE_DATA, HashMap<String, List<HashMap<String, String>>>> dStoreOperation = new HashMap<>();
-                HashMap<String, List<HashMap<String, String>>> operations = new HashMap<>();
-                DSTORE_DATA realDstoreDataSave = null;
-                List<HashMap<String, String>> filesToRemove = new ArrayList<>();
-                List<HashMap<String, String>>filesToAdd = new ArrayList<>();
-                List<String> commonFiles = new ArrayList<>();
-
-                //take the common files
-                for (DSTORE_DATA eachRealDstore : this.realDstoreData){
-                    if(eachTestDstore.dPort == eachRealDstore.dPort) {
-                        for (HashMap<String, String> eachRealFile : eachRealDstore.files) {
-                            if(eachRealDstore.hasFile(eachRealFile.get("filename"))){
-                                realDstoreDataSave = eachRealDstore;
-                                commonFiles.add(eachRealFile.get("filename"));
-                            } else {
-                                filesToRemove.add(eachRealFile);
-                            }
-                        }
-                        break;
-                    }
-                }
-                //now add the new files
-                for (HashMap<String, String> eachTestFile : eachTestDstore.files) {
-                    if(! commonFiles.contains(eachTestFile.get("filename"))){
-                        filesToAdd.add(eachTestFile);
-                    }
-                }
-                operations.put("remove", filesToRemove);
-                operations.put("add", filesToAdd);
-                dStoreOperation.put(realDstoreDataSave, operations); //todo can it really be null at this point?
-                rtrnRebalanceArr.add(dStoreOperation);
+            public void write(char[] chars, int offset, int length)
+            {
+                this.pending.append(chars, offset, length);
+            }
 
+            public void flush()
+            {
+                if (this.pending.length() == 0)
+                    return;
+                ByteBuffer data = StandardCharsets.UTF_8.encode(CharBuffer.wrap(this.pending));
+                this.pending.setLength(0);
+                this.session.send(data);
             }
 
-            return rtrnRebalanceArr;
+            public void close()
+            {
+                this.flush();
+            }
         }
-
-        //todo figure out how to write the update functions for each Dstore in an efficient way.
-
     }
 
 
@@ -815,6 +3048,14 @@ public class Controller {
         Controller.rFactor = rFactor;
         Controller.timeoutPer = timeoutPer;
         Controller.timeoutForNewReb = timeoutForNewReb;
+        Controller.placementStrategy = Controller.createPlacementStrategy(Controller.getOption("placement", "least-bytes"));
+        Controller.dstoreMaxInFlight = Integer.parseInt(Controller.getOption("dstore-max-in-flight", "64"));
+        Controller.ioMode = Controller.getOption("io", "threads");
+        Controller.connectionThreads = ConnectionThreads.create(Controller.getOption("threads", ConnectionThreads.PLATFORM), "request");
+        Controller.pipelineMaxInFlight = Integer.parseInt(Controller.getOption("pipeline-max-in-flight", "256"));
+        Controller.pipelineWorkers = Executors.newCachedThreadPool(Controller.connectionThreads);
+        if (Controller.getOption("metadata-dir", null) != null)
+            this.recoverMetadata(new File(Controller.getOption("metadata-dir", null)));
         this.initialiseSystem();
     }
 
@@ -828,12 +3069,47 @@ public class Controller {
         String rFactor = args[1];
         String timeoutPer = args[2];
         String timeoutForNewReb = args[3];
+        Controller.parseOptions(args, 4);
         System.out.println("Starting server...");
         ControllerLogger.init(Logger.LoggingType.ON_FILE_AND_TERMINAL);
         Controller sysStart = new Controller(Integer.parseInt(cPort), Integer.parseInt(rFactor), Integer.parseInt(timeoutPer), Integer.parseInt(timeoutForNewReb));
     }
 
 
+    /**
+     * Rebuild the index from the metadata log && start logging. The files are visible straight away, their replicas are attached to the Dstores
+     * as they join again.
+     *
+     * @param directory File
+     * @throws Exception | void
+     */
+    private void recoverMetadata(File directory) throws Exception {
+        long start = System.nanoTime();
+        Controller.metadataLog = new METADATA_LOG(directory, Boolean.parseBoolean(Controller.getOption("metadata-sync", "true")));
+        METADATA_LOG.RECOVERED_STATE state = Controller.metadataLog.recover();
+        Controller.fileIndex.putAll(state.files);
+        for (FILE_ENTRY eachFile : state.files.values()) {
+            for (Integer eachDPort : eachFile.dPorts)
+                Controller.recoveredReplicas.computeIfAbsent(eachDPort, port -> new ArrayList<FILE_ENTRY>()).add(eachFile);
+        }
+        Controller.metadataLog.start();
+        ControllerLogger.getInstance().log("Recovered " + state.files.size() + " files on " + Controller.recoveredReplicas.size() + " Dstores from "
+                + state.records + " metadata records in " + (System.nanoTime() - start) / 1000000 + "ms.");
+
+        //compact the log : right away(the replayed segments are not needed anymore) && then periodically, if anything has been logged
+        long snapshotInterval = Long.parseLong(Controller.getOption("metadata-snapshot-interval", "60"));
+        Controller.snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                if (Controller.metadataLog.getRecordsSinceSnapshot() > 0 || state.records > 0) {
+                    state.records = 0;
+                    Controller.metadataLog.snapshot(Controller.fileIndex.values(), Controller.dStoresByPort.keySet());
+                }
+            } catch (Throwable e) {
+                ControllerLogger.getInstance().log("Error when writing the metadata snapshot : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }, 0, snapshotInterval, TimeUnit.SECONDS);
+    }
+
     /**
      * The entrypoint of the program when the Controller starts
      *
@@ -842,10 +3118,29 @@ public class Controller {
      */
     private void initialiseSystem() throws Exception {
         //setup the port to listen for incoming requests from client/Dstores
-        this.socket = new ServerSocket(this.cPort);
+        ServerSocketChannel serverChannel = null;
+        if (Controller.ioMode.equals("nio")) {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(Controller.cPort), Controller.ACCEPT_BACKLOG);
+        } else {
+            this.socket = new ServerSocket(this.cPort, Controller.ACCEPT_BACKLOG);
+        }
         System.out.println("Controller Server started. Listening to requests.");
+        //the failure detector checks the Dstores once per heartbeat interval
+        long heartbeatInterval = Long.parseLong(Controller.getOption("heartbeat-interval", "1000"));
+        FAILURE_DETECTOR failureDetector = new FAILURE_DETECTOR(heartbeatInterval, Integer.parseInt(Controller.getOption("heartbeat-suspect-after", "3")),
+                Integer.parseInt(Controller.getOption("heartbeat-dead-after", "5")));
+        Controller.failureDetectorScheduler.scheduleAtFixedRate(failureDetector, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        //rebalance_period is in seconds
+        Controller.rebalanceScheduler.scheduleWithFixedDelay(() -> new REBALANCE_OPERATION(false).run(), Controller.timeoutForNewReb, Controller.timeoutForNewReb, TimeUnit.SECONDS);
         //wait for incoming connections
-        this.waitForRequests();
+        if (serverChannel != null) {
+            int selectors = Integer.parseInt(Controller.getOption("nio-selectors", "1"));
+            int workers = Integer.parseInt(Controller.getOption("nio-workers", Integer.toString(2 * Runtime.getRuntime().availableProcessors())));
+            new NIO_FRONT_END(selectors, workers).run(serverChannel);
+        } else {
+            this.waitForRequests();
+        }
     }
 
     /**
@@ -856,8 +3151,10 @@ public class Controller {
         for (; ; ) {
             try {
                 Socket client = Controller.socket.accept();
-                //create new thread for the ongoing process.
-                Thread request = new Thread(new REQUEST_THREAD(client));
+                //STORE_TO && STORE_COMPLETE are small writes in a row, which Nagle would hold back for a delayed ACK(as in the nio front end)
+                client.setTcpNoDelay(true);
+                //create new thread for the ongoing process(a virtual thread with --threads=virtual).
+                Thread request = Controller.connectionThreads.newThread(new REQUEST_THREAD(client));
                 request.start();
             } catch (Throwable e) {
                 System.out.println("UNEXPECTED CONTROLLER ERROR : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
@@ -875,13 +3172,49 @@ public class Controller {
      * @throws Exception | void
      */
     static protected ONGOING_PROCESS getOngoingProcessByFileName(String process_type, String filename) throws Exception {
-        for (ONGOING_PROCESS currOngoingProcess : Controller.ongoingProcesses) {
-            if (currOngoingProcess.processType.equals(process_type) && currOngoingProcess.fileName.equals(filename)) {
-                return currOngoingProcess;
-            }
+        ConcurrentHashMap<String, ONGOING_PROCESS> processesOfType = Controller.ongoingProcesses.get(process_type);
+        ONGOING_PROCESS currOngoingProcess = (processesOfType == null) ? null : processesOfType.get(filename);
+        if (currOngoingProcess == null) {
+            throw new Exception("Unknown File name. Requested : " + filename);
+        }
+        return currOngoingProcess;
+    }
+
+    /**
+     * Register a new Ongoing Process, so that the ACKs from the Dstores can find it by its type && file name.
+     *
+     * @param process ONGOING_PROCESS
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     * @throws Exception | void
+     */
+    static private void registerOngoingProcess(ONGOING_PROCESS process) throws Exception {
+        ConcurrentHashMap<String, ONGOING_PROCESS> processesOfType = Controller.ongoingProcesses.computeIfAbsent(process.processType, type -> new ConcurrentHashMap<String, ONGOING_PROCESS>());
+        if (processesOfType.putIfAbsent(process.fileName, process) != null) {
+            throw new Exception("There is already an ongoing " + process.processType + " for " + process.fileName);
         }
-        throw new Exception("Unknown File name. Requested : " + filename);
+        Controller.ongoingProcessCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of in-flight STORE/REMOVE operations.
+     *
+     * @return int
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static int getOngoingProcessCount() {
+        return Controller.ongoingProcessCount.get();
+    }
 
+    /**
+     * Get the lock that guards the given file in the index. Files are spread over a fixed number of stripes by their hash,
+     * so operations on different files can run in parallel while every operation on the same file is serialised.
+     *
+     * @param filename String
+     * @return Object
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static Object getFileLock(String filename) {
+        return Controller.fileLocks[(filename.hashCode() & 0x7fffffff) % Controller.fileLocks.length];
     }
 
     /**
@@ -891,30 +3224,45 @@ public class Controller {
      * @author Andrei123f(ap4u19@soton.ac.uk)
      */
     static private void removeOngoingProcess(ONGOING_PROCESS processToRemove) {
-        int i = 0;
-        for (ONGOING_PROCESS currOngoingProcess : Controller.ongoingProcesses) {
-            if (currOngoingProcess == processToRemove) {
-                Controller.ongoingProcesses.remove(i);
-                break;
-            }
-            i++;
+        ConcurrentHashMap<String, ONGOING_PROCESS> processesOfType = Controller.ongoingProcesses.get(processToRemove.processType);
+        if (processesOfType != null && processesOfType.remove(processToRemove.fileName, processToRemove)) {
+            Controller.ongoingProcessCount.decrementAndGet();
         }
     }
 
     /**
-     * Add the file to the given Dstore list. Will be used in the STORE Operation to keep track of the files.
+     * Add the file to the given Dstore list && mark it as stored. Will be used in the STORE Operation to keep track of the files.
+     * A Dstore that has dropped since it ACKed(|| whose port now belongs to a Dstore that has joined again) does not get the replica :
+     * the STORE completes on the others && the rebalance makes up for the missing replica.
      *
      * @param dstores List<DSTORE_DATA>
-     * @param filename String
-     * @param filesize String
+     * @param file FILE_ENTRY
+     * @return int | the number of Dstores the file has been added to, the file is only marked as stored if it is more than 0
      * @author Andrei123f(ap4u19@soton.ac.uk)
      * @throws Throwable | void
      */
-    static private void addFileToDstores(List<DSTORE_DATA> dstores, String filename, String filesize) throws Throwable
+    static private int addFileToDstores(List<DSTORE_DATA> dstores, FILE_ENTRY file) throws Throwable
     {
+        int added = 0;
         for (DSTORE_DATA eachDstore : dstores) {
-            if(! eachDstore.hasFile(filename))
-                eachDstore.addFile(filename, filesize);
+            if (Controller.dStoresByPort.get(eachDstore.dPort) == eachDstore && eachDstore.addFile(file))
+                added++;
+        }
+        if (added > 0)
+            file.state = Controller.FILE_STORE_COMPLETE_STATUS;
+        return added;
+    }
+
+    /**
+     * Remove every replica the given Dstore held from the index. Used when a Dstore drops.
+     *
+     * @param dstore DSTORE_DATA
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static private void removeDstoreFromIndex(DSTORE_DATA dstore)
+    {
+        for (FILE_ENTRY eachFile : dstore.files.values()) {
+            eachFile.dPorts.remove(dstore.dPort);
         }
     }
 
@@ -934,18 +3282,108 @@ public class Controller {
     }
 
     /**
-     * Update the status of the given Dstore List
+     * Mark the end of a STORE/REMOVE on the given Dstore List. Each Dstore goes back to the idle status once it has no operation left.
      *
      * @param dstores List<DSTORE_DATA>
-     * @param status String
+     * @param bytes long | the size of the stored file, 0 for a REMOVE
      * @author Andrei123f(ap4u19@soton.ac.uk)
      * @throws Throwable | void
      */
-    static void updateDstoreStatuses(List<DSTORE_DATA> dstores, String status) throws Throwable
+    static void finishDstoreOperations(List<DSTORE_DATA> dstores, long bytes) throws Throwable
     {
         for (DSTORE_DATA eachDstore : dstores) {
-            eachDstore.updateStatus(status);
+            eachDstore.finishOperation(bytes);
+        }
+    }
+
+    /**
+     * Get the Dstores that can get new files(idle or under their concurrency limit).
+     *
+     * @return List<DSTORE_DATA>
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static List<DSTORE_DATA> getAvailableDstores()
+    {
+        List<DSTORE_DATA> available = new ArrayList<DSTORE_DATA>();
+        for (DSTORE_DATA eachDstore : Controller.dStores) {
+            if (eachDstore.isAvailable())
+                available.add(eachDstore);
+        }
+        return available;
+    }
+
+    /**
+     * How busy a Dstore is for serving a download : its STORE/REMOVE operations in progress plus the clients sent to it in the current second.
+     *
+     * @param dstore DSTORE_DATA
+     * @return int | lower is better
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static int getLoadScore(DSTORE_DATA dstore)
+    {
+        return dstore.inFlight.get() + dstore.getRecentLoads();
+    }
+
+    /**
+     * Create the placement strategy with the given name(the --placement flag).
+     *
+     * @param name String
+     * @return PLACEMENT_STRATEGY
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static PLACEMENT_STRATEGY createPlacementStrategy(String name)
+    {
+        switch (name) {
+            case "least-bytes":
+                return new LEAST_BYTES_PLACEMENT();
+            case "fewest-in-flight":
+                return new FEWEST_IN_FLIGHT_PLACEMENT();
+            case "two-choices":
+                return new TWO_RANDOM_CHOICES_PLACEMENT();
+            case "round-robin":
+                return new ROUND_ROBIN_PLACEMENT();
+            case "ring":
+                return new CONSISTENT_HASH_PLACEMENT(Integer.parseInt(Controller.getOption("ring-virtual-nodes", "100")));
+            default:
+                throw new IllegalArgumentException("Unknown placement strategy : " + name);
+        }
+    }
+
+    /**
+     * Parse the optional startup flags(--name=value) that come after the required arguments.
+     *
+     * @param args String[]
+     * @param firstOption int | index of the first optional argument
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static void parseOptions(String[] args, int firstOption)
+    {
+        for (int i = firstOption; i < args.length; i++) {
+            if (!args[i].startsWith("--") || !args[i].contains("="))
+                throw new IllegalArgumentException("Invalid option : " + args[i] + " (expected --name=value)");
+            int separator = args[i].indexOf('=');
+            Controller.options.put(args[i].substring(2, separator), args[i].substring(separator + 1));
+        }
+    }
+
+    static String getOption(String name, String defaultValue)
+    {
+        return Controller.options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Get every ongoing process, of every type.
+     *
+     * @return List<ONGOING_PROCESS>
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static List<ONGOING_PROCESS> getOngoingProcesses()
+    {
+        List<ONGOING_PROCESS> processes = new ArrayList<ONGOING_PROCESS>();
+        for (ConcurrentHashMap<String, ONGOING_PROCESS> eachType : Controller.ongoingProcesses.values()) {
+            processes.addAll(eachType.values());
         }
+        return processes;
     }
 
     /**
@@ -954,7 +3392,8 @@ public class Controller {
      */
     static void printOngoingProcesses()
     {
-        for(ONGOING_PROCESS eachProcess : Controller.ongoingProcesses) {
+        System.out.println("ONGOING PROCESSES : " + Controller.getOngoingProcessCount());
+        for(ONGOING_PROCESS eachProcess : Controller.getOngoingProcesses()) {
             System.out.println("===========================================================================");
             System.out.println("PROCESS TYPE : " + eachProcess.processType);
             System.out.println("PROCESS FILE : " + eachProcess.fileName);
@@ -980,9 +3419,9 @@ public class Controller {
             if(eachDstore.files.size() != 0) {
                 int i = 0;
 
-                for (HashMap<String, String> eachFile : eachDstore.files) {
-                    System.out.println("FILE#" + i + " NAME : " + eachFile.get("filename"));
-                    System.out.println("FILE#" + i + " SIZE : " + eachFile.get("filesize"));
+                for (FILE_ENTRY eachFile : eachDstore.files.values()) {
+                    System.out.println("FILE#" + i + " NAME : " + eachFile.fileName);
+                    System.out.println("FILE#" + i + " SIZE : " + eachFile.fileSize);
                     i++;
                 }
 
@@ -1005,16 +3444,16 @@ public class Controller {
     private static void checkIfEnoughDstores(boolean idleStatus) throws Exception {
         int dStores = idleStatus ? 0 : Controller.currRFator;
 
-        //for store operation we need at least R dStores in the "idle status"
+        //for store operation we need at least R dStores that can take new files
         if (idleStatus) {
             for (DSTORE_DATA eachDstore : Controller.dStores) {
-                if (eachDstore.status.equals(Controller.DSTORE_IDLE_STATUS)) {
+                if (eachDstore.isAvailable()) {
                     dStores++;
                 }
             }
         }
 
-        boolean result = Controller.currRFator >= Controller.rFactor;
+        boolean result = dStores >= Controller.rFactor;
 
         if (!result) {
             throw new Exception(Controller.ERROR_NOT_ENOUGH_DSTORES);
@@ -1023,52 +3462,168 @@ public class Controller {
     }
 
     /**
-     * Function to check if the Dstore Connection still exists && update the index after we receive a success response from the current operation.
+     * Append a record to the metadata log, if there is one.
      *
-     * @author Andrei123f(ap4u19@soton.ac.uk)
+     * @param record String
+     * @return CompletableFuture<Void> | completes once the record is durable
      */
-    private static void checkIfDstoreConnectionExists()
+    static CompletableFuture<Void> logMetadata(String record)
     {
-        int i = 0;
-        List<Controller.DSTORE_DATA> finalList = new ArrayList<>();
-        for (DSTORE_DATA eachDstore : Controller.dStores) {
-            int currPort = eachDstore.dPort;
-            boolean connAlive = true;
-            try {
-                Socket ignored = new Socket("localhost", currPort);
-            } catch (Throwable e) {
-                connAlive = false;
-            } finally {
-                if(! connAlive) {
-                    System.out.println("Connection to Dstore with port : "  + currPort + "  dropped.");
-                    System.out.println("Updating index ...");
-                    Controller.currRFator--;
-                    System.out.println("Index updated. curr N factor : " + Controller.currRFator);
-                    System.out.println("R factor : " + Controller.rFactor);
-                } else {
-                    finalList.add(eachDstore);
-                }
+        return (Controller.metadataLog != null) ? Controller.metadataLog.append(record) : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * The non-blocking readLock of the NIO sessions : a STORE/REMOVE that comes while a rebalance waits for || holds the gate is parked instead
+     * of keeping a shared worker(which would stall the LIST/LOAD requests of every other session) && resumed by openRebalanceGate.
+     *
+     * @param resume Runnable | queues the request on its session again
+     * @return long | the read stamp, 0 if the request has been parked
+     */
+    static long tryEnterRebalanceGate(Runnable resume)
+    {
+        synchronized (Controller.gateWaiters) {
+            if (!Controller.gateClosing) {
+                long gateStamp = Controller.rebalanceGate.tryReadLock();
+                if (gateStamp != 0)
+                    return gateStamp;
             }
-        i++;
+            Controller.gateWaiters.add(resume);
+            return 0;
         }
-        Controller.dStores = finalList;
     }
 
     /**
-     * Function to check if at least 1 Dstore has the file.
+     * Hold the new STORE/REMOVE operations back && wait for the ongoing ones to finish(they finish or time out within timeoutPer).
      *
-     * @param filename String
-     * @return boolean
+     * @return long | the write stamp of the rebalance gate, 0 if the ongoing operations did not finish in time(the gate is open again)
      */
-    private static boolean checkIfFileExists(String filename) {
-        for (DSTORE_DATA eachDstore : Controller.dStores) {
-            if (eachDstore.hasFile(filename)) {
-                return true;
-            }
+    static long closeRebalanceGate() throws InterruptedException
+    {
+        synchronized (Controller.gateWaiters) {
+            Controller.gateClosing = true;
+        }
+        long gateStamp = 0;
+        try {
+            gateStamp = Controller.rebalanceGate.tryWriteLock(Controller.timeoutPer, TimeUnit.MILLISECONDS);
+        } finally {
+            if (gateStamp == 0)
+                Controller.openRebalanceGate(0);
+        }
+        return gateStamp;
+    }
+
+    /**
+     * Release the write stamp of a rebalance(0 : none was taken) && resume the NIO requests parked meanwhile.
+     */
+    static void openRebalanceGate(long gateStamp)
+    {
+        List<Runnable> parked;
+        synchronized (Controller.gateWaiters) {
+            Controller.gateClosing = false;
+            if (gateStamp != 0)
+                Controller.rebalanceGate.unlockWrite(gateStamp);
+            parked = new ArrayList<Runnable>(Controller.gateWaiters);
+            Controller.gateWaiters.clear();
+        }
+        for (Runnable eachRequest : parked)
+            eachRequest.run();
+    }
+
+    /**
+     * A batch is refused before anything is reserved if it has more than MAX_BATCH_FILES files || if the request would be longer than
+     * BinaryProtocol.MAX_REQUEST_LENGTH as a text line : the client sends a Dstore the same request for its part of the batch, && a Dstore
+     * takes no longer request(in text || frames), so such a batch could be placed but never uploaded.
+     *
+     * @param filesizes long[] | the sizes of a STORE_BATCH, null for the other batches
+     * @throws Exception | ERROR_BATCH_TOO_LARGE
+     */
+    static void checkBatchSize(String operation, String[] filenames, long[] filesizes) throws Exception
+    {
+        if (filenames.length > Controller.MAX_BATCH_FILES)
+            throw new Exception(Controller.ERROR_BATCH_TOO_LARGE);
+        long length = operation.length() + 1;//the \n
+        for (int i = 0; i < filenames.length; i++) {
+            length += 1 + filenames[i].getBytes(StandardCharsets.UTF_8).length;
+            if (filesizes != null)
+                length += 1 + Long.toString(filesizes[i]).length();
+        }
+        if (length > BinaryProtocol.MAX_REQUEST_LENGTH)
+            throw new Exception(Controller.ERROR_BATCH_TOO_LARGE);
+    }
+
+    /**
+     * Remove a Dstore from the membership && the index, because its JOIN connection closed or the FAILURE_DETECTOR declared it dead.
+     * Does nothing if the Dstore has already been removed. Requests read the Dstore list without locking, so they are never blocked by this.
+     *
+     * @param dstore DSTORE_DATA
+     */
+    static void dropDstore(DSTORE_DATA dstore)
+    {
+        synchronized (Controller.dstoresLock) {
+            if (!Controller.removeMember(dstore))
+                return;
+        }
+        //outside of the lock, closing the connection can block
+        Controller.closeMember(dstore);
+    }
+
+    /**
+     * The part of dropDstore done under dstoresLock. The port-keyed state(dStoresByPort, the replicas of the index, the ring) is only
+     * cleaned up if the port still belongs to this Dstore : it is left alone if another Dstore has joined on the same port since.
+     *
+     * @return boolean | false if the Dstore has already been removed
+     */
+    static private boolean removeMember(DSTORE_DATA dstore)
+    {
+        if (!Controller.dStores.remove(dstore))
+            return false;
+        Controller.currRFator--;
+        //a STORE that completes from now on skips this Dstore(see addFileToDstores)
+        dstore.markDropped();
+        if (Controller.dStoresByPort.remove(dstore.dPort, dstore)) {
+            Controller.removeDstoreFromIndex(dstore);
+            Controller.placementStrategy.dstoreLeft(dstore.dPort);
+            Controller.logMetadata(METADATA_LOG.LEAVE_RECORD + " " + dstore.dPort);
         }
-        return false;
+        return true;
+    }
+
+    static private void closeMember(DSTORE_DATA dstore)
+    {
+        if (dstore.control != null)
+            dstore.control.close();
+        System.out.println("Dstore " + dstore.dPort + " removed. curr N factor : " + Controller.currRFator);
     }
 
-//todo implement rebalance operations when everything else if finished
+    /**
+     * @return boolean | true for the PROTOCOL line a session can start with(see BinaryProtocol)
+     */
+    static boolean isHandshake(String line)
+    {
+        return line != null && line.startsWith(Protocol.PROTOCOL_TOKEN + " ");
+    }
+
+    /**
+     * Decode a request line received by the NIO front end, without the line terminator(like BufferedReader.readLine).
+     *
+     * @return String
+     */
+    static String decodeLine(byte[] bytes, int offset, int length)
+    {
+        if (length > 0 && bytes[offset + length - 1] == '\r')
+            length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Function to get a file from the index, only if it has been fully stored(files that are being stored/removed are not visible to the clients).
+     *
+     * @param filename String
+     * @return FILE_ENTRY | null
+     */
+    private static FILE_ENTRY getStoredFile(String filename) {
+        FILE_ENTRY file = Controller.fileIndex.get(filename);
+        return (file != null && file.isStoreComplete()) ? file : null;
+    }
 
 }
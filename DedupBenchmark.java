@@ -0,0 +1,88 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Near-duplicate upload benchmark - makes versions of one file(each one the previous one with a few small inserts, deletes && changes, like
+ * two builds of the same artifact), STOREs them under different names with a whole upload per replica && then with STORE_DEDUP, checks
+ * that the last version loads back whole, && prints the ms per STORE && the MB the client uploads per STORE for each.
+ *
+ * Needs a running Controller with at least R Dstores joined, started with --dedup=true(without it STORE_DEDUP uploads every chunk).
+ * Usage: java DedupBenchmark cport timeout [file_mb] [versions] [edits_per_version] [protocol(TEXT|BINARY)]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class DedupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int fileMb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int versions = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int edits = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        String protocol = args.length > 5 ? args[5] : Protocol.TEXT_TOKEN;
+
+        Random random = new Random(42);
+        byte[][] data = new byte[versions][];
+        data[0] = new byte[fileMb * 1024 * 1024];
+        random.nextBytes(data[0]);
+        for (int i = 1; i < versions; i++)
+            data[i] = DedupBenchmark.edit(data[i - 1], edits, random);
+        BenchmarkClient client = new BenchmarkClient(cport, timeout, protocol);
+        client.connect();
+
+        System.out.println("mode\tms per STORE\tMB uploaded per STORE");
+        for (boolean dedup : new boolean[]{false, true}) {
+            String prefix = "d" + Long.toString(System.nanoTime(), 36) + "_";
+            long uploaded = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < versions; i++) {
+                if (dedup) {
+                    uploaded += client.storeDedup(prefix + i, data[i]);
+                } else {
+                    client.store(prefix + i, data[i]);
+                    uploaded += (long) data[i].length * (client.locateReplicas(prefix + i).length - 1);
+                }
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / versions;
+            if (!Arrays.equals(client.load(prefix + (versions - 1)), data[versions - 1]))
+                throw new Exception("Wrong content for " + prefix + (versions - 1));
+            System.out.printf("%s\t%.1f\t%.2f%n", dedup ? "STORE_DEDUP" : "STORE", millis, uploaded / 1048576.0 / versions);
+
+            //the files of one mode must not be there for the chunks of the next one
+            for (int i = 0; i < versions; i++)
+                client.remove(prefix + i);
+        }
+        client.disconnect();
+    }
+
+    /**
+     * @return byte[] | a copy of the data with edits small inserts, deletes || changes of up to 256 bytes at random places
+     */
+    private static byte[] edit(byte[] data, int edits, Random random) {
+        byte[] edited = data;
+        for (int i = 0; i < edits; i++) {
+            int at = random.nextInt(edited.length - 256);
+            byte[] run = new byte[1 + random.nextInt(256)];
+            random.nextBytes(run);
+            byte[] next;
+            switch (random.nextInt(3)) {
+                case 0:
+                    next = new byte[edited.length + run.length];
+                    System.arraycopy(edited, 0, next, 0, at);
+                    System.arraycopy(run, 0, next, at, run.length);
+                    System.arraycopy(edited, at, next, at + run.length, edited.length - at);
+                    break;
+                case 1:
+                    next = new byte[edited.length - run.length];
+                    System.arraycopy(edited, 0, next, 0, at);
+                    System.arraycopy(edited, at + run.length, next, at, edited.length - at - run.length);
+                    break;
+                default:
+                    next = edited.clone();
+                    System.arraycopy(run, 0, next, at, run.length);
+            }
+            edited = next;
+        }
+        return edited;
+    }
+}
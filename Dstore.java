@@ -1,6 +1,30 @@
 import java.io.*;
 import java.net.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 /**
  * Dstore class - this will be the node of the Distributed Storage.
@@ -14,21 +38,55 @@ class Dstore{
     static int timeout = 0;
     static String file_folder = null;
     // (fileName, fileSize) is a tuple from the file_details hashtable
-    static Hashtable<String, Integer> file_details = new Hashtable<>();
+    static Hashtable<String, Long> file_details = new Hashtable<>();
     static ServerSocket ss;
     static Socket socket_to_controller;
+    static PrintWriter controllerOut;//the only writer of the JOIN connection, see sendToController
+
+    static Map<String, String> options = new HashMap<String, String>();//the optional startup flags, given as --name=value after the required arguments
+    static ThreadFactory connectionThreads;//creates the connection threads, platform or virtual threads(--threads=virtual)
+    static ScheduledExecutorService heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();//sends the HEARTBEATs to the Controller
+    static OBJECT_CACHE cache;//the small files that are downloaded often, null if --cache-bytes=0
+    static MAPPED_FILE_CACHE mappedFiles;//the mappings of the large files that are being downloaded, null if --mmap-bytes=0
+    static CHUNK_INDEX chunkIndex;//where the chunks of the stored files are, for STORE_DEDUP, null unless --dedup=true
+    static ScheduledExecutorService cacheStatsScheduler = Executors.newSingleThreadScheduledExecutor();//logs the cache counters
+    static final int INVENTORY_BATCH_BYTES = BinaryProtocol.MAX_REQUEST_LENGTH - 1;//the longest INVENTORY line(without its \n), whatever the length of the filenames
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;//the buffer each client connection reads its requests && streams the uploaded files through
+    static final int RECIPE_BLOCK_ENTRIES = 1024;//the recipe entries a STORE_DEDUP reads && decodes at a time
+    static final String PARTIAL_FILE_SUFFIX = ".part";//the uploads are written to "." + filename + " " + random + ".part" && renamed once complete
 
-    private static Object lock = new Object();//for dealing with Thread race conditions
     /**
      * The class that will validate && format each request that comes from Client / Controller.
+     * The requests of the clients are parsed straight from the bytes of the connection(parse) into one object per connection, which is reused
+     * for every request, so the only thing a request allocates is its filename.
      * @author Andrei123f(ap4u19@soton.ac.uk)
      */
-    class INCOMING_REQUEST {
+    static class INCOMING_REQUEST {
+        //the operations a client can send, in the form they arrive in
+        private static final String[] CLIENT_OPERATIONS = {Protocol.STORE_TOKEN, Protocol.LOAD_DATA_TOKEN, Protocol.REMOVE_TOKEN, Protocol.REBALANCE_STORE_TOKEN, Protocol.PROTOCOL_TOKEN, Protocol.STORE_BATCH_TOKEN, Protocol.STORE_CHAIN_TOKEN, Protocol.STORE_DEDUP_TOKEN};
+        private static final byte[][] CLIENT_OPERATION_BYTES = new byte[CLIENT_OPERATIONS.length][];
+        static {
+            for (int i = 0; i < CLIENT_OPERATIONS.length; i++)
+                CLIENT_OPERATION_BYTES[i] = CLIENT_OPERATIONS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+
         public String operation;
-        public Map<String, String> arguments = new HashMap<String, String>();
+        public String filename;//the framing asked for, for PROTOCOL
+        public long fileSize;
+        public long offset;//the range a LOAD_DATA asks for, the whole file if length is -1
+        public long length;
+        public String[] filenames;//the files of a STORE_BATCH(from a client) || a REMOVE_BATCH(from the Controller)
+        public long[] fileSizes;//the sizes of the files of a STORE_BATCH
+        public int[] chainPorts;//the Dstores a STORE_CHAIN is forwarded to, in order
+        public long recipeLength;//the bytes of the recipe that follows a STORE_DEDUP
+        public long requestId;//the id of a request that came in a frame, repeated in the ACK
+        public String[] segments; //the raw request, for the requests with a variable number of arguments(REBALANCE)
         public boolean invalidOperation = false;
         public boolean invalidArguments = false;
 
+        public INCOMING_REQUEST() {
+        }
+
         public INCOMING_REQUEST(String request) {
             this.initRequestStructure(request);
         }
@@ -37,6 +95,7 @@ class Dstore{
             DstoreLogger.getInstance().log("Incoming request from client : " + request);
             //split the request by spaces
             String segments[] = request.split(" ");
+            this.segments = segments;
             //get the request type
             String request_type = segments[0];
             //decide if the the request type is correct or not
@@ -55,6 +114,27 @@ class Dstore{
                     this.prepareStoreOperation(segments);
                     break;
 
+                case Protocol.REBALANCE_STORE_TOKEN:
+                    //expected request : REBALANCE_STORE filename filesize
+                    this.operation = Protocol.REBALANCE_STORE_TOKEN;
+                    this.prepareStoreOperation(segments);
+                    break;
+
+                case Protocol.REMOVE_BATCH_TOKEN:
+                    //expected request : REMOVE_BATCH filename1 filename2 ...
+                    this.operation = Protocol.REMOVE_BATCH_TOKEN;
+                    this.filenames = Arrays.copyOfRange(segments, 1, segments.length);
+                    this.invalidArguments = segments.length < 2;
+                    break;
+
+                case Protocol.REBALANCE_TOKEN:
+                    //expected request : REBALANCE files_to_send files_to_remove, parsed when it is processed
+                    this.operation = Protocol.REBALANCE_TOKEN;
+                    break;
+
+                default:
+                    this.invalidOperation = true;
+                    break;
             }
         }
 
@@ -64,7 +144,7 @@ class Dstore{
                 this.invalidArguments = true;
                 return;
             }
-            this.arguments.put("filename", requestSegments[1]);
+            this.filename = requestSegments[1];
         }
 
         private void prepareLoadDataOperation(String[] requestSegments) {
@@ -73,7 +153,51 @@ class Dstore{
                 this.invalidArguments = true;
                 return;
             }
-            this.arguments.put("filename", requestSegments[1]);
+            this.filename = requestSegments[1];
+        }
+
+        private void prepareStoreBatchOperation(String[] requestSegments) {
+            //expected request : STORE_BATCH filename1 filesize1 filename2 filesize2 ...
+            if (requestSegments.length < 3 || requestSegments.length % 2 != 1) {
+                this.invalidArguments = true;
+                return;
+            }
+            this.filenames = new String[requestSegments.length / 2];
+            this.fileSizes = new long[this.filenames.length];
+            for (int i = 0; i < this.filenames.length; i++) {
+                this.filenames[i] = requestSegments[1 + 2 * i];
+                this.fileSizes[i] = INCOMING_REQUEST.parseSize(requestSegments[2 + 2 * i].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[2 + 2 * i].length());
+                this.invalidArguments |= this.filenames[i].isEmpty() || this.fileSizes[i] < 0;
+            }
+        }
+
+        private void prepareStoreChainOperation(String[] requestSegments) {
+            //expected request : STORE_CHAIN filename filesize port2 port3 ...
+            if (requestSegments.length < 3) {
+                this.invalidArguments = true;
+                return;
+            }
+            this.filename = requestSegments[1];
+            this.fileSize = INCOMING_REQUEST.parseSize(requestSegments[2].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[2].length());
+            this.chainPorts = new int[requestSegments.length - 3];
+            for (int i = 0; i < this.chainPorts.length; i++) {
+                long port = INCOMING_REQUEST.parseSize(requestSegments[3 + i].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[3 + i].length());
+                this.chainPorts[i] = (int) port;
+                this.invalidArguments |= port <= 0 || port > 65535;
+            }
+            this.invalidArguments |= this.filename.isEmpty() || this.fileSize < 0;
+        }
+
+        private void prepareStoreDedupOperation(String[] requestSegments) {
+            //expected request : STORE_DEDUP filename filesize recipe_length
+            if (requestSegments.length != 4) {
+                this.invalidArguments = true;
+                return;
+            }
+            this.filename = requestSegments[1];
+            this.fileSize = INCOMING_REQUEST.parseSize(requestSegments[2].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[2].length());
+            this.recipeLength = INCOMING_REQUEST.parseSize(requestSegments[3].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[3].length());
+            this.invalidArguments = this.filename.isEmpty() || this.fileSize < 0 || this.recipeLength < 0;
         }
 
         private void prepareStoreOperation(String[] requestSegments) {
@@ -82,13 +206,311 @@ class Dstore{
                 this.invalidArguments = true;
                 return;
             }
-            this.arguments.put("filename", requestSegments[1]);
-            this.arguments.put("filesize", requestSegments[2]);
+            this.filename = requestSegments[1];
+            this.fileSize = INCOMING_REQUEST.parseSize(requestSegments[2].getBytes(StandardCharsets.US_ASCII), 0, requestSegments[2].length());
+            this.invalidArguments = this.fileSize < 0;
+        }
+
+        /**
+         * Parse a client request(STORE/REBALANCE_STORE filename filesize, LOAD_DATA filename, REMOVE filename) from bytes[from, to), the line
+         * without its terminator. Everything from the previous request is overwritten.
+         */
+        void parse(byte[] bytes, int from, int to) {
+            this.clear();
+
+            int operationEnd = INCOMING_REQUEST.nextSpace(bytes, from, to);
+            for (int i = 0; i < CLIENT_OPERATION_BYTES.length && this.operation == null; i++) {
+                if (Arrays.equals(bytes, from, operationEnd, CLIENT_OPERATION_BYTES[i], 0, CLIENT_OPERATION_BYTES[i].length))
+                    this.operation = CLIENT_OPERATIONS[i];
+            }
+            if (this.operation == null) {
+                this.invalidOperation = true;
+                return;
+            }
+            if (this.operation.equals(Protocol.STORE_BATCH_TOKEN)) {
+                this.prepareStoreBatchOperation(new String(bytes, from, to - from, StandardCharsets.UTF_8).split(" "));
+                return;
+            }
+            if (this.operation.equals(Protocol.STORE_CHAIN_TOKEN)) {
+                this.prepareStoreChainOperation(new String(bytes, from, to - from, StandardCharsets.UTF_8).split(" "));
+                return;
+            }
+            if (this.operation.equals(Protocol.STORE_DEDUP_TOKEN)) {
+                this.prepareStoreDedupOperation(new String(bytes, from, to - from, StandardCharsets.UTF_8).split(" "));
+                return;
+            }
+            boolean hasSize = this.operation.equals(Protocol.STORE_TOKEN) || this.operation.equals(Protocol.REBALANCE_STORE_TOKEN);
+            boolean mayHaveRange = this.operation.equals(Protocol.LOAD_DATA_TOKEN);
+
+            int filenameStart = operationEnd + 1;
+            int filenameEnd = INCOMING_REQUEST.nextSpace(bytes, filenameStart, to);
+            if (filenameStart >= to || filenameEnd == filenameStart || (filenameEnd < to && !hasSize && !mayHaveRange) || (filenameEnd == to && hasSize)) {
+                this.invalidArguments = true;
+                return;
+            }
+            this.filename = new String(bytes, filenameStart, filenameEnd - filenameStart, StandardCharsets.UTF_8);
+            if (hasSize) {
+                this.fileSize = INCOMING_REQUEST.parseSize(bytes, filenameEnd + 1, to);
+                this.invalidArguments = this.fileSize < 0;
+            } else if (filenameEnd < to) {
+                //expected request : LOAD_DATA filename offset length
+                int offsetEnd = INCOMING_REQUEST.nextSpace(bytes, filenameEnd + 1, to);
+                this.offset = INCOMING_REQUEST.parseSize(bytes, filenameEnd + 1, offsetEnd);
+                this.length = INCOMING_REQUEST.parseSize(bytes, offsetEnd + 1, to);
+                this.invalidArguments = this.offset < 0 || this.length < 0;
+            }
+        }
+
+        /**
+         * Parse a client request that came in a frame of a binary session. Everything from the previous request is overwritten.
+         */
+        void parse(BinaryProtocol.FRAME frame) {
+            this.clear();
+            this.requestId = frame.requestId;
+            try {
+                switch (frame.opcode) {
+                    case BinaryProtocol.STORE:
+                    case BinaryProtocol.REBALANCE_STORE:
+                        this.filename = frame.readString();
+                        this.fileSize = frame.readVarint();
+                        this.invalidArguments = this.fileSize < 0;
+                        break;
+                    case BinaryProtocol.LOAD_DATA:
+                        this.filename = frame.readString();
+                        //the range is optional, the whole file without it
+                        if (frame.hasRemaining()) {
+                            this.offset = frame.readVarint();
+                            this.length = frame.readVarint();
+                            this.invalidArguments = this.offset < 0 || this.length < 0;
+                        }
+                        break;
+                    case BinaryProtocol.REMOVE:
+                        this.filename = frame.readString();
+                        break;
+                    case BinaryProtocol.STORE_CHAIN:
+                        this.filename = frame.readString();
+                        this.fileSize = frame.readVarint();
+                        List<Integer> chainPorts = new ArrayList<Integer>();
+                        while (frame.hasRemaining()) {
+                            long port = frame.readVarint();
+                            chainPorts.add((int) port);
+                            this.invalidArguments |= port <= 0 || port > 65535;
+                        }
+                        this.chainPorts = chainPorts.stream().mapToInt(Integer::intValue).toArray();
+                        this.invalidArguments |= this.fileSize < 0;
+                        break;
+                    case BinaryProtocol.STORE_DEDUP:
+                        this.filename = frame.readString();
+                        this.fileSize = frame.readVarint();
+                        this.recipeLength = frame.readVarint();
+                        this.invalidArguments = this.fileSize < 0 || this.recipeLength < 0;
+                        break;
+                    case BinaryProtocol.STORE_BATCH:
+                        this.operation = Protocol.STORE_BATCH_TOKEN;
+                        List<String> filenames = new ArrayList<String>();
+                        List<Long> fileSizes = new ArrayList<Long>();
+                        while (frame.hasRemaining()) {
+                            String filename = frame.readString();
+                            filenames.add(filename);
+                            fileSizes.add(frame.readVarint());
+                            this.invalidArguments |= filename.isEmpty() || filename.indexOf(' ') >= 0 || filename.indexOf('\n') >= 0;
+                        }
+                        this.filenames = filenames.toArray(new String[0]);
+                        this.fileSizes = fileSizes.stream().mapToLong(Long::longValue).toArray();
+                        this.invalidArguments |= this.filenames.length == 0;
+                        return;
+                    default:
+                        this.invalidOperation = true;
+                        return;
+                }
+                this.operation = BinaryProtocol.getToken(frame.opcode);
+                //the same filenames as in the text protocol, a name with a space is not a stored file(see receiveFile)
+                this.invalidArguments |= frame.hasRemaining() || this.filename.isEmpty() || this.filename.indexOf(' ') >= 0 || this.filename.indexOf('\n') >= 0;
+            } catch (IOException e) {
+                this.invalidArguments = true;
+            }
+        }
+
+        private void clear() {
+            this.operation = null;
+            this.filename = null;
+            this.fileSize = -1;
+            this.offset = 0;
+            this.length = -1;
+            this.filenames = null;
+            this.fileSizes = null;
+            this.chainPorts = null;
+            this.recipeLength = -1;
+            this.requestId = 0;
+            this.segments = null;
+            this.invalidOperation = false;
+            this.invalidArguments = false;
+        }
+
+        /**
+         * @return String | the request as it would have been sent in the text protocol, for the logs
+         */
+        String describe() {
+            if (this.filenames != null)
+                return this.operation + " (" + this.filenames.length + " files) (request " + this.requestId + ")";
+            return this.operation + " " + this.filename + (this.fileSize >= 0 ? " " + this.fileSize : "") + (this.length >= 0 ? " " + this.offset + " " + this.length : "")
+                    + (this.chainPorts != null ? " -> " + Arrays.toString(this.chainPorts) : "") + (this.recipeLength >= 0 ? " " + this.recipeLength : "")
+                    + " (request " + this.requestId + ")";
+        }
+
+        private static int nextSpace(byte[] bytes, int from, int to) {
+            while (from < to && bytes[from] != ' ')
+                from++;
+            return from;
+        }
 
+        /**
+         * @return long | the decimal number in bytes[from, to), -1 if it is not one
+         */
+        private static long parseSize(byte[] bytes, int from, int to) {
+            if (from >= to || to - from > 18)
+                return -1;
+            long size = 0;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] < '0' || bytes[i] > '9')
+                    return -1;
+                size = size * 10 + (bytes[i] - '0');
+            }
+            return size;
         }
 
     }
 
+    /**
+     * Reads the requests of a client connection : an incremental line parser on one buffer that is reused for the whole connection.
+     * A request can arrive over several reads && a read can hold more than one request, or a request followed by the start of the file
+     * that is being uploaded. The bytes after a request stay in the buffer && are handed to the data phase(transferTo) or the next request.
+     *
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class REQUEST_READER {
+        private final InputStream in;
+        private final byte[] buffer;
+        private int start = 0;//the first byte that has not been used yet
+        private int end = 0;//the end of the bytes read so far
+        private BinaryProtocol.FRAME frame;//the requests are frames once the client has opted into the binary protocol, null until then
+
+        public REQUEST_READER(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * Wait for the next request line && parse it into the given request.
+         *
+         * @param request INCOMING_REQUEST
+         * @return boolean | false once the connection has ended
+         * @throws IOException | if the line does not fit in the buffer
+         */
+        boolean readRequest(INCOMING_REQUEST request) throws IOException {
+            int scanned = this.start;
+            while (true) {
+                if (this.frame != null) {
+                    int frameLength = this.frame.parse(this.buffer, this.start, this.end, this.buffer.length);
+                    if (frameLength > 0) {
+                        request.parse(this.frame);
+                        DstoreLogger.getInstance().log((request.invalidOperation || request.invalidArguments ? "Invalid request from client : " : "Incoming request from client : ") + request.describe());
+                        this.start += frameLength;
+                        return true;
+                    }
+                    scanned = this.end;
+                }
+                for (; scanned < this.end; scanned++) {
+                    if (this.buffer[scanned] == '\n') {
+                        int lineEnd = (scanned > this.start && this.buffer[scanned - 1] == '\r') ? scanned - 1 : scanned;
+                        request.parse(this.buffer, this.start, lineEnd);
+                        if (request.invalidOperation || request.invalidArguments)
+                            DstoreLogger.getInstance().log("Invalid request from client : " + this.getLine(lineEnd));
+                        else
+                            DstoreLogger.getInstance().log("Incoming request from client : " + this.getLine(lineEnd));
+                        this.start = scanned + 1;
+                        return true;
+                    }
+                }
+                //no full line yet, make room at the end of the buffer && read more
+                if (this.start > 0) {
+                    System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+                    scanned -= this.start;
+                    this.end -= this.start;
+                    this.start = 0;
+                }
+                if (this.end == this.buffer.length)
+                    throw new IOException("Request longer than " + this.buffer.length + " bytes");
+                int bufLen = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+                if (bufLen == -1)
+                    return false;
+                this.end += bufLen;
+            }
+        }
+
+        /**
+         * Read frames instead of lines from now on(after the PROTOCOL BINARY handshake). The frames that have already arrived stay in the buffer.
+         */
+        void startFrames() {
+            this.frame = new BinaryProtocol.FRAME();
+        }
+
+        boolean isBinary() {
+            return this.frame != null;
+        }
+
+        private String getLine(int lineEnd) {
+            return new String(this.buffer, this.start, lineEnd - this.start, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Move up to max bytes of the data that follows the request to out : the bytes that are already in the buffer first, otherwise
+         * one read from the connection.
+         *
+         * @return int | the number of bytes moved, -1 if the connection has ended
+         * @throws IOException | void
+         */
+        int transferTo(OutputStream out, long max) throws IOException {
+            if (this.start == this.end) {
+                this.start = 0;
+                this.end = 0;
+                int bufLen = this.in.read(this.buffer, 0, this.buffer.length);
+                if (bufLen == -1)
+                    return -1;
+                this.end = bufLen;
+            }
+            int bytes = (int) Math.min(this.end - this.start, max);
+            out.write(this.buffer, this.start, bytes);
+            this.start += bytes;
+            return bytes;
+        }
+
+        /**
+         * Read exactly length bytes of the data that follows the request into bytes[from, from + length), through the buffer.
+         *
+         * @return boolean | false if the connection has ended first
+         * @throws IOException | void
+         */
+        boolean readFully(byte[] bytes, int from, int length) throws IOException {
+            while (length > 0) {
+                if (this.start == this.end) {
+                    this.start = 0;
+                    this.end = 0;
+                    int bufLen = this.in.read(this.buffer, 0, this.buffer.length);
+                    if (bufLen == -1)
+                        return false;
+                    this.end = bufLen;
+                }
+                int bytesRead = Math.min(this.end - this.start, length);
+                System.arraycopy(this.buffer, this.start, bytes, from, bytesRead);
+                this.start += bytesRead;
+                from += bytesRead;
+                length -= bytesRead;
+            }
+            return true;
+        }
+    }
+
     /**
      * The class that will be only used for Controller requests.
      *
@@ -98,11 +520,9 @@ class Dstore{
     {
         private Socket socketTo_controller;
 
-        private OutputStream outFileStream_controller;
         private InputStream inFileStream_controller;
 
         private BufferedReader inTextStream_controller;
-        private PrintWriter outTextStream_controller;
 
         public CONTROLLER_THREAD (Socket socketTo_controller) {this.socketTo_controller = socketTo_controller;}
 
@@ -110,15 +530,31 @@ class Dstore{
         {
             try
             {
-                this.outFileStream_controller = this.socketTo_controller.getOutputStream();
                 this.inFileStream_controller = this.socketTo_controller.getInputStream();
 
                 this.inTextStream_controller = new BufferedReader(new InputStreamReader(this.inFileStream_controller));
-                this.outTextStream_controller = new PrintWriter(new OutputStreamWriter(this.outFileStream_controller));
 
-                //join the controller server
-                this.outTextStream_controller.println(Protocol.JOIN_TOKEN + " " + Dstore.port);
-                this.outTextStream_controller.flush();
+                //join the controller server && report the files found on startup, so the Controller does not have to copy them here again
+                List<Map.Entry<String, Long>> inventory = new ArrayList<Map.Entry<String, Long>>(Dstore.file_details.entrySet());
+                Dstore.sendToController(Protocol.JOIN_TOKEN + " " + Dstore.port + " " + inventory.size());
+                //the batches are cut by bytes, not files : a line longer than a request is refused by the Controller
+                StringBuilder inventoryBatch = new StringBuilder(Protocol.INVENTORY_TOKEN);
+                int batchBytes = Protocol.INVENTORY_TOKEN.length();
+                for (Map.Entry<String, Long> eachFile : inventory) {
+                    int entryBytes = 2 + eachFile.getKey().getBytes(StandardCharsets.UTF_8).length + Long.toString(eachFile.getValue()).length();
+                    if (batchBytes > Protocol.INVENTORY_TOKEN.length() && batchBytes + entryBytes > Dstore.INVENTORY_BATCH_BYTES) {
+                        Dstore.sendToController(inventoryBatch.toString());
+                        inventoryBatch.setLength(Protocol.INVENTORY_TOKEN.length());
+                        batchBytes = Protocol.INVENTORY_TOKEN.length();
+                    }
+                    inventoryBatch.append(" ").append(eachFile.getKey()).append(" ").append(eachFile.getValue());
+                    batchBytes += entryBytes;
+                }
+                if (batchBytes > Protocol.INVENTORY_TOKEN.length())
+                    Dstore.sendToController(inventoryBatch.toString());
+                //tell the Controller we are alive every heartbeat interval(it has to match the Controller's --heartbeat-interval)
+                long heartbeatInterval = Long.parseLong(Dstore.options.getOrDefault("heartbeat-interval", "1000"));
+                Dstore.heartbeatScheduler.scheduleAtFixedRate(() -> Dstore.sendToController(Protocol.HEARTBEAT_TOKEN), heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
 
                 //waiting for commands from Controller
                 String line;
@@ -133,7 +569,15 @@ class Dstore{
 
                     switch (formattedRequest.operation) {
                         case (Protocol.REMOVE_TOKEN) :
-                            this.processRemoveOperation(formattedRequest.arguments.get("filename"));
+                            this.processRemoveOperation(formattedRequest.filename);
+                            break;
+                        case (Protocol.REMOVE_BATCH_TOKEN) :
+                            this.processRemoveBatchOperation(formattedRequest.filenames);
+                            break;
+                        case (Protocol.REBALANCE_TOKEN) :
+                            //the transfers can take a while, keep listening to the Controller in the meantime
+                            String[] rebalanceSegments = formattedRequest.segments;
+                            Dstore.connectionThreads.newThread(() -> this.processRebalanceOperation(rebalanceSegments)).start();
                             break;
                     }
 
@@ -150,17 +594,763 @@ class Dstore{
         {
             File file = new File(Dstore.file_folder + File.separator + filename);
             String responseTo_controller;
-            if(file.delete()) {
+            boolean deleted = file.delete();
+            Dstore.invalidateCache(filename);
+            if(deleted) {
                 Dstore.file_details.remove(filename);
                 responseTo_controller = Protocol.REMOVE_ACK_TOKEN + " " + filename;
 
             } else {
                 responseTo_controller = Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename;
             }
-            this.outTextStream_controller.println(responseTo_controller);
-            this.outTextStream_controller.flush();
+            Dstore.sendToController(responseTo_controller);
+        }
+
+        /**
+         * REMOVE_BATCH filename1 filename2 ... : one REMOVE_ACK with every file. A file this Dstore does not have is in it as well, the
+         * Controller takes it as a REMOVE_ACK either way.
+         */
+        private void processRemoveBatchOperation(String[] filenames)
+        {
+            StringBuilder responseTo_controller = new StringBuilder(Protocol.REMOVE_ACK_TOKEN);
+            for (String eachFilename : filenames) {
+                new File(Dstore.file_folder + File.separator + eachFilename).delete();
+                Dstore.invalidateCache(eachFilename);
+                Dstore.file_details.remove(eachFilename);
+                responseTo_controller.append(" ").append(eachFilename);
+            }
+            Dstore.sendToController(responseTo_controller.toString());
+        }
+
+        /**
+         * REBALANCE files_to_send files_to_remove
+         * files_to_send = number_of_files file1 number_of_dstores port1 port2 ... file2 ...
+         * files_to_remove = number_of_files file1 file2 ...
+         * Sends every file first, then removes the files && confirms with REBALANCE_COMPLETE. Nothing is confirmed if a transfer fails.
+         */
+        private void processRebalanceOperation(String[] segments)
+        {
+            try {
+                int i = 1;
+                int filesToSend = Integer.parseInt(segments[i++]);
+                for (int eachFile = 0; eachFile < filesToSend; eachFile++) {
+                    String filename = segments[i++];
+                    int dstoresNumber = Integer.parseInt(segments[i++]);
+                    for (int eachDstore = 0; eachDstore < dstoresNumber; eachDstore++) {
+                        Dstore.sendFileToDstore(filename, Integer.parseInt(segments[i++]));
+                    }
+                }
+
+                int filesToRemove = Integer.parseInt(segments[i++]);
+                for (int eachFile = 0; eachFile < filesToRemove; eachFile++) {
+                    String filename = segments[i++];
+                    new File(Dstore.file_folder + File.separator + filename).delete();
+                    Dstore.file_details.remove(filename);
+                    Dstore.invalidateCache(filename);
+                }
+
+                Dstore.sendToController(Protocol.REBALANCE_COMPLETE_TOKEN);
+            } catch (Throwable e) {
+                DstoreLogger.getInstance().log("Error during rebalance : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+    }
+
+    /**
+     * Rebuild file_details from the files already in the Dstore folder(left there by a previous run). The folder is listed once && the
+     * sizes are read in parallel, which is what takes the time for a large folder.
+     *
+     * @param folder File
+     * @throws IOException | void
+     */
+    static void scanInventory(File folder) throws IOException
+    {
+        long start = System.nanoTime();
+        List<Path> paths = new ArrayList<Path>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder.toPath())) {
+            for (Path eachEntry : entries)
+                paths.add(eachEntry);
+        }
+        paths.parallelStream().forEach(path -> {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                //the names of the files that can be stored have no spaces, anything else was not put here by a Dstore
+                //or is an upload that did not finish(see receiveFile)
+                String filename = path.getFileName().toString();
+                if (attributes.isRegularFile() && !filename.contains(" "))
+                    Dstore.file_details.put(filename, attributes.size());
+                else if (attributes.isRegularFile() && filename.endsWith(Dstore.PARTIAL_FILE_SUFFIX))
+                    Files.delete(path);
+            } catch (IOException e) {
+                DstoreLogger.getInstance().log("Could not read " + path + " : " + e.getMessage());
+            }
+        });
+        DstoreLogger.getInstance().log("Found " + Dstore.file_details.size() + " files in " + folder.getAbsolutePath() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Log the counters of a cache every --cache-stats-interval seconds(default 60), only if it has been used since the last time.
+     *
+     * @param lookups the number of lookups so far
+     * @param stats the counters, for the log
+     */
+    static void logStatsPeriodically(LongSupplier lookups, Supplier<String> stats)
+    {
+        long statsInterval = Long.parseLong(Dstore.options.getOrDefault("cache-stats-interval", "60"));
+        long[] loggedLookups = {0};
+        Dstore.cacheStatsScheduler.scheduleAtFixedRate(() -> {
+            if (lookups.getAsLong() != loggedLookups[0]) {
+                loggedLookups[0] = lookups.getAsLong();
+                DstoreLogger.getInstance().log(stats.get());
+            }
+        }, statsInterval, statsInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Send a message to the Controller over the JOIN connection. Every thread of the Dstore writes through the same PrintWriter, whose println
+     * holds its own lock, so the messages of different threads never mix.
+     *
+     * @param message String
+     */
+    static void sendToController(String message)
+    {
+        Dstore.controllerOut.println(message);
+        Dstore.controllerOut.flush();
+    }
+
+    /**
+     * Copy a local file to another Dstore(REBALANCE_STORE filename filesize, wait for ACK, then the file content), in the binary protocol.
+     *
+     * @param filename String
+     * @param dPort int
+     * @throws IOException | void
+     */
+    static void sendFileToDstore(String filename, int dPort) throws IOException
+    {
+        File file = new File(Dstore.file_folder + File.separator + filename);
+        try (Socket socketTo_dstore = SocketChannel.open(new InetSocketAddress("localhost", dPort)).socket();
+             FileChannel inFile = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            socketTo_dstore.setSoTimeout(Dstore.timeout);
+            //the other Dstore speaks the binary protocol too, so the request goes right after the handshake, in the same write
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.REBALANCE_STORE, 0).writeString(filename).writeVarint(inFile.size()).writeTo(request);
+            request.writeTo(socketTo_dstore.getOutputStream());
+
+            InputStream inStream_dstore = new BufferedInputStream(socketTo_dstore.getInputStream());
+            String handshake = BinaryProtocol.readLine(inStream_dstore);
+            if (!BinaryProtocol.HANDSHAKE.equals(handshake))
+                throw new IOException("Dstore " + dPort + " does not speak the binary protocol : " + handshake);
+            BinaryProtocol.FRAME response = new BinaryProtocol.FRAME();
+            if (!response.read(inStream_dstore, BinaryProtocol.MAX_REQUEST_LENGTH) || response.opcode != BinaryProtocol.ACK)
+                throw new IOException("Dstore " + dPort + " did not ACK the REBALANCE_STORE of " + filename);
+            Dstore.transferFile(inFile, socketTo_dstore);
+        }
+    }
+
+    /**
+     * Open the link of a STORE_CHAIN to the next Dstore that can be reached : STORE_CHAIN filename filesize with the Dstores after it, in the
+     * binary protocol, && wait for its ACK(which it only sends once the rest of the chain has ACKed).
+     *
+     * @param chainPorts int[] | the rest of the chain, in order
+     * @return Socket | the connection to send the file to, null if no Dstore of the chain could be reached
+     */
+    static Socket openChainLink(String filename, long fileSize, int[] chainPorts)
+    {
+        for (int i = 0; i < chainPorts.length; i++) {
+            Socket socketTo_dstore = null;
+            try {
+                socketTo_dstore = SocketChannel.open(new InetSocketAddress("localhost", chainPorts[i])).socket();
+                socketTo_dstore.setSoTimeout(Dstore.timeout);
+                socketTo_dstore.setTcpNoDelay(true);
+                ByteArrayOutputStream request = new ByteArrayOutputStream();
+                request.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+                BinaryProtocol.FRAME_WRITER frame = new BinaryProtocol.FRAME_WRITER(BinaryProtocol.STORE_CHAIN, 0).writeString(filename).writeVarint(fileSize);
+                for (int j = i + 1; j < chainPorts.length; j++)
+                    frame.writeVarint(chainPorts[j]);
+                frame.writeTo(request);
+                request.writeTo(socketTo_dstore.getOutputStream());
+
+                InputStream inStream_dstore = new BufferedInputStream(socketTo_dstore.getInputStream());
+                BinaryProtocol.FRAME response = new BinaryProtocol.FRAME();
+                if (!BinaryProtocol.HANDSHAKE.equals(BinaryProtocol.readLine(inStream_dstore))
+                        || !response.read(inStream_dstore, BinaryProtocol.MAX_REQUEST_LENGTH) || response.opcode != BinaryProtocol.ACK)
+                    throw new IOException("no ACK");
+                return socketTo_dstore;
+            } catch (IOException e) {
+                DstoreLogger.getInstance().log("Dstore " + chainPorts[i] + " skipped from the chain of " + filename + " : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                try {
+                    if (socketTo_dstore != null)
+                        socketTo_dstore.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The target of the upload of a STORE_CHAIN : every chunk is sent to the next Dstore, then written to the file. If the next Dstore fails
+     * it is dropped && the upload carries on into the file only.
+     *
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class CHAIN_FORWARDER extends OutputStream
+    {
+        private final OutputStream file;
+        private final String fileName;
+        private Socket next;
+
+        CHAIN_FORWARDER(OutputStream file, Socket next, String fileName) {
+            this.file = file;
+            this.next = next;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (this.next != null) {
+                try {
+                    this.next.getOutputStream().write(bytes, offset, length);
+                } catch (IOException e) {
+                    DstoreLogger.getInstance().log("The next Dstore of the chain of " + this.fileName + " failed : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                    //the socket is closed by processStoreChainOperation, nothing more is sent to it
+                    this.next = null;
+                }
+            }
+            this.file.write(bytes, offset, length);
         }
+    }
 
+    /**
+     * Send a whole file to a socket. The sockets of the Dstore come from channels, so FileChannel.transferTo hands the copy over to the
+     * kernel(sendfile) && the bytes never go through the heap. Any other socket gets the bytes through a stream.
+     *
+     * @param inFile FileChannel
+     * @param socket Socket
+     * @throws IOException | void
+     */
+    static void transferFile(FileChannel inFile, Socket socket) throws IOException
+    {
+        Dstore.transferFile(inFile, 0, inFile.size(), socket);
+    }
+
+    /**
+     * Send the bytes [offset, offset + length) of a file to a socket, the same way as a whole file.
+     *
+     * @param inFile FileChannel
+     * @param offset long
+     * @param length long | the bytes must all be in the file
+     * @param socket Socket
+     * @throws IOException | void
+     */
+    static void transferFile(FileChannel inFile, long offset, long length, Socket socket) throws IOException
+    {
+        WritableByteChannel target = (socket.getChannel() != null) ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        long end = offset + length;
+        long position = offset;
+        //transferTo can send fewer bytes than asked for, && none at all past the end of the file
+        while (position < end) {
+            if (position >= inFile.size())
+                throw new EOFException("The file ended after " + (position - offset) + " of " + length + " bytes");
+            position += inFile.transferTo(position, end - position, target);
+        }
+    }
+
+    /**
+     * Send a cached file to a socket, from the direct buffer of the cache.
+     *
+     * @param data ByteBuffer | a buffer of the cache, it is not changed
+     * @param socket Socket
+     * @throws IOException | void
+     */
+    static void transferBuffer(ByteBuffer data, Socket socket) throws IOException
+    {
+        WritableByteChannel target = (socket.getChannel() != null) ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer view = data.duplicate();
+        while (view.hasRemaining())
+            target.write(view);
+    }
+
+    /**
+     * Drop a file from the caches && the chunk index, called after the file is removed or overwritten.
+     *
+     * @param filename String
+     */
+    static void invalidateCache(String filename)
+    {
+        if (Dstore.cache != null)
+            Dstore.cache.invalidate(filename);
+        if (Dstore.mappedFiles != null)
+            Dstore.mappedFiles.invalidate(filename);
+        if (Dstore.chunkIndex != null)
+            Dstore.chunkIndex.remove(filename);
+    }
+
+    /**
+     * Add the chunks of a file that has just been stored to the chunk index, in the background.
+     *
+     * @param filename String
+     */
+    static void indexChunks(String filename)
+    {
+        if (Dstore.chunkIndex != null)
+            Dstore.chunkIndex.indexLater(filename);
+    }
+
+    /**
+     * Index of the chunks(see ContentChunker) of the files of this Dstore(--dedup=true) : chunk => every stored file that has the chunk && where.
+     * A STORE_DEDUP takes the chunks the index has from the stored files instead of from the client. The files stay whole on disk, the
+     * index only says where to copy the chunks from, so the downloads && the rebalance do not change : the savings are in upload, not in disk.
+     * The files stored any other way are cut && hashed by one background thread after they are stored(&& at startup), so that a STORE is not
+     * slowed down by it. A chunk that is in several files keeps a location in each of them, so removing one of the files does not lose it.
+     * A chunk is keyed by the first 8 bytes of its SHA-256 && the locations are a chain of small nodes, so the index holds no copy of the hashes.
+     * The index can be out of date for a moment(a file overwritten while it is indexed), && two chunks can share a key, so a chunk is always
+     * checked against its full hash when it is copied.
+     *
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class CHUNK_INDEX
+    {
+        static class LOCATION
+        {
+            final String fileName;
+            final long offset;
+            final int length;
+            LOCATION next;//the same chunk in another file, null for the last one
+
+            LOCATION(String fileName, long offset, int length, LOCATION next) {
+                this.fileName = fileName;
+                this.offset = offset;
+                this.length = length;
+                this.next = next;
+            }
+        }
+
+        private final HashMap<Long, LOCATION> chunks = new HashMap<Long, LOCATION>();//chunk key => its locations, the file indexed last first
+        private final HashMap<String, long[]> files = new HashMap<String, long[]>();//file => the keys of its chunks
+        private final ExecutorService indexer = Executors.newSingleThreadExecutor();
+        private long locations = 0;
+        private long dedupStores = 0;
+        private long dedupBytes = 0;//the bytes of the STORE_DEDUPs
+        private long reusedBytes = 0;//the bytes of the STORE_DEDUPs copied from stored files instead of uploaded
+
+        static long key(byte[] hash) {
+            return ByteBuffer.wrap(hash).getLong();
+        }
+
+        /**
+         * @return List<LOCATION> | the stored files that have the chunk(the file indexed last first), empty if none has it
+         */
+        synchronized List<LOCATION> get(byte[] hash) {
+            List<LOCATION> found = new ArrayList<LOCATION>(1);
+            for (LOCATION location = this.chunks.get(CHUNK_INDEX.key(hash)); location != null; location = location.next)
+                found.add(location);
+            return found;
+        }
+
+        /**
+         * Index the chunks of a file, in place of the ones it had. Nothing is indexed if the file has been removed in the meantime.
+         */
+        synchronized void add(String filename, List<ContentChunker.CHUNK> fileChunks) {
+            if (!Dstore.file_details.containsKey(filename))
+                return;
+            this.remove(filename);
+            long[] keys = new long[fileChunks.size()];
+            for (int i = 0; i < keys.length; i++) {
+                ContentChunker.CHUNK eachChunk = fileChunks.get(i);
+                keys[i] = CHUNK_INDEX.key(eachChunk.hash);
+                LOCATION first = this.chunks.get(keys[i]);
+                //a chunk that is several times in the file(e.g. a run of zeroes) is indexed once, where it is first
+                if (first != null && first.fileName.equals(filename))
+                    continue;
+                this.chunks.put(keys[i], new LOCATION(filename, eachChunk.offset, eachChunk.length, first));
+                this.locations++;
+            }
+            this.files.put(filename, keys);
+        }
+
+        /**
+         * Forget the locations of a file. The chunk stays indexed in the other files that have it.
+         */
+        synchronized void remove(String filename) {
+            long[] keys = this.files.remove(filename);
+            if (keys == null)
+                return;
+            for (long eachKey : keys) {
+                LOCATION first = this.chunks.get(eachKey);
+                LOCATION previous = null;
+                for (LOCATION location = first; location != null; location = location.next) {
+                    if (!location.fileName.equals(filename)) {
+                        previous = location;
+                        continue;
+                    }
+                    if (previous == null)
+                        first = location.next;
+                    else
+                        previous.next = location.next;
+                    this.locations--;
+                    break;
+                }
+                if (first == null)
+                    this.chunks.remove(eachKey);
+                else
+                    this.chunks.put(eachKey, first);
+            }
+        }
+
+        void indexLater(String filename) {
+            this.indexer.execute(() -> {
+                //a file removed before its turn is not indexed
+                if (!Dstore.file_details.containsKey(filename))
+                    return;
+                try {
+                    this.add(filename, CHUNK_INDEX.chunkFile(new File(Dstore.file_folder + File.separator + filename)));
+                } catch (IOException e) {
+                    if (Dstore.file_details.containsKey(filename))
+                        DstoreLogger.getInstance().log("Could not index the chunks of " + filename + " : " + e.getMessage());
+                }
+            });
+        }
+
+        synchronized void recordDedupStore(long fileSize, long reused) {
+            this.dedupStores++;
+            this.dedupBytes += fileSize;
+            this.reusedBytes += reused;
+        }
+
+        synchronized long getLookups() {
+            return this.dedupStores;
+        }
+
+        synchronized String getStats() {
+            return "chunk index : " + this.chunks.size() + " chunks(" + this.locations + " locations) in " + this.files.size() + " files, " + this.dedupStores + " STORE_DEDUPs of "
+                    + this.dedupBytes + " bytes, " + this.reusedBytes + " bytes taken from the stored files";
+        }
+
+        /**
+         * Cut a stored file into chunks, reading it once.
+         */
+        static List<ContentChunker.CHUNK> chunkFile(File file) throws IOException {
+            List<ContentChunker.CHUNK> fileChunks = new ArrayList<ContentChunker.CHUNK>();
+            ContentChunker chunker = new ContentChunker();
+            MessageDigest digest = ContentChunker.newDigest();
+            byte[] buffer = new byte[Dstore.TRANSFER_BUFFER_SIZE];
+            long chunkStart = 0;
+            long position = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                for (int bufLen = in.read(buffer); bufLen != -1; bufLen = in.read(buffer)) {
+                    int from = 0;
+                    for (int end = chunker.findEnd(buffer, from, bufLen); end != -1; end = chunker.findEnd(buffer, from, bufLen)) {
+                        digest.update(buffer, from, end - from);
+                        fileChunks.add(new ContentChunker.CHUNK(chunkStart, (int) (position + end - chunkStart), digest.digest()));
+                        chunkStart = position + end;
+                        from = end;
+                    }
+                    digest.update(buffer, from, bufLen - from);
+                    position += bufLen;
+                }
+            }
+            if (position > chunkStart)
+                fileChunks.add(new ContentChunker.CHUNK(chunkStart, (int) (position - chunkStart), digest.digest()));
+            return fileChunks;
+        }
+    }
+
+    /**
+     * Cache of the small files that are downloaded often(--cache-bytes=N, files up to --cache-max-file-size=N). The files are kept off-heap,
+     * in direct buffers, && the cache never holds more than maxBytes of them.
+     * Segmented LRU : a file that has been downloaded once goes to the probation segment, a second download moves it to the protected segment(80%
+     * of the bytes). Evictions take the least recently used files of probation first, so a burst of files downloaded only once cannot push the
+     * popular files out.
+     * A download that misses reads the file into a new buffer && adds it. If any file has been invalidated in the meantime(REMOVE, REBALANCE,
+     * an overwritten file) the buffer is served but not added, as it may hold the old content.
+     *
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class OBJECT_CACHE
+    {
+        private static final double PROTECTED_SHARE = 0.8;
+        private final long maxBytes;
+        private final long maxFileSize;
+        private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);//least recently used first
+        private final LinkedHashMap<String, ByteBuffer> protectedFiles = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+        private long probationBytes = 0;
+        private long protectedBytes = 0;
+        private long invalidations = 0;//also the version of the cache content, see load
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        public OBJECT_CACHE(long maxBytes, long maxFileSize) {
+            this.maxBytes = maxBytes;
+            this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        }
+
+        /**
+         * @return ByteBuffer | the cached file, null on a miss
+         */
+        synchronized ByteBuffer get(String filename) {
+            ByteBuffer data = this.protectedFiles.get(filename);
+            if (data == null) {
+                data = this.probation.remove(filename);
+                if (data == null) {
+                    this.misses++;
+                    return null;
+                }
+                //a second download, promote it && make room in the protected segment
+                this.probationBytes -= data.capacity();
+                this.protectedFiles.put(filename, data);
+                this.protectedBytes += data.capacity();
+                Iterator<Map.Entry<String, ByteBuffer>> eldest = this.protectedFiles.entrySet().iterator();
+                while (this.protectedBytes > this.maxBytes * PROTECTED_SHARE && eldest.hasNext()) {
+                    Map.Entry<String, ByteBuffer> demoted = eldest.next();
+                    eldest.remove();
+                    this.protectedBytes -= demoted.getValue().capacity();
+                    this.probation.put(demoted.getKey(), demoted.getValue());
+                    this.probationBytes += demoted.getValue().capacity();
+                }
+            }
+            this.hits++;
+            return data;
+        }
+
+        boolean admits(long fileSize) {
+            return fileSize <= this.maxFileSize;
+        }
+
+        /**
+         * @return long | the version of the cache content, to take before opening a file that is then loaded
+         */
+        synchronized long version() {
+            return this.invalidations;
+        }
+
+        /**
+         * Read a file that missed into a new direct buffer && add it to the cache, unless the cache has been invalidated since version was
+         * taken. The version has to be taken before the file is opened : a file overwritten(&& invalidated) between the open && the load
+         * would otherwise put the bytes of the old file in the cache.
+         *
+         * @param filename String
+         * @param inFile FileChannel | the open file, it has to be admitted
+         * @param version long | from version(), taken before inFile was opened
+         * @return ByteBuffer | the file content, null if there is no direct memory left for it
+         * @throws IOException | void
+         */
+        ByteBuffer load(String filename, FileChannel inFile, long version) throws IOException {
+            ByteBuffer data;
+            try {
+                data = ByteBuffer.allocateDirect((int) inFile.size());
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+            while (data.hasRemaining()) {
+                if (inFile.read(data, data.position()) == -1)
+                    break;
+            }
+            data.flip();
+            synchronized (this) {
+                if (version == this.invalidations && !this.probation.containsKey(filename) && !this.protectedFiles.containsKey(filename)) {
+                    this.probation.put(filename, data);
+                    this.probationBytes += data.capacity();
+                    this.evict();
+                }
+            }
+            return data;
+        }
+
+        synchronized void invalidate(String filename) {
+            this.invalidations++;
+            ByteBuffer data = this.probation.remove(filename);
+            if (data != null)
+                this.probationBytes -= data.capacity();
+            data = this.protectedFiles.remove(filename);
+            if (data != null)
+                this.protectedBytes -= data.capacity();
+        }
+
+        private void evict() {
+            while (this.probationBytes + this.protectedBytes > this.maxBytes) {
+                LinkedHashMap<String, ByteBuffer> segment = !this.probation.isEmpty() ? this.probation : this.protectedFiles;
+                Iterator<Map.Entry<String, ByteBuffer>> eldest = segment.entrySet().iterator();
+                long bytes = eldest.next().getValue().capacity();
+                eldest.remove();
+                if (segment == this.probation)
+                    this.probationBytes -= bytes;
+                else
+                    this.protectedBytes -= bytes;
+                this.evictions++;
+            }
+        }
+
+        synchronized long getLookups() {
+            return this.hits + this.misses;
+        }
+
+        /**
+         * @return String | the counters of the cache, for the log
+         */
+        synchronized String getStats() {
+            long lookups = this.hits + this.misses;
+            return "Cache : " + this.hits + " hits, " + this.misses + " misses(hit rate " + String.format("%.1f", lookups > 0 ? 100.0 * this.hits / lookups : 0.0)
+                    + "%), " + (this.probation.size() + this.protectedFiles.size()) + " files, " + (this.probationBytes + this.protectedBytes) + " of " + this.maxBytes
+                    + " bytes(" + this.protectedBytes + " protected), " + this.evictions + " evictions, " + this.invalidations + " invalidations";
+        }
+    }
+
+    /**
+     * Send a mapped file to a socket, one region after the other.
+     *
+     * @param file MAPPED_FILE | acquired from the cache, released by the caller
+     * @param socket Socket
+     * @throws IOException | void
+     */
+    static void transferMappedFile(MAPPED_FILE_CACHE.MAPPED_FILE file, Socket socket) throws IOException
+    {
+        for (MappedByteBuffer eachRegion : file.regions)
+            Dstore.transferBuffer(eachRegion, socket);
+    }
+
+    /**
+     * Cache of the mappings of the large files that are being downloaded(--mmap-bytes=N, files from --mmap-min-file-size=N).
+     * The clients downloading the same file share one read-only mapping, backed by the page cache, && the bytes are written to the socket
+     * straight from it. A mapping is split in regions of at most 1 GB(the limit of a MappedByteBuffer).
+     * Each mapping is reference counted : the cache holds one reference && every download holds one while it sends the file. A mapping that is
+     * evicted(least recently used first, once more than maxBytes are mapped) or invalidated(REMOVE, overwritten file) leaves the cache straight
+     * away, but it is only unmapped once its last download has released it.
+     * A file is never changed in place(uploads are renamed over the old file, see receiveFile), so a mapping can never point past the end of its file.
+     *
+     * @author Andrei123f(ap4u19@soton.ac.uk)
+     */
+    static class MAPPED_FILE_CACHE
+    {
+        static final long REGION_SIZE = 1L << 30;
+        private static Object unsafe;//sun.misc.Unsafe, for unmapping straight away instead of when the buffer is garbage collected
+        private static Method invokeCleaner;
+        private final long maxBytes;
+        private final long minFileSize;
+        private final LinkedHashMap<String, MAPPED_FILE> files = new LinkedHashMap<String, MAPPED_FILE>(16, 0.75f, true);//least recently used first
+        private long cachedBytes = 0;//the mapped bytes the cache holds a reference to
+        private long mappedBytes = 0;//every mapped byte, including the evicted mappings that are still being downloaded
+        private long hits = 0;
+        private long misses = 0;
+        private long unmaps = 0;
+
+        static {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                MAPPED_FILE_CACHE.unsafe = theUnsafe.get(null);
+                MAPPED_FILE_CACHE.invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                MAPPED_FILE_CACHE.invokeCleaner = null;
+            }
+        }
+
+        static class MAPPED_FILE
+        {
+            final String fileName;
+            final long size;
+            final MappedByteBuffer[] regions;
+            private int references = 1;//the reference of the cache
+
+            MAPPED_FILE(String fileName, long size, MappedByteBuffer[] regions) {
+                this.fileName = fileName;
+                this.size = size;
+                this.regions = regions;
+            }
+        }
+
+        public MAPPED_FILE_CACHE(long maxBytes, long minFileSize) {
+            this.maxBytes = maxBytes;
+            this.minFileSize = minFileSize;
+        }
+
+        boolean admits(long fileSize) {
+            return fileSize >= this.minFileSize && fileSize <= this.maxBytes;
+        }
+
+        /**
+         * Get the mapping of a file, mapping it if it is not in the cache. Every acquire has to be followed by a release.
+         *
+         * @param filename String
+         * @param path Path
+         * @return MAPPED_FILE
+         * @throws IOException | void
+         */
+        synchronized MAPPED_FILE acquire(String filename, Path path) throws IOException {
+            MAPPED_FILE file = this.files.get(filename);
+            if (file != null) {
+                this.hits++;
+                file.references++;
+                return file;
+            }
+            this.misses++;
+            try (FileChannel inFile = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = inFile.size();
+                MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+                for (int i = 0; i < regions.length; i++)
+                    regions[i] = inFile.map(FileChannel.MapMode.READ_ONLY, i * REGION_SIZE, Math.min(REGION_SIZE, size - i * REGION_SIZE));
+                file = new MAPPED_FILE(filename, size, regions);
+            }
+            file.references++;
+            this.files.put(filename, file);
+            this.cachedBytes += file.size;
+            this.mappedBytes += file.size;
+            Iterator<MAPPED_FILE> eldest = this.files.values().iterator();
+            while (this.cachedBytes > this.maxBytes && eldest.hasNext()) {
+                MAPPED_FILE evicted = eldest.next();
+                if (evicted == file)
+                    continue;
+                eldest.remove();
+                this.cachedBytes -= evicted.size;
+                this.release(evicted);
+            }
+            return file;
+        }
+
+        synchronized void release(MAPPED_FILE file) {
+            if (--file.references > 0)
+                return;
+            this.mappedBytes -= file.size;
+            this.unmaps++;
+            if (MAPPED_FILE_CACHE.invokeCleaner == null)
+                return;
+            for (MappedByteBuffer eachRegion : file.regions) {
+                try {
+                    MAPPED_FILE_CACHE.invokeCleaner.invoke(MAPPED_FILE_CACHE.unsafe, eachRegion);
+                } catch (ReflectiveOperationException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized void invalidate(String filename) {
+            MAPPED_FILE file = this.files.remove(filename);
+            if (file != null) {
+                this.cachedBytes -= file.size;
+                this.release(file);
+            }
+        }
+
+        synchronized long getLookups() {
+            return this.hits + this.misses;
+        }
+
+        /**
+         * @return String | the counters of the cache, for the log
+         */
+        synchronized String getStats() {
+            return "Mapped files : " + this.hits + " hits, " + this.misses + " misses, " + this.files.size() + " files, " + this.cachedBytes + " of " + this.maxBytes
+                    + " bytes cached, " + this.mappedBytes + " bytes mapped, " + this.unmaps + " unmaps";
+        }
     }
 
     /**
@@ -176,16 +1366,9 @@ class Dstore{
         private OutputStream outFileStream_client;
         private InputStream inFileStream_client;
 
-        private BufferedReader inTextStream_client;
+        private REQUEST_READER requestReader;//the requests && the uploaded files, through one buffer for the whole connection
         private PrintWriter outTextStream_client;
 
-        //for Controller communication
-        private OutputStream outFileStream_controller;
-        private InputStream inFileStream_controller;
-
-        private BufferedReader inTextStream_controller;
-        private PrintWriter outTextStream_controller;
-
 
         public CLIENT_THREAD (Socket socket) {this.socketTo_client = socket;}
 
@@ -193,39 +1376,45 @@ class Dstore{
         {
             try
             {
-                this.outFileStream_controller = socket_to_controller.getOutputStream();
-                this.inFileStream_controller = socket_to_controller.getInputStream();
-                this.inTextStream_controller = new BufferedReader(new InputStreamReader(this.inFileStream_controller));
-                this.outTextStream_controller = new PrintWriter(new OutputStreamWriter(this.outFileStream_controller));
-
                 this.outFileStream_client = this.socketTo_client.getOutputStream();
                 this.inFileStream_client = this.socketTo_client.getInputStream();
-                this.inTextStream_client = new BufferedReader(new InputStreamReader(this.inFileStream_client));
+                this.requestReader = new REQUEST_READER(this.inFileStream_client, Dstore.TRANSFER_BUFFER_SIZE);
                 this.outTextStream_client = new PrintWriter(new OutputStreamWriter(this.outFileStream_client));
 
-                int bufLen;
-                byte[] buffer = new byte[1000];
-
-                while((bufLen = this.inFileStream_client.read(buffer)) != -1){
-                    String request = new String(buffer, 0, bufLen);
-                    request = request.replaceAll("\n","");
-                    System.out.println("Incoming request from client : " + request);
-                    INCOMING_REQUEST formattedRequest = new INCOMING_REQUEST(request);
-
+                //the same request object for every request of the connection
+                INCOMING_REQUEST formattedRequest = new INCOMING_REQUEST();
+                boolean firstRequest = true;
+                while (this.requestReader.readRequest(formattedRequest)) {
                     if(formattedRequest.invalidOperation || formattedRequest.invalidArguments)
-                        throw new Exception("Invalid Request from Client/Controller" + request);
+                        throw new Exception("Invalid Request from Client/Controller");
 
                     switch (formattedRequest.operation) {
+                        case (Protocol.PROTOCOL_TOKEN):
+                            this.processHandshake(formattedRequest.filename, firstRequest);
+                            break;
                         case (Protocol.STORE_TOKEN):
-                            this.processStoreOperation(formattedRequest.arguments.get("filename"), formattedRequest.arguments.get("filesize"));
+                            this.processStoreOperation(formattedRequest.filename, formattedRequest.fileSize, false, formattedRequest.requestId);
+                            break;
+                        case (Protocol.REBALANCE_STORE_TOKEN):
+                            this.processStoreOperation(formattedRequest.filename, formattedRequest.fileSize, true, formattedRequest.requestId);
+                            break;
+                        case (Protocol.STORE_BATCH_TOKEN):
+                            this.processStoreBatchOperation(formattedRequest.filenames, formattedRequest.fileSizes, formattedRequest.requestId);
+                            break;
+                        case (Protocol.STORE_CHAIN_TOKEN):
+                            this.processStoreChainOperation(formattedRequest.filename, formattedRequest.fileSize, formattedRequest.chainPorts, formattedRequest.requestId);
+                            break;
+                        case (Protocol.STORE_DEDUP_TOKEN):
+                            this.processStoreDedupOperation(formattedRequest.filename, formattedRequest.fileSize, formattedRequest.recipeLength, formattedRequest.requestId);
                             break;
                         case (Protocol.LOAD_DATA_TOKEN):
-                            this.processLoadOperation(formattedRequest.arguments.get("filename"));
+                            this.processLoadOperation(formattedRequest.filename, formattedRequest.offset, formattedRequest.length);
                             break;
                         case(Protocol.REMOVE_TOKEN):
-                            this.processRemoveOperation(formattedRequest.arguments.get("filename"));
+                            this.processRemoveOperation(formattedRequest.filename);
                             break;
                     }
+                    firstRequest = false;
                 }
 
             } catch (Throwable e){
@@ -236,35 +1425,55 @@ class Dstore{
         }
 
 
-        public void processStoreOperation(String filename, String filesize) throws Throwable
+        /**
+         * PROTOCOL framing : the first request of a connection can switch it to the binary protocol, anything else is answered with
+         * "PROTOCOL TEXT" && the connection stays on the text protocol.
+         */
+        private void processHandshake(String framing, boolean firstRequest)
+        {
+            if (firstRequest && Protocol.BINARY_TOKEN.equals(framing)) {
+                this.outTextStream_client.println(BinaryProtocol.HANDSHAKE);
+                this.outTextStream_client.flush();
+                this.requestReader.startFrames();
+            } else {
+                this.outTextStream_client.println(BinaryProtocol.DECLINED);
+                this.outTextStream_client.flush();
+            }
+        }
+
+        /**
+         * Store a file coming from a client(STORE) or from another Dstore during a rebalance(REBALANCE_STORE).
+         * A rebalance copy is not acknowledged to the Controller && replaces any stale copy of the file.
+         */
+        public void processStoreOperation(String filename, long fileSize, boolean rebalance, long requestId) throws Throwable
         {
-            int fileSize = Integer.parseInt(filesize);
             File file = new File(file_folder + File.separator + filename);
             try {
-                if (file.createNewFile()) {
+                //a rebalance copy is only visible once all of it has arrived, an empty placeholder could be sent on by the next rebalance
+                if (rebalance || file.createNewFile()) {
                     System.out.println("Sending ACK response to client ...");
-                    //send ack response to client
-                    this.outTextStream_client.println(Protocol.ACK_TOKEN);
-                    this.outTextStream_client.flush();
+                    this.sendACK(requestId);
                     System.out.println("Sending ACK response to client - success");
 
-                    FileOutputStream outFile = new FileOutputStream(file);
-                    byte[] data;
-                    System.out.println("Reading N bytes ...");
-                    data = this.inFileStream_client.readNBytes(fileSize);
-                    System.out.println("Reading N bytes - success");
-
-                    System.out.println("Writing the file ...");
-                    outFile.write(data);
-                    outFile.close();
-                    System.out.println("Writing the file - success");
-
-                    System.out.println("Sending Store ACK response to Controller for file " + filename + " ...");
-                    //send ack response to controller.
-                    this.outTextStream_controller.println(Protocol.STORE_ACK_TOKEN + " " + filename);
-                    this.outTextStream_controller.flush();
-                    System.out.println("Sending Store ACK response to Controller for file " + filename + " ... - success");
-                    file_details.put(filename, Integer.valueOf(fileSize));
+                    System.out.println("Streaming N bytes to the file ...");
+                    try {
+                        this.receiveFile(file, fileSize);
+                    } catch (Throwable e) {
+                        //the empty file of a new STORE goes, the copy a REBALANCE_STORE was replacing stays
+                        if (!rebalance)
+                            file.delete();
+                        throw e;
+                    }
+                    System.out.println("Streaming N bytes to the file - success");
+
+                    file_details.put(filename, fileSize);
+                    Dstore.indexChunks(filename);
+                    if (!rebalance) {
+                        System.out.println("Sending Store ACK response to Controller for file " + filename + " ...");
+                        //send ack response to controller.
+                        Dstore.sendToController(Protocol.STORE_ACK_TOKEN + " " + filename);
+                        System.out.println("Sending Store ACK response to Controller for file " + filename + " ... - success");
+                    }
 
                 } else {
                     //todo should you close the socket client here?
@@ -278,33 +1487,310 @@ class Dstore{
         }
 
 
-        public void processLoadOperation(String filename) throws Throwable
+        /**
+         * Store the files of a STORE_BATCH : one ACK for the whole batch, then the bytes of every file one after the other, && one STORE_ACK
+         * to the Controller with every file that has been received. The batch is refused(&& the connection closed) if one of its files exists.
+         */
+        public void processStoreBatchOperation(String[] filenames, long[] fileSizes, long requestId) throws Throwable
         {
-            synchronized (Dstore.lock) {
+            List<File> files = new ArrayList<File>();
+            try {
+                for (String eachFilename : filenames) {
+                    File file = new File(file_folder + File.separator + eachFilename);
+                    if (!file.createNewFile()) {
+                        for (File eachFile : files)
+                            eachFile.delete();
+                        this.socketTo_client.close();
+                        throw new Error("File already exists : " + eachFilename);
+                    }
+                    files.add(file);
+                }
+
+                StringBuilder responseTo_controller = new StringBuilder(Protocol.STORE_ACK_TOKEN);
+                int received = 0;
                 try {
-                    System.out.println("LOADING FILE OPERATION ...");
-                    if (file_details.containsKey(filename)) {
-                        File inputFile = new File(filename);
-                        FileInputStream inf = new FileInputStream(Dstore.file_folder + File.separator + inputFile);
-                        int buflen;
-                        byte[] buf = new byte[1000];
-                        System.out.println("LOADING FILE OPERATION started...");
-                        while ((buflen = inf.read(buf)) != -1) {
-                            this.outFileStream_client.write(buf, 0, buflen);
+                    this.sendACK(requestId);
+                    for (; received < files.size(); received++) {
+                        this.receiveFile(files.get(received), fileSizes[received]);
+                        file_details.put(filenames[received], fileSizes[received]);
+                        Dstore.indexChunks(filenames[received]);
+                        responseTo_controller.append(" ").append(filenames[received]);
+                    }
+                } finally {
+                    //the files that have not arrived are dropped, the ones that have are acknowledged as if they had been sent one by one
+                    for (int i = received; i < files.size(); i++)
+                        files.get(i).delete();
+                    if (received > 0)
+                        Dstore.sendToController(responseTo_controller.toString());
+                }
+            } catch (Throwable e) {
+                throw new Error("Error when storing the batch : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+        /**
+         * STORE_CHAIN filename filesize port2 port3 ... : store the file && forward it to the rest of the chain while it arrives, so the client
+         * uploads it once. The client gets the ACK once the next Dstore has ACKed(the whole chain is ready), then every chunk read from the
+         * client goes on to the next Dstore before it is written here. Each Dstore of the chain sends its own STORE_ACK to the Controller.
+         * A Dstore of the chain that cannot be reached is skipped, && one that fails during the upload is dropped from it : the Controller
+         * never gets their STORE_ACK, so the STORE times out as if the client had not uploaded to them.
+         */
+        public void processStoreChainOperation(String filename, long fileSize, int[] chainPorts, long requestId) throws Throwable
+        {
+            File file = new File(file_folder + File.separator + filename);
+            try {
+                if (!file.createNewFile()) {
+                    this.socketTo_client.close();
+                    throw new Error("File already exists");
+                }
+                Socket next = Dstore.openChainLink(filename, fileSize, chainPorts);
+                try {
+                    this.sendACK(requestId);
+                    this.receiveFile(file, fileSize, next);
+                } catch (Throwable e) {
+                    file.delete();
+                    throw e;
+                } finally {
+                    if (next != null)
+                        next.close();
+                }
+                file_details.put(filename, fileSize);
+                Dstore.indexChunks(filename);
+                Dstore.sendToController(Protocol.STORE_ACK_TOKEN + " " + filename);
+            } catch (Throwable e) {
+                throw new Error("Error when storing file : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+        /**
+         * STORE_DEDUP filename filesize recipe_length, then the recipe(the length && hash of each chunk of the file, see ContentChunker).
+         * The chunks the chunk index has are copied from the stored files, && the client is asked(a bitmap after the ACK) for the others
+         * only, which it sends one after the other. Every chunk, copied or uploaded, must match its hash, otherwise nothing is stored.
+         * Without --dedup=true every chunk is asked for. Once the file is complete it is acknowledged to the Controller like a STORE.
+         */
+        public void processStoreDedupOperation(String filename, long fileSize, long recipeLength, long requestId) throws Throwable
+        {
+            File file = new File(file_folder + File.separator + filename);
+            Map<String, FileChannel> sources = new HashMap<String, FileChannel>();
+            File partialFile = null;
+            boolean created = false;
+            boolean received = false;
+            try {
+                if (recipeLength < 0 || recipeLength > ContentChunker.maxRecipeLength(fileSize))
+                    throw new IOException("The recipe is too long : " + recipeLength + " bytes");
+                //both lengths come from the client : the recipe is decoded block by block as it arrives, not read into one buffer of recipeLength
+                List<ContentChunker.CHUNK> fileChunks = new ArrayList<ContentChunker.CHUNK>();
+                byte[] recipeBlock = new byte[Dstore.RECIPE_BLOCK_ENTRIES * ContentChunker.RECIPE_ENTRY_LENGTH];
+                for (long remaining = recipeLength; remaining > 0; ) {
+                    int blockLength = (int) Math.min(recipeBlock.length, remaining);
+                    if (!this.requestReader.readFully(recipeBlock, 0, blockLength))
+                        throw new EOFException("The connection ended in the recipe");
+                    ContentChunker.decodeRecipe(recipeBlock, blockLength, fileSize, fileChunks);
+                    remaining -= blockLength;
+                }
+                ContentChunker.checkRecipe(fileChunks, fileSize);
+                if (!file.createNewFile()) {
+                    this.socketTo_client.close();
+                    throw new Error("File already exists");
+                }
+                created = true;
+
+                //the stored files are opened now, so a chunk can still be copied if its file is removed || overwritten in the meantime
+                CHUNK_INDEX.LOCATION[] locations = new CHUNK_INDEX.LOCATION[fileChunks.size()];
+                byte[] missing = new byte[(fileChunks.size() + 7) / 8];
+                for (int i = 0; i < locations.length; i++) {
+                    List<CHUNK_INDEX.LOCATION> found = (Dstore.chunkIndex != null) ? Dstore.chunkIndex.get(fileChunks.get(i).hash) : Collections.emptyList();
+                    //the first of the files that have the chunk that can still be opened
+                    for (CHUNK_INDEX.LOCATION eachLocation : found) {
+                        if (!sources.containsKey(eachLocation.fileName)) {
+                            try {
+                                sources.put(eachLocation.fileName, FileChannel.open(new File(file_folder + File.separator + eachLocation.fileName).toPath(), StandardOpenOption.READ));
+                            } catch (IOException e) {
+                                sources.put(eachLocation.fileName, null);
+                            }
                         }
-                        inf.close();
-                        System.out.println("LOADING FILE OPERATION finished...");
+                        if (sources.get(eachLocation.fileName) != null) {
+                            locations[i] = eachLocation;
+                            break;
+                        }
+                    }
+                    if (locations[i] == null)
+                        missing[i / 8] |= (byte) (1 << (i % 8));
+                }
+                this.sendACK(requestId);
+                this.outFileStream_client.write(missing);
+                this.outFileStream_client.flush();
+
+                long reused = 0;
+                byte[] chunk = new byte[ContentChunker.MAX_CHUNK];
+                partialFile = File.createTempFile("." + file.getName() + " ", Dstore.PARTIAL_FILE_SUFFIX, file.getParentFile());
+                try (OutputStream outFile = new BufferedOutputStream(new FileOutputStream(partialFile), Dstore.TRANSFER_BUFFER_SIZE)) {
+                    for (int i = 0; i < locations.length; i++) {
+                        ContentChunker.CHUNK eachChunk = fileChunks.get(i);
+                        if (locations[i] != null) {
+                            ByteBuffer into = ByteBuffer.wrap(chunk, 0, eachChunk.length);
+                            FileChannel source = sources.get(locations[i].fileName);
+                            while (into.hasRemaining()) {
+                                if (source.read(into, locations[i].offset + into.position()) == -1)
+                                    break;
+                            }
+                            reused += eachChunk.length;
+                        } else if (!this.requestReader.readFully(chunk, 0, eachChunk.length)) {
+                            throw new EOFException("The connection ended in chunk " + i + " of " + locations.length);
+                        }
+                        if (!ContentChunker.matches(chunk, 0, eachChunk.length, eachChunk.hash))
+                            throw new IOException("Chunk " + i + (locations[i] != null ? " copied from " + locations[i].fileName : "") + " does not match its hash");
+                        outFile.write(chunk, 0, eachChunk.length);
+                    }
+                }
+                Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                received = true;
+                file_details.put(filename, fileSize);
+                if (Dstore.chunkIndex != null) {
+                    Dstore.chunkIndex.add(filename, fileChunks);
+                    Dstore.chunkIndex.recordDedupStore(fileSize, reused);
+                }
+                Dstore.sendToController(Protocol.STORE_ACK_TOKEN + " " + filename);
+            } catch (Throwable e) {
+                throw new Error("Error when storing file : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            } finally {
+                for (FileChannel eachSource : sources.values()) {
+                    if (eachSource != null)
+                        eachSource.close();
+                }
+                if (!received && partialFile != null)
+                    partialFile.delete();
+                if (!received && created)
+                    file.delete();
+            }
+        }
 
-                    } else {
-                        //todo should you close the socket client here?
-                        this.socketTo_client.close();
-                        throw new Error("Dstore does not have the requested file : " + filename);
+        private void sendACK(long requestId) throws IOException
+        {
+            if (this.requestReader.isBinary()) {
+                new BinaryProtocol.FRAME_WRITER(BinaryProtocol.ACK, requestId).writeTo(this.outFileStream_client);
+                this.outFileStream_client.flush();
+            } else {
+                this.outTextStream_client.println(Protocol.ACK_TOKEN);
+                this.outTextStream_client.flush();
+            }
+        }
+
+        /**
+         * Stream the next fileSize bytes of the connection into the file, through the buffer of this connection.
+         * The bytes go to a partial file that is renamed over the file once they have all arrived, so the downloads of a stale copy that a
+         * rebalance overwrites(or its mapping) keep reading the old content. Only the partial file is deleted if the connection ends before
+         * all the bytes have arrived : the file is left as it was(the caller drops the empty file of a new STORE), so a failed REBALANCE_STORE
+         * keeps the copy it was replacing.
+         *
+         * @param file File
+         * @param fileSize long
+         * @throws IOException | void
+         */
+        private void receiveFile(File file, long fileSize) throws IOException
+        {
+            this.receiveFile(file, fileSize, null);
+        }
+
+        /**
+         * @param next Socket | the next Dstore of a STORE_CHAIN, every chunk goes to it before it is written to the file, null if there is none
+         */
+        private void receiveFile(File file, long fileSize, Socket next) throws IOException
+        {
+            boolean received = false;
+            //the name of the partial file has a space, so it can never be the name of a stored file
+            File partialFile = File.createTempFile("." + file.getName() + " ", Dstore.PARTIAL_FILE_SUFFIX, file.getParentFile());
+            try {
+                try (FileOutputStream outFile = new FileOutputStream(partialFile)) {
+                    OutputStream target = (next != null) ? new CHAIN_FORWARDER(outFile, next, file.getName()) : outFile;
+                    long remaining = fileSize;
+                    while (remaining > 0) {
+                        int bufLen = this.requestReader.transferTo(target, remaining);
+                        if (bufLen == -1)
+                            throw new EOFException("The connection ended after " + (fileSize - remaining) + " of " + fileSize + " bytes");
+                        remaining -= bufLen;
+                    }
+                }
+                Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                received = true;
+            } finally {
+                if (!received)
+                    partialFile.delete();
+                //a rebalance may have replaced a stale copy that is cached
+                Dstore.invalidateCache(file.getName());
+            }
+        }
 
+        /**
+         * Send a stored file to the client, from the cache if it has it. Downloads are served in parallel : nothing is shared between them
+         * but the file_details lookup && the short lookup in the cache.
+         * A ranged LOAD_DATA(length >= 0) gets the bytes [offset, offset + length) of the file, cut at the end of the file, so the client can
+         * resume a download or fetch the parts of a file from several Dstores. An offset past the end of the file is refused like a missing file.
+         */
+        public void processLoadOperation(String filename, long offset, long length) throws Throwable
+        {
+            try {
+                System.out.println("LOADING FILE OPERATION ...");
+                Long fileSize = file_details.get(filename);
+                if (fileSize != null && length >= 0) {
+                    if (offset > fileSize) {
+                        this.socketTo_client.close();
+                        throw new Error("The range starts after the end of " + filename + " : " + offset);
                     }
+                    this.processRangedLoadOperation(filename, fileSize, offset, Math.min(length, fileSize - offset));
+                } else if (fileSize != null) {
+                    System.out.println("LOADING FILE OPERATION started...");
+                    Path path = new File(Dstore.file_folder + File.separator + filename).toPath();
+                    //small files from the cache, large ones from a shared mapping, the rest with transferTo
+                    ByteBuffer cached = (Dstore.cache != null && Dstore.cache.admits(fileSize)) ? Dstore.cache.get(filename) : null;
+                    if (cached != null) {
+                        Dstore.transferBuffer(cached, this.socketTo_client);
+                    } else if (Dstore.mappedFiles != null && Dstore.mappedFiles.admits(fileSize)) {
+                        MAPPED_FILE_CACHE.MAPPED_FILE mapped = Dstore.mappedFiles.acquire(filename, path);
+                        try {
+                            Dstore.transferMappedFile(mapped, this.socketTo_client);
+                        } finally {
+                            Dstore.mappedFiles.release(mapped);
+                        }
+                    } else {
+                        long version = (Dstore.cache != null) ? Dstore.cache.version() : 0;
+                        try (FileChannel inFile = FileChannel.open(path, StandardOpenOption.READ)) {
+                            ByteBuffer loaded = (Dstore.cache != null && Dstore.cache.admits(inFile.size())) ? Dstore.cache.load(filename, inFile, version) : null;
+                            if (loaded != null)
+                                Dstore.transferBuffer(loaded, this.socketTo_client);
+                            else
+                                Dstore.transferFile(inFile, this.socketTo_client);
+                        }
+                    }
+                    System.out.println("LOADING FILE OPERATION finished...");
 
+                } else {
+                    //todo should you close the socket client here?
+                    this.socketTo_client.close();
+                    throw new Error("Dstore does not have the requested file : " + filename);
 
-                } catch (Throwable e) {
-                    throw new Error("Error when loading file : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+                }
+
+
+            } catch (Throwable e) {
+                throw new Error("Error when loading file : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            }
+        }
+
+        /**
+         * Send a range of a stored file : a slice of the cached file if the cache has it(a range never adds a file to the cache), otherwise
+         * straight from the file channel with transferTo.
+         */
+        private void processRangedLoadOperation(String filename, long fileSize, long offset, long length) throws IOException
+        {
+            ByteBuffer cached = (Dstore.cache != null && Dstore.cache.admits(fileSize)) ? Dstore.cache.get(filename) : null;
+            if (cached != null) {
+                ByteBuffer range = cached.duplicate();
+                range.limit((int) (offset + length)).position((int) offset);
+                Dstore.transferBuffer(range, this.socketTo_client);
+            } else {
+                try (FileChannel inFile = FileChannel.open(new File(Dstore.file_folder + File.separator + filename).toPath(), StandardOpenOption.READ)) {
+                    Dstore.transferFile(inFile, offset, length, this.socketTo_client);
                 }
             }
         }
@@ -314,7 +1800,9 @@ class Dstore{
             System.out.println("Deleting file " + filename + " ...");
             File file = new File(Dstore.file_folder + File.separator + filename);
             String responseTo_controller;
-            if(file.delete()) {
+            boolean deleted = file.delete();
+            Dstore.invalidateCache(filename);
+            if(deleted) {
                 System.out.println("Deleting file " + filename + " - finished");
                 Dstore.file_details.remove(filename);
                 responseTo_controller = Protocol.REMOVE_ACK_TOKEN + " " + filename;
@@ -324,8 +1812,7 @@ class Dstore{
                 responseTo_controller = Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + filename;
             }
             System.out.println("Sending response to Controller... : " + responseTo_controller);
-            this.outTextStream_controller.println(responseTo_controller);
-            this.outTextStream_controller.flush();
+            Dstore.sendToController(responseTo_controller);
             System.out.println("Sending response to Controller... : " + responseTo_controller + " - finished");
         }
 
@@ -353,16 +1840,45 @@ class Dstore{
             cport = Integer.parseInt(args[1]);
             timeout = Integer.parseInt(args[2]);
             file_folder = args[3];
+            for (int i = 4; i < args.length; i++) {
+                if (!args[i].startsWith("--") || !args[i].contains("="))
+                    throw new IllegalArgumentException("Invalid option : " + args[i] + " (expected --name=value)");
+                options.put(args[i].substring(2, args[i].indexOf('=')), args[i].substring(args[i].indexOf('=') + 1));
+            }
+            connectionThreads = ConnectionThreads.create(options.getOrDefault("threads", ConnectionThreads.PLATFORM), "dstore-connection");
+            long cacheBytes = Long.parseLong(options.getOrDefault("cache-bytes", Long.toString(32L << 20)));
+            if (cacheBytes > 0) {
+                cache = new OBJECT_CACHE(cacheBytes, Long.parseLong(options.getOrDefault("cache-max-file-size", Long.toString(1L << 20))));
+                Dstore.logStatsPeriodically(cache::getLookups, cache::getStats);
+            }
+            long mmapBytes = Long.parseLong(options.getOrDefault("mmap-bytes", Long.toString(1L << 30)));
+            if (mmapBytes > 0) {
+                mappedFiles = new MAPPED_FILE_CACHE(mmapBytes, Long.parseLong(options.getOrDefault("mmap-min-file-size", Long.toString(1L << 20))));
+                Dstore.logStatsPeriodically(mappedFiles::getLookups, mappedFiles::getStats);
+            }
             File dstoreFolder = new File(file_folder);
             DstoreLogger.init(Logger.LoggingType.ON_FILE_AND_TERMINAL, port);
             DstoreLogger.getInstance().log("Starting Dstore server ... on port" + port);
             if (!dstoreFolder.exists())
                 if (!dstoreFolder.mkdir()) throw new RuntimeException("Cannot create dstore folder (folder absolute path: " + dstoreFolder.getAbsolutePath() + ")");
+            Dstore.scanInventory(dstoreFolder);
+            if (Boolean.parseBoolean(options.getOrDefault("dedup", "false"))) {
+                chunkIndex = new CHUNK_INDEX();
+                //the files that are already here are indexed in the background, the Dstore does not wait for it
+                for (String eachFilename : new ArrayList<String>(file_details.keySet()))
+                    chunkIndex.indexLater(eachFilename);
+                Dstore.logStatsPeriodically(chunkIndex::getLookups, chunkIndex::getStats);
+            }
             try {
+                //listen for clients before joining, so that a rebalance started by the JOIN can already send files here
+                //a socket from a channel, so the downloads can be sent with FileChannel.transferTo
+                ss = ServerSocketChannel.open().socket();
+                ss.bind(new InetSocketAddress(port), 1024);
                 try {
                     socket_to_controller = new Socket("localhost", cport);
+                    controllerOut = new PrintWriter(new OutputStreamWriter(socket_to_controller.getOutputStream()));
                     //communication tools for controller <-> client
-                    Thread controllerThread = new Thread(new CONTROLLER_THREAD(socket_to_controller));
+                    Thread controllerThread = Dstore.connectionThreads.newThread(new CONTROLLER_THREAD(socket_to_controller));
                     controllerThread.start();
                 } catch (Throwable e) {
                     String error = ("Unexpected System error when listening for Controller requests : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
@@ -371,13 +1887,14 @@ class Dstore{
                 }
 
                 try {
-                    ss = new ServerSocket(port);
                     for(;;) {
                         try {
                             if (socket_to_controller.isConnected()) {
                                 System.out.println("Dstore is connected to the Controller server. Listening to Client Requests.");
                                 Socket socket_to_client = ss.accept();
-                                Thread clientThread = new Thread(new CLIENT_THREAD(socket_to_client));
+                                //the answer to a PROTOCOL handshake && the ACK are two small writes in a row, which Nagle would hold back for a delayed ACK
+                                socket_to_client.setTcpNoDelay(true);
+                                Thread clientThread = Dstore.connectionThreads.newThread(new CLIENT_THREAD(socket_to_client));
                                 clientThread.start();
                             } else {
                             }
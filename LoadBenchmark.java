@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent LOAD benchmark - stores a few files, then opens a connection to the Controller for each client && starts all of their
+ * LOADs(LOAD + LOAD_DATA) at the same time. Run it against a Controller && Dstores started with --threads=platform and then with
+ * --threads=virtual to compare the two modes.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java LoadBenchmark cport timeout [clients] [file_size] [files] [client_threads(platform|virtual)]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class LoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int fileSize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        int files = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        ThreadFactory threads = ConnectionThreads.create(args.length > 5 ? args[5] : ConnectionThreads.VIRTUAL, "load-client");
+
+        final String prefix = "load_" + System.nanoTime() + "_";
+        final byte[] data = new byte[fileSize];
+        Arrays.fill(data, (byte) 'x');
+        BenchmarkClient setup = new BenchmarkClient(cport, timeout);
+        setup.connect();
+        for (int i = 0; i < files; i++)
+            setup.store(prefix + i, data);
+
+        final AtomicInteger errors = new AtomicInteger(0);
+        final long[] latencies = new long[clients];
+        final CountDownLatch connected = new CountDownLatch(clients);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> clientThreads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            final String filename = prefix + (i % files);
+            clientThreads.add(threads.newThread(() -> {
+                BenchmarkClient loader = new BenchmarkClient(cport, timeout);
+                latencies[client] = -1;
+                try {
+                    try {
+                        loader.connect();
+                    } finally {
+                        connected.countDown();
+                    }
+                    start.await();
+                    long loadStart = System.nanoTime();
+                    if (loader.load(filename).length != data.length)
+                        throw new Exception("Wrong file size");
+                    latencies[client] = System.nanoTime() - loadStart;
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    try { loader.disconnect(); } catch (Exception e) { e.printStackTrace(); }
+                }
+            }));
+        }
+
+        for (Thread eachThread : clientThreads)
+            eachThread.start();
+        connected.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread eachThread : clientThreads)
+            eachThread.join();
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long[] completed = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        System.out.println("clients\tseconds\tloads/s\tp50 ms\tp99 ms\terrors");
+        System.out.printf("%d\t%.3f\t%.1f\t%.1f\t%.1f\t%d%n", clients, seconds, completed.length / seconds,
+                LoadBenchmark.percentile(completed, 0.50) / 1e6, LoadBenchmark.percentile(completed, 0.99) / 1e6, errors.get());
+
+        try {
+            for (int i = 0; i < files; i++)
+                setup.remove(prefix + i);
+        } catch (Exception e) {
+            System.out.println("Could not remove the benchmark files : " + e.getMessage());
+        }
+        setup.disconnect();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))];
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Restart benchmark for the Controller's metadata log - no Controller or Dstores needed. For each index size it writes a snapshot of that many
+ * files plus a log tail(stores, removes && replica moves, 10% of the index size), then times the recovery(load the snapshot + replay the tail)
+ * that a restarted Controller does. Also prints how fast the log takes records with group commit.
+ *
+ * Usage: java MetadataRecoveryBenchmark directory [files1 files2 ...]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class MetadataRecoveryBenchmark {
+    private static final int DSTORES = 10;
+    private static final int R = 3;
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args[0]);
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++)
+            sizes.add(Integer.parseInt(args[i]));
+        if (sizes.isEmpty())
+            sizes = List.of(10000, 100000, 1000000);
+        ControllerLogger.init(Logger.LoggingType.NO_LOG);
+
+        System.out.println("files\tsnapshot MB\ttail records\tlog records/s\trecovery ms\trecovered files");
+        for (int files : sizes) {
+            File sizeDirectory = new File(directory, "index_" + files);
+            MetadataRecoveryBenchmark.delete(sizeDirectory);
+            Random random = new Random(files);
+
+            //the index to snapshot
+            Controller.METADATA_LOG log = new Controller.METADATA_LOG(sizeDirectory, true);
+            log.recover();
+            log.start();
+            List<Controller.FILE_ENTRY> index = new ArrayList<Controller.FILE_ENTRY>(files);
+            for (int i = 0; i < files; i++) {
+                Controller.FILE_ENTRY file = new Controller.FILE_ENTRY("file_" + i, 1024 + random.nextInt(1 << 20), "STORE_COMPLETE");
+                for (int replica = 0; replica < R; replica++)
+                    file.dPorts.add(9000 + (i + replica) % DSTORES);
+                index.add(file);
+            }
+            List<Integer> dstores = new ArrayList<Integer>();
+            for (int i = 0; i < DSTORES; i++)
+                dstores.add(9000 + i);
+            log.snapshot(index, dstores);
+
+            //the log tail, written by concurrent callers like the completion handlers do
+            int tail = Math.max(1, files / 10);
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> committed = new ArrayList<CompletableFuture<Void>>(tail);
+            for (int i = 0; i < tail; i++) {
+                switch (i % 4) {
+                    case 0:
+                        Controller.FILE_ENTRY file = new Controller.FILE_ENTRY("new_file_" + i, 4096, "STORE_COMPLETE");
+                        file.dPorts.add(9000 + i % DSTORES);
+                        committed.add(log.append(Controller.METADATA_LOG.storeRecord(file)));
+                        break;
+                    case 1:
+                        committed.add(log.append(Controller.METADATA_LOG.REMOVE_RECORD + " file_" + random.nextInt(files)));
+                        break;
+                    case 2:
+                        committed.add(log.append(Controller.METADATA_LOG.ADD_REPLICA_RECORD + " file_" + random.nextInt(files) + " " + (9000 + random.nextInt(DSTORES))));
+                        break;
+                    default:
+                        committed.add(log.append(Controller.METADATA_LOG.DROP_REPLICA_RECORD + " file_" + random.nextInt(files) + " " + (9000 + random.nextInt(DSTORES))));
+                }
+            }
+            CompletableFuture.allOf(committed.toArray(new CompletableFuture<?>[0])).get();
+            double logSeconds = (System.nanoTime() - start) / 1e9;
+            log.close();
+
+            long snapshotBytes = 0;
+            for (File eachFile : sizeDirectory.listFiles()) {
+                if (eachFile.getName().startsWith("snapshot-"))
+                    snapshotBytes += eachFile.length();
+            }
+
+            start = System.nanoTime();
+            Controller.METADATA_LOG.RECOVERED_STATE state = new Controller.METADATA_LOG(sizeDirectory, true).recover();
+            double recoveryMillis = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%d\t%.1f\t%d\t%.0f\t%.0f\t%d%n", files, snapshotBytes / 1048576.0, tail, tail / logSeconds, recoveryMillis, state.files.size());
+            MetadataRecoveryBenchmark.delete(sizeDirectory);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File eachChild : children)
+                MetadataRecoveryBenchmark.delete(eachChild);
+        }
+        file.delete();
+    }
+}
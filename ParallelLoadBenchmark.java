@@ -0,0 +1,51 @@
+import java.util.Arrays;
+
+/**
+ * Large file download benchmark - stores one large file, then downloads it whole from one replica(LOAD) && in ranges from all of its
+ * replicas at once(LOAD_ALL && ranged LOAD_DATA), && prints the MB/s of each.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java ParallelLoadBenchmark cport timeout [file_mb] [chunk_kb] [loads] [protocol(TEXT|BINARY)]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ParallelLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int fileMb = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int chunkKb = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        int loads = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        String protocol = args.length > 5 ? args[5] : Protocol.TEXT_TOKEN;
+
+        byte[] data = new byte[fileMb * 1024 * 1024];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 31 + (i >>> 16));
+        String filename = "l" + Long.toString(System.nanoTime(), 36);
+        BenchmarkClient client = new BenchmarkClient(cport, timeout, protocol);
+        client.connect();
+        client.store(filename, data);
+        System.out.println("replicas : " + (client.locateReplicas(filename).length - 1));
+
+        System.out.println("mode\tMB/s");
+        for (boolean parallel : new boolean[]{false, true}) {
+            //the first download warms up the JIT && the page cache
+            ParallelLoadBenchmark.load(client, filename, chunkKb, parallel);
+            long start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                if (!Arrays.equals(ParallelLoadBenchmark.load(client, filename, chunkKb, parallel), data))
+                    throw new Exception("Wrong content for " + filename);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%s\t%.0f%n", parallel ? "all replicas, " + chunkKb + " KB ranges" : "one replica", (double) loads * fileMb / seconds);
+        }
+
+        client.remove(filename);
+        client.disconnect();
+    }
+
+    private static byte[] load(BenchmarkClient client, String filename, int chunkKb, boolean parallel) throws Exception {
+        return parallel ? client.loadParallel(filename, chunkKb * 1024) : client.load(filename);
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.*;
+
+/**
+ * Placement simulation - no Controller or Dstores needed. Stores a set of files with random sizes, then adds && drops Dstores one at a time
+ * && prints the bytes every placement has to move after each membership change :
+ *  - first-r : the replicas go to R consecutive Dstores picked by the hash of the filename modulo N(a placement without any state)
+ *  - rebalance : the default rebalance(keeps the replicas where they are && moves files from the fullest to the emptiest Dstore until the counts are even)
+ *  - ring : the consistent-hash ring of --placement=ring(Controller.HASH_RING)
+ *
+ * Usage: java PlacementSimulation [dstores] [files] [r] [virtual_nodes] [changes]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class PlacementSimulation {
+    private static final int FIRST_DPORT = 9000;
+
+    public static void main(String[] args) {
+        int dstores = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int r = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int virtualNodes = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        int changes = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        Random random = new Random(42);
+        Map<String, Long> fileSizes = new LinkedHashMap<String, Long>();
+        long totalBytes = 0;
+        for (int i = 0; i < files; i++) {
+            long size = 1024 + random.nextInt(1024 * 1024);
+            fileSizes.put("file" + i, size);
+            totalBytes += size * r;
+        }
+
+        List<Integer> members = new ArrayList<Integer>();
+        for (int i = 0; i < dstores; i++)
+            members.add(FIRST_DPORT + i);
+        int nextDPort = FIRST_DPORT + dstores;
+
+        Controller.HASH_RING ring = new Controller.HASH_RING(virtualNodes);
+        for (Integer eachDPort : members)
+            ring.add(eachDPort);
+        Map<String, Set<Integer>> firstR = PlacementSimulation.placeFirstR(fileSizes, members, r);
+        Map<String, Set<Integer>> rebalance = PlacementSimulation.rebalance(fileSizes, new HashMap<String, Set<Integer>>(), members, r);
+        Map<String, Set<Integer>> ringPlacement = PlacementSimulation.placeRing(fileSizes, members, r, ring);
+
+        System.out.println(files + " files, R = " + r + ", " + (totalBytes >> 20) + " MB stored with the replicas, " + virtualNodes + " virtual nodes per Dstore");
+        System.out.println("change\tN\tfirst-r MB\tfirst-r %\trebalance MB\trebalance %\tring MB\tring %\tring max/min files");
+        for (int change = 0; change < 2 * changes; change++) {
+            //add Dstores first, then drop the same number of them, starting with the oldest
+            String event;
+            if (change < changes) {
+                int dPort = nextDPort++;
+                members.add(dPort);
+                ring.add(dPort);
+                event = "join " + dPort;
+            } else {
+                int dPort = members.remove(0);
+                ring.remove(dPort);
+                event = "drop " + dPort;
+            }
+
+            Map<String, Set<Integer>> newFirstR = PlacementSimulation.placeFirstR(fileSizes, members, r);
+            Map<String, Set<Integer>> newRebalance = PlacementSimulation.rebalance(fileSizes, PlacementSimulation.withoutDropped(rebalance, members), members, r);
+            Map<String, Set<Integer>> newRing = PlacementSimulation.placeRing(fileSizes, members, r, ring);
+
+            long firstRMoved = PlacementSimulation.bytesMoved(fileSizes, firstR, newFirstR);
+            long rebalanceMoved = PlacementSimulation.bytesMoved(fileSizes, rebalance, newRebalance);
+            long ringMoved = PlacementSimulation.bytesMoved(fileSizes, ringPlacement, newRing);
+            int[] ringSpread = PlacementSimulation.fileCountSpread(newRing, members);
+            System.out.printf("%s\t%d\t%d\t%.1f\t%d\t%.1f\t%d\t%.1f\t%d/%d%n", event, members.size(),
+                    firstRMoved >> 20, 100.0 * firstRMoved / totalBytes,
+                    rebalanceMoved >> 20, 100.0 * rebalanceMoved / totalBytes,
+                    ringMoved >> 20, 100.0 * ringMoved / totalBytes,
+                    ringSpread[1], ringSpread[0]);
+
+            firstR = newFirstR;
+            rebalance = newRebalance;
+            ringPlacement = newRing;
+        }
+    }
+
+    private static Map<String, Set<Integer>> placeFirstR(Map<String, Long> fileSizes, List<Integer> members, int r) {
+        List<Integer> sorted = new ArrayList<Integer>(members);
+        Collections.sort(sorted);
+        Map<String, Set<Integer>> placement = new HashMap<String, Set<Integer>>();
+        for (String eachFile : fileSizes.keySet()) {
+            int start = (int) Math.floorMod(Controller.HASH_RING.hash(eachFile), (long) sorted.size());
+            Set<Integer> replicas = new HashSet<Integer>();
+            for (int i = 0; i < r; i++)
+                replicas.add(sorted.get((start + i) % sorted.size()));
+            placement.put(eachFile, replicas);
+        }
+        return placement;
+    }
+
+    private static Map<String, Set<Integer>> placeRing(Map<String, Long> fileSizes, List<Integer> members, int r, Controller.HASH_RING ring) {
+        Set<Integer> dPorts = new HashSet<Integer>(members);
+        Map<String, Set<Integer>> placement = new HashMap<String, Set<Integer>>();
+        for (String eachFile : fileSizes.keySet())
+            placement.put(eachFile, new HashSet<Integer>(ring.getReplicas(eachFile, r, dPorts)));
+        return placement;
+    }
+
+    /**
+     * Same rules as REBALANCE_OPERATION.distributeEvenly : every file on exactly R Dstores, then move the smallest movable file from the
+     * fullest Dstore to the emptiest one until their file counts differ by at most 1.
+     */
+    private static Map<String, Set<Integer>> rebalance(Map<String, Long> fileSizes, Map<String, Set<Integer>> current, List<Integer> members, int r) {
+        Comparator<String> bySize = Comparator.<String>comparingLong(fileSizes::get).thenComparing(file -> file);
+        Map<Integer, TreeSet<String>> dstoreFiles = new HashMap<Integer, TreeSet<String>>();
+        for (Integer eachDPort : members)
+            dstoreFiles.put(eachDPort, new TreeSet<String>(bySize));
+        Map<String, Set<Integer>> placement = new HashMap<String, Set<Integer>>();
+
+        for (String eachFile : fileSizes.keySet()) {
+            Set<Integer> holders = new HashSet<Integer>(current.getOrDefault(eachFile, Collections.emptySet()));
+            while (holders.size() > r) {
+                Integer fullest = Collections.max(holders, Comparator.comparingInt(port -> dstoreFiles.get(port).size()));
+                holders.remove(fullest);
+            }
+            while (holders.size() < r) {
+                Integer emptiest = null;
+                for (Integer eachDPort : members) {
+                    if (!holders.contains(eachDPort) && (emptiest == null || dstoreFiles.get(eachDPort).size() < dstoreFiles.get(emptiest).size()))
+                        emptiest = eachDPort;
+                }
+                holders.add(emptiest);
+            }
+            for (Integer eachHolder : holders)
+                dstoreFiles.get(eachHolder).add(eachFile);
+            placement.put(eachFile, holders);
+        }
+
+        while (true) {
+            Integer fullest = Collections.max(members, Comparator.comparingInt(port -> dstoreFiles.get(port).size()));
+            Integer emptiest = Collections.min(members, Comparator.comparingInt(port -> dstoreFiles.get(port).size()));
+            if (dstoreFiles.get(fullest).size() - dstoreFiles.get(emptiest).size() <= 1)
+                break;
+            for (String eachFile : dstoreFiles.get(fullest)) {
+                if (!dstoreFiles.get(emptiest).contains(eachFile)) {
+                    dstoreFiles.get(fullest).remove(eachFile);
+                    dstoreFiles.get(emptiest).add(eachFile);
+                    placement.get(eachFile).remove(fullest);
+                    placement.get(eachFile).add(emptiest);
+                    break;
+                }
+            }
+        }
+        return placement;
+    }
+
+    private static Map<String, Set<Integer>> withoutDropped(Map<String, Set<Integer>> placement, List<Integer> members) {
+        Map<String, Set<Integer>> rtrnPlacement = new HashMap<String, Set<Integer>>();
+        for (Map.Entry<String, Set<Integer>> eachFile : placement.entrySet()) {
+            Set<Integer> replicas = new HashSet<Integer>(eachFile.getValue());
+            replicas.retainAll(members);
+            rtrnPlacement.put(eachFile.getKey(), replicas);
+        }
+        return rtrnPlacement;
+    }
+
+    /**
+     * Every replica that is on a Dstore now but was not there before has to be copied.
+     */
+    private static long bytesMoved(Map<String, Long> fileSizes, Map<String, Set<Integer>> before, Map<String, Set<Integer>> after) {
+        long moved = 0;
+        for (Map.Entry<String, Set<Integer>> eachFile : after.entrySet()) {
+            Set<Integer> previous = before.getOrDefault(eachFile.getKey(), Collections.emptySet());
+            for (Integer eachDPort : eachFile.getValue()) {
+                if (!previous.contains(eachDPort))
+                    moved += fileSizes.get(eachFile.getKey());
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * @return int[] | {min, max} number of files per Dstore
+     */
+    private static int[] fileCountSpread(Map<String, Set<Integer>> placement, List<Integer> members) {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (Integer eachDPort : members)
+            counts.put(eachDPort, 0);
+        for (Set<Integer> eachReplicas : placement.values()) {
+            for (Integer eachDPort : eachReplicas)
+                counts.merge(eachDPort, 1, Integer::sum);
+        }
+        return new int[]{Collections.min(counts.values()), Collections.max(counts.values())};
+    }
+}
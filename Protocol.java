@@ -8,17 +8,27 @@ public class Protocol {
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // also to Dstores
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // also from Controller
+	public final static String LOAD_ALL_TOKEN = "LOAD_ALL";
+	public final static String STORE_CHAIN_TOKEN = "STORE_CHAIN"; // to Dstores, also from Dstores
+	public final static String STORE_DEDUP_TOKEN = "STORE_DEDUP"; // to Dstores
 	
 	// messages from Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
+	public final static String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO";
+	public final static String LOAD_BATCH_FROM_TOKEN = "LOAD_BATCH_FROM";
+	public final static String LOAD_ALL_FROM_TOKEN = "LOAD_ALL_FROM";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String ERROR_BATCH_TOO_LARGE_TOKEN = "ERROR_BATCH_TOO_LARGE";
 	
 	// messages from Dstores
 	public final static String ACK_TOKEN = "ACK";
@@ -27,4 +37,12 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String HEARTBEAT_TOKEN = "HEARTBEAT";
+	public final static String INVENTORY_TOKEN = "INVENTORY";
+
+	// the first line of a connection that opts into the binary framing, see BinaryProtocol
+	public final static String PROTOCOL_TOKEN = "PROTOCOL";
+	public final static String BINARY_TOKEN = "BINARY";
+	public final static String PIPELINED_TOKEN = "PIPELINED";
+	public final static String TEXT_TOKEN = "TEXT";
 }
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Text vs binary vs pipelined protocol benchmark - stores files with short names, then for each protocol times LISTs of the whole index && a
+ * burst of LOADs(only the Controller's LOAD_FROM, nothing is downloaded) from concurrent clients, && prints the bytes each one takes on the
+ * wire. The pipelined clients keep up to window LOADs in flight on their connection, the others send them one by one.
+ *
+ * Needs a running Controller with at least R Dstores joined.
+ * Usage: java ProtocolBenchmark cport timeout [files] [lists] [clients] [loads_per_client] [window]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ProtocolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int cport = Integer.parseInt(args[0]);
+        final int timeout = Integer.parseInt(args[1]);
+        int files = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int lists = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        int clients = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        final int loads = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+        final int window = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+
+        final String prefix = "p" + Long.toString(System.nanoTime(), 36) + "_";
+        BenchmarkClient setup = new BenchmarkClient(cport, timeout, Protocol.BINARY_TOKEN);
+        setup.connect();
+        for (int i = 0; i < files; i++)
+            setup.store(prefix + i, new byte[]{(byte) i});
+
+        System.out.println("protocol\tfiles listed\tms per LIST\tbytes per LIST\tLOADs/s\tbytes per LOAD");
+        for (String protocol : new String[]{Protocol.TEXT_TOKEN, Protocol.BINARY_TOKEN, Protocol.PIPELINED_TOKEN}) {
+            BenchmarkClient lister = new BenchmarkClient(cport, timeout, protocol);
+            lister.connect();
+            //the first LISTs warm up the JIT
+            for (int i = 0; i < Math.max(1, lists / 5); i++)
+                lister.list();
+            long bytesBefore = lister.getBytesSent() + lister.getBytesReceived();
+            int listed = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lists; i++)
+                listed = lister.list().length;
+            double listMillis = (System.nanoTime() - start) / 1e6 / lists;
+            long listBytes = (lister.getBytesSent() + lister.getBytesReceived() - bytesBefore) / lists;
+            lister.disconnect();
+
+            final AtomicInteger errors = new AtomicInteger(0);
+            final AtomicLong loadBytes = new AtomicLong(0);
+            final CountDownLatch connected = new CountDownLatch(clients);
+            final CountDownLatch begin = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < clients; i++) {
+                final int client = i;
+                threads.add(new Thread(() -> {
+                    BenchmarkClient loader = new BenchmarkClient(cport, timeout, protocol);
+                    String[] filenames = new String[loads];
+                    for (int load = 0; load < loads; load++)
+                        filenames[load] = prefix + ((client + load) % files);
+                    try {
+                        try {
+                            loader.connect();
+                        } finally {
+                            connected.countDown();
+                        }
+                        long bytesBeforeLoads = loader.getBytesSent() + loader.getBytesReceived();
+                        begin.await();
+                        for (long[] eachLocation : loader.locateAll(filenames, window)) {
+                            if (eachLocation == null)
+                                throw new Exception("LOAD failed");
+                        }
+                        loadBytes.addAndGet(loader.getBytesSent() + loader.getBytesReceived() - bytesBeforeLoads);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        try { loader.disconnect(); } catch (Exception e) { e.printStackTrace(); }
+                    }
+                }));
+            }
+            for (Thread eachThread : threads)
+                eachThread.start();
+            connected.await();
+            start = System.nanoTime();
+            begin.countDown();
+            for (Thread eachThread : threads)
+                eachThread.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long totalLoads = (long) clients * loads;
+            System.out.printf("%s\t%d\t%.2f\t%d\t%.0f\t%.1f%n", protocol.toLowerCase(), listed, listMillis, listBytes, totalLoads / seconds, (double) loadBytes.get() / totalLoads);
+            if (errors.get() > 0)
+                System.out.println(errors.get() + " clients failed");
+        }
+
+        try {
+            for (int i = 0; i < files; i++)
+                setup.remove(prefix + i);
+        } catch (Exception e) {
+            System.out.println("Could not remove the benchmark files : " + e.getMessage());
+        }
+        setup.disconnect();
+    }
+}
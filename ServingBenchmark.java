@@ -0,0 +1,151 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LOAD_DATA serving benchmark - no Controller or Dstores needed. For each file size it writes a file && serves it to concurrent clients over
+ * localhost, in each of the ways a Dstore has served downloads :
+ *  - stream : FileInputStream through a 1000 byte heap buffer(the LOAD_DATA of the first versions)
+ *  - transferTo : FileChannel.transferTo to the socket channel(Dstore.transferFile)
+ *  - mmap : a shared mapping from Dstore.MAPPED_FILE_CACHE, written to the socket channel
+ * Every client downloads the file over && over on its own connection until about total_mb have been sent to all of them.
+ *
+ * Usage: java ServingBenchmark directory [clients] [total_mb] [size1 size2 ...]
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class ServingBenchmark {
+    private static final String[] MODES = {"stream", "transferTo", "mmap"};
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(args[0]);
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long totalBytes = (args.length > 2 ? Long.parseLong(args[2]) : 1024) << 20;
+        List<Long> sizes = new ArrayList<Long>();
+        for (int i = 3; i < args.length; i++)
+            sizes.add(Long.parseLong(args[i]));
+        if (sizes.isEmpty())
+            sizes = List.of(64L << 10, 1L << 20, 16L << 20, 256L << 20);
+        directory.mkdirs();
+
+        System.out.println("file size\tmode\tdownloads\tMB/s\tms per download");
+        for (long size : sizes) {
+            File file = new File(directory, "serving_" + size);
+            ServingBenchmark.writeFile(file, size);
+            int downloadsPerClient = (int) Math.max(1, totalBytes / size / clients);
+            for (String mode : MODES) {
+                //the first run warms up the JIT && the page cache
+                ServingBenchmark.run(file, mode, clients, Math.max(1, downloadsPerClient / 4));
+                double seconds = ServingBenchmark.run(file, mode, clients, downloadsPerClient);
+                long downloads = (long) clients * downloadsPerClient;
+                System.out.printf("%d\t%s\t%d\t%.0f\t%.2f%n", size, mode, downloads, downloads * size / 1048576.0 / seconds, 1000 * seconds / downloadsPerClient);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * @return double | the seconds it took every client to download the file downloadsPerClient times
+     */
+    private static double run(File file, String mode, int clients, int downloadsPerClient) throws Exception {
+        Dstore.MAPPED_FILE_CACHE mappedFiles = new Dstore.MAPPED_FILE_CACHE(Long.MAX_VALUE, 0);
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0), clients);
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        List<Thread> threads = new ArrayList<Thread>();
+        AtomicLong errors = new AtomicLong(0);
+
+        for (int i = 0; i < clients; i++) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = server.accept().socket()) {
+                    InputStream in = socket.getInputStream();
+                    //one byte asks for the file
+                    while (in.read() != -1)
+                        ServingBenchmark.serve(file, mode, socket, mappedFiles);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            });
+            serverThread.start();
+            threads.add(serverThread);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Thread clientThread = new Thread(() -> {
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+                    Socket socket = channel.socket();
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    byte[] buffer = new byte[64 * 1024];
+                    for (int download = 0; download < downloadsPerClient; download++) {
+                        out.write('L');
+                        out.flush();
+                        long remaining = file.length();
+                        while (remaining > 0) {
+                            int bufLen = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bufLen == -1)
+                                throw new EOFException();
+                            remaining -= bufLen;
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            });
+            clientThread.start();
+            threads.add(clientThread);
+        }
+        for (Thread eachThread : threads)
+            eachThread.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.close();
+        if (errors.get() > 0)
+            System.out.println(errors.get() + " connections failed in mode " + mode);
+        return seconds;
+    }
+
+    private static void serve(File file, String mode, Socket socket, Dstore.MAPPED_FILE_CACHE mappedFiles) throws IOException {
+        switch (mode) {
+            case "stream":
+                try (FileInputStream inFile = new FileInputStream(file)) {
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[1000];
+                    int bufLen;
+                    while ((bufLen = inFile.read(buffer)) != -1)
+                        out.write(buffer, 0, bufLen);
+                }
+                break;
+            case "transferTo":
+                try (FileChannel inFile = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    Dstore.transferFile(inFile, socket);
+                }
+                break;
+            default:
+                Dstore.MAPPED_FILE_CACHE.MAPPED_FILE mapped = mappedFiles.acquire(file.getName(), file.toPath());
+                try {
+                    Dstore.transferMappedFile(mapped, socket);
+                } finally {
+                    mappedFiles.release(mapped);
+                }
+                break;
+        }
+    }
+
+    private static void writeFile(File file, long size) throws IOException {
+        byte[] buffer = new byte[1 << 20];
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = (byte) i;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length)
+                out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+        }
+    }
+}
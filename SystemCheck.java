@@ -0,0 +1,520 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end check of the system - starts its own Controller(R=2, with --metadata-dir) && Dstores from the classes on the classpath, in a
+ * new temporary folder, && checks :
+ *  1) the PROTOCOL handshake of the Controller && of a Dstore(accepted && declined),
+ *  2) STORE, LIST, LOAD, RELOAD && REMOVE in the text && in the binary protocol,
+ *  3) the framing : text lines && binary frames sent byte by byte, pipelined LOADs sent in one write && answered by request id, && a Dstore
+ *     that gets a header && its payload in one write, a header byte by byte(ending in \r\n) && three LOAD_DATA in one write,
+ *  4) a file overwritten(REBALANCE_STORE || REMOVE then STORE) while a Dstore has it cached : the new content is served,
+ *  5) the rebalance : a Dstore that joins gets files, && every file is on R Dstores again after one drops,
+ *  6) a restart of the whole system : the index comes back from the metadata log && the INVENTORY of each Dstore is reconciled with it(the
+ *     replicas are attached again without copying them, a replica whose size changed is sent again && unknown files are removed).
+ * Each check prints ok || FAILED, the first failure stops the run && leaves the logs of the Controller && Dstores in the folder.
+ *
+ * Usage: java SystemCheck cport [controller_option ...], e.g. java SystemCheck 12345 --io=nio
+ * The Dstores listen on cport+1 .. cport+3.
+ *
+ * @author Andrei123f(ap4u19@soton.ac.uk)
+ */
+public class SystemCheck {
+    private static final int R = 2;
+    private static final int TIMEOUT = 2000;
+    private static final int REBALANCE_PERIOD = 3;
+    private static final long WAIT_MILLIS = 20000;//how long a check waits for the system to settle
+
+    private final int cport;
+    private final List<String> controllerOptions;
+    private final File folder;
+    private Process controller;
+    private final Process[] dstores = new Process[4];//index 1..3
+    private final Map<String, byte[]> files = new TreeMap<String, byte[]>();//what the system should have
+
+    SystemCheck(int cport, List<String> controllerOptions, File folder) {
+        this.cport = cport;
+        this.controllerOptions = controllerOptions;
+        this.folder = folder;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java SystemCheck cport [controller_option ...]");
+            return;
+        }
+        File folder = Files.createTempDirectory("systemcheck").toFile();
+        SystemCheck check = new SystemCheck(Integer.parseInt(args[0]), Arrays.asList(args).subList(1, args.length), folder);
+        boolean passed = false;
+        try {
+            check.run();
+            passed = true;
+        } catch (Throwable e) {
+            System.out.println("FAILED : " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+            System.out.println("The logs are in " + folder);
+        } finally {
+            check.stopAll();
+        }
+        System.out.println(passed ? "All checks passed." : "Some checks failed.");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private void run() throws Exception {
+        this.startController();
+        this.startDstore(1);
+        this.startDstore(2);
+        this.waitUntil("the Dstores to join", () -> this.request(Protocol.LIST_TOKEN).startsWith(Protocol.LIST_TOKEN));
+
+        this.check("handshake", this::checkHandshake);
+        this.check("STORE/LIST/LOAD/RELOAD/REMOVE, text", () -> this.checkOperations(Protocol.TEXT_TOKEN));
+        this.check("STORE/LIST/LOAD/RELOAD/REMOVE, binary", () -> this.checkOperations(Protocol.BINARY_TOKEN));
+        this.check("Controller framing, byte by byte && pipelined", this::checkControllerFraming);
+        this.check("Dstore framing, byte by byte && pipelined", this::checkDstoreFraming);
+        this.check("overwrite while cached", this::checkOverwriteWhileCached);
+        this.check("rebalance on join && drop", this::checkRebalance);
+        this.check("restart && INVENTORY reconciliation", this::checkRestart);
+    }
+
+    private void check(String name, Callable<Void> check) throws Exception {
+        long start = System.nanoTime();
+        try {
+            check.call();
+        } catch (Throwable e) {
+            throw new Exception(name + " : " + (e.getMessage() != null ? e.getMessage() : e.toString()), e);
+        }
+        System.out.printf("ok\t%s(%.1f s)%n", name, (System.nanoTime() - start) / 1e9);
+    }
+
+    //1) HANDSHAKE
+    private Void checkHandshake() throws Exception {
+        //a declined handshake, the connection stays on the text protocol
+        try (Socket socket = this.connect(this.cport)) {
+            this.write(socket, "PROTOCOL FOO\nLIST\n");
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            SystemCheck.expect(BinaryProtocol.DECLINED, BinaryProtocol.readLine(in), "declined handshake");
+            SystemCheck.expect(true, BinaryProtocol.readLine(in).startsWith(Protocol.LIST_TOKEN), "LIST after a declined handshake");
+        }
+        //an accepted one, the frame right behind it is answered
+        try (Socket socket = this.connect(this.cport)) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LIST, 42).writeTo(request);
+            socket.getOutputStream().write(request.toByteArray());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            SystemCheck.expect(BinaryProtocol.HANDSHAKE, BinaryProtocol.readLine(in), "binary handshake");
+            BinaryProtocol.FRAME frame = SystemCheck.readFrame(in);
+            SystemCheck.expect(BinaryProtocol.LIST + "/42", frame.opcode + "/" + frame.requestId, "LIST frame after the handshake");
+        }
+        //the same with a Dstore
+        try (Socket socket = this.connect(this.dport(1))) {
+            this.write(socket, "PROTOCOL FOO\n");
+            SystemCheck.expect(BinaryProtocol.DECLINED, BinaryProtocol.readLine(socket.getInputStream()), "declined Dstore handshake");
+        }
+        try (Socket socket = this.connect(this.dport(1))) {
+            this.write(socket, BinaryProtocol.HANDSHAKE + "\n");
+            SystemCheck.expect(BinaryProtocol.HANDSHAKE, BinaryProtocol.readLine(socket.getInputStream()), "Dstore binary handshake");
+        }
+        return null;
+    }
+
+    //2) THE OPERATIONS
+    private Void checkOperations(String protocol) throws Exception {
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT, protocol);
+        client.connect();
+        try {
+            SystemCheck.expect(!protocol.equals(Protocol.TEXT_TOKEN), client.isBinary(), "binary connection");
+            String prefix = protocol.toLowerCase() + "_";
+            for (int i = 0; i < 6; i++) {
+                byte[] data = SystemCheck.content(prefix + i, 1000 * (i + 1) + i);
+                client.store(prefix + i, data);
+                this.files.put(prefix + i, data);
+            }
+            SystemCheck.expect(this.files.keySet(), new TreeSet<String>(Arrays.asList(client.list())), "LIST");
+            for (int i = 0; i < 6; i++)
+                SystemCheck.expectContent(this.files.get(prefix + i), client.load(prefix + i), "LOAD " + prefix + i);
+            try {
+                client.store(prefix + 0, new byte[10]);
+                throw new Exception("STORE of an existing file succeeded");
+            } catch (IOException e) {
+                SystemCheck.expect(true, e.getMessage().contains(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN), "STORE of an existing file : " + e.getMessage());
+            }
+            client.remove(prefix + 5);
+            this.files.remove(prefix + 5);
+            try {
+                client.load(prefix + 5);
+                throw new Exception("LOAD of a removed file succeeded");
+            } catch (IOException e) {
+                SystemCheck.expect(true, e.getMessage().contains(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN), "LOAD of a removed file : " + e.getMessage());
+            }
+        } finally {
+            client.disconnect();
+        }
+        //RELOAD gives the other replica, then ERROR_LOAD
+        String filename = protocol.toLowerCase() + "_0";
+        List<String> responses = this.requestAll(Protocol.LOAD_TOKEN + " " + filename, Protocol.RELOAD_TOKEN + " " + filename, Protocol.RELOAD_TOKEN + " " + filename);
+        SystemCheck.expect(true, responses.get(0).startsWith(Protocol.LOAD_FROM_TOKEN) && responses.get(1).startsWith(Protocol.LOAD_FROM_TOKEN)
+                && !responses.get(0).equals(responses.get(1)), "RELOAD after LOAD : " + responses);
+        SystemCheck.expect(Protocol.ERROR_LOAD_TOKEN, responses.get(2), "RELOAD after every replica");
+        return null;
+    }
+
+    //3) FRAMING
+    private Void checkControllerFraming() throws Exception {
+        //a text request byte by byte
+        try (Socket socket = this.connect(this.cport)) {
+            this.writeByteByByte(socket, "LIST\n".getBytes(StandardCharsets.US_ASCII));
+            String response = BinaryProtocol.readLine(socket.getInputStream());
+            SystemCheck.expect(true, response != null && response.startsWith(Protocol.LIST_TOKEN), "text LIST sent byte by byte");
+        }
+        //the handshake && frames byte by byte, answered in order
+        try (Socket socket = this.connect(this.cport)) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write((BinaryProtocol.HANDSHAKE + "\n").getBytes(StandardCharsets.US_ASCII));
+            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LIST, 7).writeTo(request);
+            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.LOAD, 8).writeString("not_there").writeTo(request);
+            new BinaryProtocol.FRAME_WRITER(BinaryProtocol.REMOVE, 9).writeString("not_there").writeTo(request);
+            this.writeByteByByte(socket, request.toByteArray());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            SystemCheck.expect(BinaryProtocol.HANDSHAKE, BinaryProtocol.readLine(in), "handshake sent byte by byte");
+            String responses = "";
+            for (int i = 0; i < 3; i++) {
+                BinaryProtocol.FRAME frame = SystemCheck.readFrame(in);
+                responses += BinaryProtocol.getToken(frame.opcode) + "/" + frame.requestId + " ";
+            }
+            SystemCheck.expect("LIST/7 ERROR_FILE_DOES_NOT_EXIST/8 ERROR_FILE_DOES_NOT_EXIST/9 ", responses, "frames sent byte by byte");
+        }
+        //pipelined LOADs, all sent in one write && matched by request id
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT, Protocol.PIPELINED_TOKEN);
+        client.connect();
+        try {
+            SystemCheck.expect(true, client.isPipelined(), "pipelined connection");
+            String[] filenames = this.files.keySet().toArray(new String[0]);
+            long[][] locations = client.locateAll(filenames, filenames.length);
+            for (int i = 0; i < filenames.length; i++) {
+                SystemCheck.expect(true, locations[i] != null, "pipelined LOAD of " + filenames[i]);
+                SystemCheck.expect((long) this.files.get(filenames[i]).length, locations[i][1], "size in the pipelined LOAD of " + filenames[i]);
+            }
+        } finally {
+            client.disconnect();
+        }
+        return null;
+    }
+
+    private Void checkDstoreFraming() throws Exception {
+        //the files are not in the index, they are removed once the Dstore reports its files again(see checkRestart)
+        int dport = this.dport(2);
+        byte[] one = "the header && the payload in one write".getBytes(StandardCharsets.US_ASCII);
+        try (Socket socket = this.connect(dport)) {
+            this.write(socket, Protocol.REBALANCE_STORE_TOKEN + " framing_one " + one.length + "\n" + new String(one, StandardCharsets.US_ASCII));
+            SystemCheck.expect(Protocol.ACK_TOKEN, BinaryProtocol.readLine(socket.getInputStream()), "ACK of a header && payload in one write");
+        }
+        byte[] two = "12345".getBytes(StandardCharsets.US_ASCII);
+        try (Socket socket = this.connect(dport)) {
+            this.writeByteByByte(socket, (Protocol.REBALANCE_STORE_TOKEN + " framing_two " + two.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            SystemCheck.expect(Protocol.ACK_TOKEN, BinaryProtocol.readLine(socket.getInputStream()), "ACK of a header sent byte by byte");
+            socket.getOutputStream().write(two);
+        }
+        byte[] expected = (new String(one, StandardCharsets.US_ASCII) + new String(two, StandardCharsets.US_ASCII) + new String(one, StandardCharsets.US_ASCII)).getBytes(StandardCharsets.US_ASCII);
+        this.waitUntil("the framing files to be stored", () -> {
+            try (Socket socket = this.connect(dport)) {
+                this.write(socket, "LOAD_DATA framing_one\nLOAD_DATA framing_two\nLOAD_DATA framing_one\n");
+                return Arrays.equals(expected, socket.getInputStream().readNBytes(expected.length));
+            }
+        });
+        return null;
+    }
+
+    //4) CACHE
+    private Void checkOverwriteWhileCached() throws Exception {
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT);
+        client.connect();
+        try {
+            byte[] first = SystemCheck.content("first", 4096);
+            client.store("cached", first);
+            int[] dports = SystemCheck.replicas(client, "cached");
+            //downloaded twice, so it is in the protected segment of the cache
+            for (int eachDPort : dports) {
+                for (int i = 0; i < 2; i++)
+                    SystemCheck.expectContent(first, BenchmarkClient.download(eachDPort, "cached", first.length, TIMEOUT), "LOAD_DATA from " + eachDPort);
+            }
+            //a rebalance copy replaces the file
+            byte[] second = SystemCheck.content("second", first.length);
+            try (Socket socket = this.connect(dports[0])) {
+                this.write(socket, Protocol.REBALANCE_STORE_TOKEN + " cached " + second.length + "\n");
+                SystemCheck.expect(Protocol.ACK_TOKEN, BinaryProtocol.readLine(socket.getInputStream()), "ACK of the REBALANCE_STORE");
+                socket.getOutputStream().write(second);
+            }
+            this.waitUntil("the overwritten file to be served", () -> Arrays.equals(second, BenchmarkClient.download(dports[0], "cached", second.length, TIMEOUT)));
+            //removed && stored again with other content
+            client.remove("cached");
+            byte[] third = SystemCheck.content("third", first.length);
+            client.store("cached", third);
+            this.files.put("cached", third);
+            for (int eachDPort : SystemCheck.replicas(client, "cached"))
+                SystemCheck.expectContent(third, BenchmarkClient.download(eachDPort, "cached", third.length, TIMEOUT), "LOAD_DATA after REMOVE && STORE from " + eachDPort);
+        } finally {
+            client.disconnect();
+        }
+        return null;
+    }
+
+    //5) REBALANCE
+    private Void checkRebalance() throws Exception {
+        this.startDstore(3);
+        this.waitUntil("the new Dstore to get files", () -> this.placedOn(1, 2, 3) && this.holds(3));
+        this.stop(1);
+        this.waitUntil("every file to be on R Dstores again", () -> this.placedOn(2, 3));
+        this.checkContent();
+        return null;
+    }
+
+    //6) RESTART
+    private Void checkRestart() throws Exception {
+        this.stopAll();
+        File folder2 = this.dstoreFolder(2);
+        File folder3 = this.dstoreFolder(3);
+        //a replica that changed size while its Dstore was down, && a file the index does not have
+        String changed = this.files.keySet().iterator().next();
+        Files.write(new File(folder2, changed).toPath(), new byte[10]);
+        Files.write(new File(folder2, "unknown").toPath(), new byte[10]);
+        Map<String, Long> modified = new HashMap<String, Long>();
+        for (File eachFile : folder3.listFiles())
+            modified.put(eachFile.getName(), eachFile.lastModified());
+
+        this.startController();
+        this.startDstore(2);
+        this.startDstore(3);
+        this.waitUntil("the index to come back", () -> new TreeSet<String>(Arrays.asList(this.request(Protocol.LIST_TOKEN).split(" "))).containsAll(this.files.keySet()));
+        this.waitUntil("the INVENTORY to be reconciled", () -> this.placedOn(2, 3)
+                && new File(folder2, changed).length() == this.files.get(changed).length
+                && !new File(folder2, "unknown").exists() && !new File(folder2, "framing_one").exists() && !new File(folder2, "framing_two").exists());
+        this.checkContent();
+        //the replicas the Dstore still had are attached again, not copied
+        for (File eachFile : folder3.listFiles()) {
+            if (this.files.containsKey(eachFile.getName()))
+                SystemCheck.expect(modified.get(eachFile.getName()), eachFile.lastModified(), "modification time of " + eachFile.getName() + " on Dstore 3");
+        }
+        return null;
+    }
+
+    /**
+     * @return boolean | true if every file is on R of the given Dstores(&& only on them)
+     */
+    private boolean placedOn(int... dstores) throws IOException {
+        Set<Integer> allowed = new HashSet<Integer>();
+        for (int eachDstore : dstores)
+            allowed.add(this.dport(eachDstore));
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT);
+        client.connect();
+        try {
+            for (String eachFile : this.files.keySet()) {
+                int[] dports = SystemCheck.replicas(client, eachFile);
+                if (dports.length != R)
+                    return false;
+                for (int eachDPort : dports) {
+                    if (!allowed.contains(eachDPort))
+                        return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private boolean holds(int dstore) throws IOException {
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT);
+        client.connect();
+        try {
+            for (String eachFile : this.files.keySet()) {
+                for (int eachDPort : SystemCheck.replicas(client, eachFile)) {
+                    if (eachDPort == this.dport(dstore))
+                        return true;
+                }
+            }
+            return false;
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    /**
+     * Every file has the content it was stored with on every one of its replicas.
+     */
+    private void checkContent() throws Exception {
+        BenchmarkClient client = new BenchmarkClient(this.cport, TIMEOUT);
+        client.connect();
+        try {
+            SystemCheck.expect(this.files.keySet(), new TreeSet<String>(Arrays.asList(client.list())), "LIST");
+            for (Map.Entry<String, byte[]> eachFile : this.files.entrySet()) {
+                for (int eachDPort : SystemCheck.replicas(client, eachFile.getKey()))
+                    SystemCheck.expectContent(eachFile.getValue(), BenchmarkClient.download(eachDPort, eachFile.getKey(), eachFile.getValue().length, TIMEOUT), eachFile.getKey() + " on " + eachDPort);
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private static int[] replicas(BenchmarkClient client, String filename) throws IOException {
+        long[] location = client.locateReplicas(filename);
+        int[] dports = new int[location.length - 1];
+        for (int i = 1; i < location.length; i++)
+            dports[i - 1] = (int) location[i];
+        return dports;
+    }
+
+    //THE PROCESSES
+    private void startController() throws Exception {
+        List<String> command = new ArrayList<String>(Arrays.asList("Controller", Integer.toString(this.cport), Integer.toString(R),
+                Integer.toString(TIMEOUT), Integer.toString(REBALANCE_PERIOD), "--metadata-dir=" + new File(this.folder, "metadata")));
+        command.addAll(this.controllerOptions);
+        this.controller = this.start(command, "controller.out");
+        this.waitUntil("the Controller to start", () -> {
+            new Socket("localhost", this.cport).close();
+            return true;
+        });
+    }
+
+    private void startDstore(int dstore) throws IOException {
+        this.dstores[dstore] = this.start(Arrays.asList("Dstore", Integer.toString(this.dport(dstore)), Integer.toString(this.cport),
+                Integer.toString(TIMEOUT), this.dstoreFolder(dstore).getPath()), "dstore" + dstore + ".out");
+    }
+
+    private Process start(List<String> arguments, String log) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        //the processes run in this.folder, so a relative classpath would not be found from there
+        StringJoiner classpath = new StringJoiner(File.pathSeparator);
+        for (String eachEntry : System.getProperty("java.class.path").split(File.pathSeparator))
+            classpath.add(new File(eachEntry).getAbsolutePath());
+        command.add("-cp");
+        command.add(classpath.toString());
+        command.addAll(arguments);
+        return new ProcessBuilder(command).directory(this.folder).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(this.folder, log))).start();
+    }
+
+    private void stop(int dstore) throws InterruptedException {
+        SystemCheck.stop(this.dstores[dstore]);
+        this.dstores[dstore] = null;
+    }
+
+    private static void stop(Process process) throws InterruptedException {
+        if (process == null)
+            return;
+        process.destroy();
+        if (!process.waitFor(5, TimeUnit.SECONDS))
+            process.destroyForcibly().waitFor();
+    }
+
+    private void stopAll() throws InterruptedException {
+        for (int i = 1; i < this.dstores.length; i++)
+            this.stop(i);
+        SystemCheck.stop(this.controller);
+        this.controller = null;
+    }
+
+    private int dport(int dstore) {
+        return this.cport + dstore;
+    }
+
+    private File dstoreFolder(int dstore) {
+        return new File(this.folder, "store" + dstore);
+    }
+
+    //HELPERS
+    private void waitUntil(String what, Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        for (; ; ) {
+            try {
+                if (condition.call())
+                    return;
+            } catch (IOException e) {
+                //not there yet
+            }
+            if (System.currentTimeMillis() > deadline)
+                throw new Exception("Timed out waiting for " + what);
+            Thread.sleep(200);
+        }
+    }
+
+    private String request(String request) throws IOException {
+        return this.requestAll(request).get(0);
+    }
+
+    /**
+     * Send text requests to the Controller one after the other on one connection.
+     *
+     * @return List<String> | the response to each request
+     */
+    private List<String> requestAll(String... requests) throws IOException {
+        List<String> responses = new ArrayList<String>();
+        try (Socket socket = this.connect(this.cport)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (String eachRequest : requests) {
+                this.write(socket, eachRequest + "\n");
+                String response = in.readLine();
+                if (response == null)
+                    throw new IOException("Connection closed by the Controller");
+                responses.add(response);
+            }
+        }
+        return responses;
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    private void write(Socket socket, String data) throws IOException {
+        socket.getOutputStream().write(data.getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    private void writeByteByByte(Socket socket, byte[] data) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        for (byte eachByte : data) {
+            out.write(eachByte);
+            out.flush();
+            Thread.sleep(1);
+        }
+    }
+
+    private static BinaryProtocol.FRAME readFrame(InputStream in) throws IOException {
+        BinaryProtocol.FRAME frame = new BinaryProtocol.FRAME();
+        try {
+            if (!frame.read(in, Integer.MAX_VALUE))
+                throw new IOException("Connection closed before the frame");
+        } catch (SocketTimeoutException e) {
+            throw new IOException("No frame within " + TIMEOUT + " ms");
+        }
+        return frame;
+    }
+
+    private static byte[] content(String seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed.hashCode()).nextBytes(data);
+        return data;
+    }
+
+    private static void expect(Object expected, Object actual, String what) throws Exception {
+        if (!Objects.equals(expected, actual))
+            throw new Exception(what + " : expected " + expected + ", got " + actual);
+    }
+
+    private static void expectContent(byte[] expected, byte[] actual, String what) throws Exception {
+        if (!Arrays.equals(expected, actual))
+            throw new Exception(what + " : wrong content");
+    }
+}